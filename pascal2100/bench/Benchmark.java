@@ -0,0 +1,292 @@
+package no.uio.ifi.pascal2100.bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+import no.uio.ifi.pascal2100.main.*;
+import no.uio.ifi.pascal2100.parser.Library;
+import no.uio.ifi.pascal2100.parser.Program;
+import no.uio.ifi.pascal2100.scanner.Scanner;
+import no.uio.ifi.pascal2100.scanner.TokenKind;
+import static no.uio.ifi.pascal2100.scanner.TokenKind.*;
+
+/**
+ * Measures the throughput of each part of the compiler on its own:
+ * the scanner (readNextToken to the end of the file), Program.parse,
+ * Program.check with a new Library, and genCode into a code file which
+ * is never written. Every file is run a number of times to warm the
+ * JVM up before it is measured, and every measurement starts from a
+ * fresh CompilationContext. The parts a phase needs, such as the tree
+ * for check, are made outside the measured time.
+ *
+ * The results are given as tokens/s and lines/s for the best and the
+ * mean of the measured runs, so a change may be judged against an
+ * earlier run on the same files.
+ *
+ * With -names, the classification of names is measured as well: every
+ * name and reserved word in the file is classified with
+ * TokenKind.nameKind, and with the chain of equals tests which the
+ * Token constructor used before, and the time per name is given for
+ * both.
+ *
+ * With -generate, programs of the given sizes (in lines) are written
+ * by the ProgramGenerator to a temporary directory and measured after
+ * the files given, if any. -seed, -shape and -mix are passed on to it.
+ *
+ * Usage: java no.uio.ifi.pascal2100.bench.Benchmark
+ *            [-warmup n] [-iterations n] [-names] [-generate n,...]
+ *            [-seed n] [-shape deep|wide|flat] [-mix balanced|expr|decl] {file|directory}...
+ */
+public class Benchmark {
+    private static final int SCAN = 0, PARSE = 1, CHECK = 2, GENERATE = 3;
+    private static final String[] phaseNames = { "scan", "parse", "check", "generate" };
+
+    // The results are added up here, so no work can be left out by the JIT:
+    private static long sink = 0;
+
+    private static final PrintStream nullStream =
+	new PrintStream(OutputStream.nullOutputStream());
+
+    public static void main(String arg[]) {
+	int warmup = 5, iterations = 10;
+	ArrayList<String> files = new ArrayList<>();
+	String sizes = null, shape = "wide", mix = "balanced";
+	long seed = 1;
+	boolean names = false;
+
+	for (int i = 0;  i < arg.length;  i++) {
+	    String a = arg[i];
+	    if (a.equals("-warmup") && i+1 < arg.length) {
+		warmup = number(arg[++i]);
+	    } else if (a.equals("-iterations") && i+1 < arg.length) {
+		iterations = Math.max(1, number(arg[++i]));
+	    } else if (a.equals("-names")) {
+		names = true;
+	    } else if (a.equals("-generate") && i+1 < arg.length) {
+		sizes = arg[++i];
+	    } else if (a.equals("-seed") && i+1 < arg.length) {
+		seed = number(arg[++i]);
+	    } else if (a.equals("-shape") && i+1 < arg.length) {
+		shape = arg[++i];
+	    } else if (a.equals("-mix") && i+1 < arg.length) {
+		mix = arg[++i];
+	    } else if (a.startsWith("-")) {
+		usage();
+	    } else {
+		addFiles(a, files);
+	    }
+	}
+	if (sizes != null) generate(sizes, seed, shape, mix, files);
+	if (files.isEmpty()) usage();
+
+	System.out.println(String.format(Locale.ROOT, "%-32s %-9s %9s %9s %12s %12s %12s",
+	    "File", "Phase", "Best ms", "Mean ms", "Tokens/s", "Lines/s", "Mean lines/s"));
+	for (String f: files) {
+	    try {
+		measure(f, warmup, iterations);
+		if (names) measureNames(f, warmup, iterations);
+	    } catch (PascalError e) {
+		System.out.println(f + ": " + e.getMessage());
+	    }
+	}
+	if (sink == 42) System.out.println();
+    }
+
+    private static void measure(String fileName, int warmup, int iterations) {
+	// The size of the file:
+	Scanner sc = new Scanner(newContext(), fileName);
+	while (sc.curToken.kind != eofToken) sc.readNextToken();
+	int tokens = sc.getTokensRead(), lines = sc.getLinesRead();
+
+	for (int phase = SCAN;  phase <= GENERATE;  phase++) {
+	    for (int i = 0;  i < warmup;  i++) run(phase, fileName);
+	    long best = Long.MAX_VALUE, total = 0;
+	    for (int i = 0;  i < iterations;  i++) {
+		long t = run(phase, fileName);
+		best = Math.min(best, t);  total += t;
+	    }
+	    double mean = (double) total / iterations;
+	    System.out.println(String.format(Locale.ROOT,
+		"%-32s %-9s %9.2f %9.2f %12.0f %12.0f %12.0f",
+		new File(fileName).getName(), phaseNames[phase], best/1e6, mean/1e6,
+		tokens/(best/1e9), lines/(best/1e9), lines/(mean/1e9)));
+	}
+    }
+
+    /*
+     * Classifies the names of a file over and over, at least a million
+     * names per run, with nameKind and with the equals chain.
+     */
+    private static void measureNames(String fileName, int warmup, int iterations) {
+	ArrayList<String> found = new ArrayList<>();
+	Scanner sc = new Scanner(newContext(), fileName);
+	while (sc.curToken.kind != eofToken) {
+	    if (sc.curToken.kind == nameToken || sc.curToken.kind.isReservedWord())
+		found.add(sc.curToken.kind == nameToken ? sc.curToken.id
+			  : sc.curToken.kind.toString());
+	    sc.readNextToken();
+	}
+	if (found.isEmpty()) return;
+	String[] names = found.toArray(new String[0]);
+	int rounds = Math.max(1, 1000000 / names.length);
+	long count = (long) rounds * names.length;
+
+	for (int hashed = 1;  hashed >= 0;  hashed--) {
+	    for (int i = 0;  i < warmup;  i++) classify(names, rounds, hashed == 1);
+	    long best = Long.MAX_VALUE, total = 0;
+	    for (int i = 0;  i < iterations;  i++) {
+		long t = classify(names, rounds, hashed == 1);
+		best = Math.min(best, t);  total += t;
+	    }
+	    System.out.println(String.format(Locale.ROOT,
+		"%-32s %-9s %9.2f %9.2f %12.0f   %.1f ns/name (%d names)",
+		new File(fileName).getName(), hashed == 1 ? "nameKind" : "equals",
+		best/1e6, (double) total/iterations/1e6, count/(best/1e9),
+		(double) best/count, names.length));
+	}
+    }
+
+    // The two are kept apart, so the JIT compiles each loop on its own:
+    private static long classify(String[] names, int rounds, boolean hashed) {
+	long start = System.nanoTime();
+	sink += hashed ? classifyHashed(names, rounds) : classifyEquals(names, rounds);
+	return System.nanoTime() - start;
+    }
+
+    private static int classifyHashed(String[] names, int rounds) {
+	int n = 0;
+	for (int r = 0;  r < rounds;  r++) {
+	    for (String s: names) n += TokenKind.nameKind(s, 0, s.length()).ordinal();
+	}
+	return n;
+    }
+
+    private static int classifyEquals(String[] names, int rounds) {
+	int n = 0;
+	for (int r = 0;  r < rounds;  r++) {
+	    for (String s: names) n += equalsChain(s).ordinal();
+	}
+	return n;
+    }
+
+    // How Token(String, int) classified a name before TokenKind.nameKind:
+    private static TokenKind equalsChain(String s) {
+	if (s.equals("and"))            return andToken;
+	else if (s.equals("array"))     return arrayToken;
+	else if (s.equals("begin"))     return beginToken;
+	else if (s.equals("const"))     return constToken;
+	else if (s.equals("div"))       return divToken;
+	else if (s.equals("do"))        return doToken;
+	else if (s.equals("else"))      return elseToken;
+	else if (s.equals("end"))       return endToken;
+	else if (s.equals("function"))  return functionToken;
+	else if (s.equals("if"))        return ifToken;
+	else if (s.equals("mod"))       return modToken;
+	else if (s.equals("not"))       return notToken;
+	else if (s.equals("of"))        return ofToken;
+	else if (s.equals("or"))        return orToken;
+	else if (s.equals("procedure")) return procedureToken;
+	else if (s.equals("program"))   return programToken;
+	else if (s.equals("then"))      return thenToken;
+	else if (s.equals("type"))      return typeToken;
+	else if (s.equals("var"))       return varToken;
+	else if (s.equals("while"))     return whileToken;
+	else                            return nameToken;
+    }
+
+    /*
+     * Runs one phase from a new context.
+     * @return the time the phase itself took (in ns)
+     */
+    private static long run(int phase, String fileName) {
+	CompilationContext ctx = newContext();
+	long start = System.nanoTime();
+	Scanner s = new Scanner(ctx, fileName);
+	if (phase == SCAN) {
+	    while (s.curToken.kind != eofToken) s.readNextToken();
+	    sink += s.getTokensRead();
+	    return System.nanoTime() - start;
+	}
+
+	Program prog = Program.parse(s);
+	if (phase == PARSE) {
+	    long t = System.nanoTime() - start;
+	    sink += ctx.numNodes;
+	    return t;
+	}
+
+	start = System.nanoTime();
+	Library lib = ctx.library = new Library(ctx, -1);
+	prog.check(lib, lib);
+	if (phase == CHECK) {
+	    long t = System.nanoTime() - start;
+	    sink += ctx.numDecls;
+	    return t;
+	}
+
+	start = System.nanoTime();
+	CodeFile code = ctx.code = CodeFile.nullSink();
+	lib.genCode(code);  prog.genCode(code);
+	long t = System.nanoTime() - start;
+	sink += code.getNumInstrs();
+	return t;
+    }
+
+    /*
+     * Writes a program of each size, deleted when the JVM exits.
+     */
+    private static void generate(String sizes, long seed, String shape, String mix,
+	    ArrayList<String> files) {
+	try {
+	    Path dir = Files.createTempDirectory("pascal2100-bench");
+	    dir.toFile().deleteOnExit();
+	    for (String n: sizes.split(",")) {
+		File f = dir.resolve("gen-" + shape + "-" + mix + "-" + n + ".pas").toFile();
+		f.deleteOnExit();
+		new ProgramGenerator(seed, number(n), shape, mix).generate(f.getPath());
+		files.add(f.getPath());
+	    }
+	} catch (IllegalArgumentException e) {
+	    System.err.println(e.getMessage());
+	    usage();
+	} catch (IOException e) {
+	    System.err.println("Cannot write the generated programs: " + e.getMessage());
+	    System.exit(1);
+	}
+    }
+
+    private static CompilationContext newContext() {
+	return new CompilationContext(null, nullStream, nullStream);
+    }
+
+    private static int number(String s) {
+	try {
+	    return Math.max(0, Integer.parseInt(s));
+	} catch (NumberFormatException e) {
+	    usage();  return 0;
+	}
+    }
+
+    private static void addFiles(String name, ArrayList<String> files) {
+	Path p = Paths.get(name);
+	if (! Files.isDirectory(p)) {
+	    files.add(name);  return;
+	}
+	try (Stream<Path> s = Files.walk(p)) {
+	    s.filter(f -> f.toString().endsWith(".pas") && Files.isRegularFile(f))
+		.sorted().forEach(f -> files.add(f.toString()));
+	} catch (IOException e) {
+	    System.err.println("Cannot read the directory " + name + "!");
+	}
+    }
+
+    private static void usage() {
+	System.err.println("Usage: java no.uio.ifi.pascal2100.bench.Benchmark " +
+	    "[-warmup n] [-iterations n] [-names] [-generate n,...] [-seed n]\n" +
+	    "       [-shape deep|wide|flat] [-mix balanced|expr|decl] {file|directory}...");
+	System.exit(2);
+    }
+}
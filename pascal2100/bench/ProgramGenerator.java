@@ -0,0 +1,545 @@
+package no.uio.ifi.pascal2100.bench;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Writes large Pascal2100 programs to be used as input for the
+ * benchmarks. The programs follow the grammar of the parser classes
+ * (Program, Block, the declaration parts, ProcDecl and FuncDecl, the
+ * statements and Expression down to Factor), and they pass check.
+ * The same seed and options always give the same program.
+ *
+ * The shape says how the routines are laid out: deep gives routines
+ * nested as far as the display allows, wide gives many routines side
+ * by side with now and then one inside another, and flat gives no
+ * routines inside routines at all. The i386 code generator places the
+ * code of an inner routine right after the enter of the routine
+ * around it, so the program runs into it and crashes. Only flat
+ * programs may therefore be compiled for i386 and run; the others
+ * are meant for the front end, the code generators on their own,
+ * -target x86_64, and -run, -vm and -jvm.
+ *
+ * The mix says what the blocks are made of: expr gives long
+ * and deeply nested expressions, decl gives many constants, types and
+ * variables, and balanced lies in between.
+ *
+ * A routine only calls the routines declared before it, and every
+ * while loop counts to a small limit with a variable of its own, so
+ * the programs always terminate. The number of calls a routine may
+ * lead to is bounded as well, so they also run in reasonable time
+ * with -run, -vm or -jvm. User-defined enum types and their
+ * variables are declared, but their literals are never used, since
+ * check does not know them.
+ *
+ * Usage: java no.uio.ifi.pascal2100.bench.ProgramGenerator
+ *            [-seed n] [-lines n] [-shape deep|wide|flat]
+ *            [-mix balanced|expr|decl] [-o file]
+ */
+public class ProgramGenerator {
+    // The routines may be nested this deep, so the deepest is on level 7:
+    private static final int maxRoutineDepth = 5;
+    // How many calls a routine and the program may lead to, counting
+    // every while loop as 4 rounds:
+    private static final long routineBudget = 1000, programBudget = 100000;
+
+    private final Random rnd;
+    private final int targetLines;
+    private final boolean deep, flat;
+    private PrintWriter out;
+    private int numLines = 0, indent = 0, nextId = 1;
+    // The calls made by the statements generated so far, and the loop
+    // level of the current statement:
+    private long cost, budget;
+    private int loops;
+
+    // What the mix says about the blocks:
+    private int minConsts, maxConsts, minTypes, maxTypes, minVars, maxVars;
+    private int minStatms, maxStatms, maxStatmDepth, exprDepth, maxChain;
+
+    private static class Routine {
+	final String name;
+	final int numParams;
+	final boolean isFunc;
+	final long cost;
+
+	Routine(String name, int numParams, boolean isFunc, long cost) {
+	    this.name = name;  this.numParams = numParams;  this.isFunc = isFunc;
+	    this.cost = cost;
+	}
+    }
+
+    private static class Array {
+	final String name;
+	final int low, high;
+
+	Array(String name, int low, int high) {
+	    this.name = name;  this.low = low;  this.high = high;
+	}
+    }
+
+    // What is declared in a block:
+    private static class Scope {
+	final Scope outer;
+	final ArrayList<String> ints = new ArrayList<>(), params = new ArrayList<>(),
+	    bools = new ArrayList<>(), consts = new ArrayList<>(),
+	    counters = new ArrayList<>();
+	final ArrayList<Array> arrays = new ArrayList<>();
+	final ArrayList<Routine> routines = new ArrayList<>();
+
+	Scope(Scope outer) {
+	    this.outer = outer;
+	}
+    }
+
+    // What a statement may use, collected from a block and those around it:
+    private static class View {
+	final ArrayList<String> ints = new ArrayList<>(), readable = new ArrayList<>(),
+	    bools = new ArrayList<>();
+	final ArrayList<Array> arrays = new ArrayList<>();
+	final ArrayList<Routine> procs = new ArrayList<>(), funcs = new ArrayList<>();
+	ArrayList<String> counters;
+
+	View(Scope sc) {
+	    counters = sc.counters;
+	    for (Scope s = sc;  s != null;  s = s.outer) {
+		ints.addAll(s.ints);  bools.addAll(s.bools);  arrays.addAll(s.arrays);
+		readable.addAll(s.ints);  readable.addAll(s.params);
+		readable.addAll(s.consts);
+		for (Routine r: s.routines) {
+		    if (r.isFunc) funcs.add(r); else procs.add(r);
+		}
+	    }
+	}
+    }
+
+    /**
+     * @param seed        the seed of the random numbers
+     * @param targetLines about how many lines the program should have
+     * @param shape       "deep", "wide" or "flat"
+     * @param mix         "balanced", "expr" or "decl"
+     */
+    public ProgramGenerator(long seed, int targetLines, String shape, String mix) {
+	rnd = new Random(seed);
+	this.targetLines = targetLines;
+	deep = shape.equals("deep");
+	flat = shape.equals("flat");
+	if (! deep && ! flat && ! shape.equals("wide"))
+	    throw new IllegalArgumentException("Unknown shape " + shape);
+
+	if (mix.equals("balanced")) {
+	    setBlocks(0, 2, 0, 1, 2, 5, 4, 8, 2);
+	    exprDepth = 2;  maxChain = 3;
+	} else if (mix.equals("expr")) {
+	    setBlocks(0, 1, 0, 0, 2, 3, 4, 8, 2);
+	    exprDepth = 4;  maxChain = 5;
+	} else if (mix.equals("decl")) {
+	    setBlocks(3, 8, 2, 5, 6, 15, 1, 3, 1);
+	    exprDepth = 1;  maxChain = 2;
+	} else {
+	    throw new IllegalArgumentException("Unknown mix " + mix);
+	}
+	if (deep) ++maxStatmDepth;
+    }
+
+    private void setBlocks(int minC, int maxC, int minT, int maxT, int minV, int maxV,
+	    int minS, int maxS, int statmDepth) {
+	minConsts = minC;  maxConsts = maxC;  minTypes = minT;  maxTypes = maxT;
+	minVars = minV;  maxVars = maxV;  minStatms = minS;  maxStatms = maxS;
+	maxStatmDepth = statmDepth;
+    }
+
+    public static void main(String arg[]) throws IOException {
+	long seed = 1;
+	int lines = 1000;
+	String shape = "wide", mix = "balanced", fileName = null;
+
+	try {
+	    for (int i = 0;  i < arg.length;  i++) {
+		String a = arg[i];
+		if (a.equals("-seed") && i+1 < arg.length) {
+		    seed = Long.parseLong(arg[++i]);
+		} else if (a.equals("-lines") && i+1 < arg.length) {
+		    lines = Integer.parseInt(arg[++i]);
+		} else if (a.equals("-shape") && i+1 < arg.length) {
+		    shape = arg[++i];
+		} else if (a.equals("-mix") && i+1 < arg.length) {
+		    mix = arg[++i];
+		} else if (a.equals("-o") && i+1 < arg.length) {
+		    fileName = arg[++i];
+		} else {
+		    usage();
+		}
+	    }
+	    ProgramGenerator g = new ProgramGenerator(seed, lines, shape, mix);
+	    if (fileName == null) {
+		PrintWriter w = new PrintWriter(new BufferedWriter(
+		    new OutputStreamWriter(System.out), 1 << 16));
+		g.generate(w);  w.flush();
+	    } else {
+		g.generate(fileName);
+	    }
+	} catch (IllegalArgumentException e) {
+	    System.err.println(e.getMessage());
+	    usage();
+	}
+    }
+
+    private static void usage() {
+	System.err.println("Usage: java no.uio.ifi.pascal2100.bench.ProgramGenerator " +
+	    "[-seed n] [-lines n] [-shape deep|wide|flat] [-mix balanced|expr|decl] [-o file]");
+	System.exit(2);
+    }
+
+    /**
+     * Writes the program to a file.
+     * @return the number of lines written
+     */
+    public int generate(String fileName) throws IOException {
+	try (PrintWriter w = new PrintWriter(new BufferedWriter(
+		new FileWriter(fileName), 1 << 16))) {
+	    return generate(w);
+	}
+    }
+
+    /**
+     * Writes the program.
+     * @return the number of lines written
+     */
+    public int generate(PrintWriter w) {
+	out = w;
+	Scope global = new Scope(null);
+	line("program Gen" + nextId++ + ";");
+	declarations(global);
+	// The main program takes about a dozen lines.
+	do {
+	    routine(global, 0);
+	} while (numLines < targetLines - 12);
+	statements(global, true, null);
+	return numLines;
+    }
+
+
+    private void line(String s) {
+	for (int i = 0;  i < indent;  i++) out.print("   ");
+	out.println(s);
+	++numLines;
+    }
+
+    private String name(String prefix) {
+	return prefix + nextId++;
+    }
+
+    private int between(int low, int high) {
+	return low + rnd.nextInt(high - low + 1);
+    }
+
+    private <T> T pick(ArrayList<T> l) {
+	return l.get(rnd.nextInt(l.size()));
+    }
+
+
+    /*
+     * The constant, type and variable parts of a block.
+     */
+    private void declarations(Scope sc) {
+	int n = between(minConsts, maxConsts);
+	if (n > 0) {
+	    line("const");
+	    ++indent;
+	    for (int i = 0;  i < n;  i++) {
+		String c = name("C");
+		line(c + " = " + rnd.nextInt(1000) + ";");
+		sc.consts.add(c);
+	    }
+	    --indent;
+	}
+
+	// A range type and an array type over it, and sometimes an enum:
+	ArrayList<String> arrayTypes = new ArrayList<>();
+	ArrayList<int[]> bounds = new ArrayList<>();
+	ArrayList<String> enumTypes = new ArrayList<>();
+	n = between(minTypes, maxTypes);
+	if (n > 0) {
+	    line("type");
+	    ++indent;
+	    for (int i = 0;  i < n;  i++) {
+		int low = between(0, 3), high = low + between(3, 15);
+		String r = name("R"), a = name("A");
+		line(r + " = " + low + ".." + high + ";");
+		line(a + " = array [" + r + "] of integer;");
+		arrayTypes.add(a);  bounds.add(new int[] { low, high });
+		if (rnd.nextInt(3) == 0) {
+		    String e = name("E");
+		    StringBuilder sb = new StringBuilder(e + " = (");
+		    int numLits = between(2, 5);
+		    for (int k = 0;  k < numLits;  k++)
+			sb.append(k > 0 ? ", " : "").append(e.toLowerCase()).append((char) ('a'+k));
+		    line(sb.append(");").toString());
+		    enumTypes.add(e);
+		}
+	    }
+	    --indent;
+	}
+
+	line("var");
+	++indent;
+	n = between(minVars, maxVars);
+	for (int i = 0;  i < n;  i++) {
+	    int kind = rnd.nextInt(10);
+	    if (kind < 6 || i == 0) {
+		String v = name("v");
+		line(v + " : integer;");
+		sc.ints.add(v);
+	    } else if (kind < 8) {
+		String b = name("b");
+		line(b + " : boolean;");
+		sc.bools.add(b);
+	    } else if (kind == 8 && ! arrayTypes.isEmpty()) {
+		int k = rnd.nextInt(arrayTypes.size());
+		String a = name("a");
+		line(a + " : " + arrayTypes.get(k) + ";");
+		sc.arrays.add(new Array(a, bounds.get(k)[0], bounds.get(k)[1]));
+	    } else if (kind == 9 && ! enumTypes.isEmpty()) {
+		line(name("u") + " : " + pick(enumTypes) + ";");
+	    } else {
+		int low = between(0, 3), high = low + between(3, 15);
+		String a = name("a");
+		line(a + " : array [" + low + ".." + high + "] of integer;");
+		sc.arrays.add(new Array(a, low, high));
+	    }
+	}
+	// Every level of while loops has its own counter:
+	for (int i = 0;  i < maxStatmDepth + 1;  i++) {
+	    String k = name("k");
+	    line(k + " : integer;");
+	    sc.counters.add(k);
+	}
+	--indent;
+    }
+
+    /*
+     * A procedure or function with its inner routines. Every routine
+     * has parameters, since the code for one without them is not
+     * called correctly.
+     */
+    private void routine(Scope outer, int depth) {
+	boolean isFunc = rnd.nextBoolean();
+	String name = name(isFunc ? "F" : "P");
+	Scope sc = new Scope(outer);
+	StringBuilder head = new StringBuilder(isFunc ? "function " : "procedure ");
+	head.append(name).append(" (");
+	int numParams = between(1, deep ? 3 : 4);
+	for (int i = 0;  i < numParams;  i++) {
+	    String p = name("p");
+	    head.append(i > 0 ? "; " : "").append(p).append(" : integer");
+	    sc.params.add(p);
+	}
+	head.append(isFunc ? ") : integer;" : ");");
+	line(head.toString());
+	declarations(sc);
+
+	int numInner = 0;
+	if (depth < maxRoutineDepth && ! flat) {
+	    if (deep)
+		numInner = depth == 0 ? between(1, 2) : 1;
+	    else if (depth == 0 && rnd.nextInt(4) == 0)
+		numInner = 1;
+	}
+	++indent;
+	for (int i = 0;  i < numInner;  i++)
+	    routine(sc, deep ? depth + 1 : maxRoutineDepth);
+	--indent;
+
+	statements(sc, false, isFunc ? name : null);
+	outer.routines.add(new Routine(name, numParams, isFunc, 1 + cost));
+    }
+
+    /*
+     * The statement part of a block. A function ends by setting its
+     * value.
+     */
+    private void statements(Scope sc, boolean isProgram, String func) {
+	View v = new View(sc);
+	cost = 0;  budget = isProgram ? programBudget : routineBudget;
+	line("begin");
+	++indent;
+	ArrayList<String> statms = new ArrayList<>();
+	initialize(sc, statms);
+	int n = between(minStatms, maxStatms);
+	for (int i = 0;  i < n;  i++)
+	    statms.add(statement(v, 0, 0));
+	if (func != null)
+	    statms.add(func + " := " + intExpr(v, exprDepth));
+	else if (isProgram)
+	    statms.add("write(" + intExpr(v, exprDepth) + ", eol)");
+	for (int i = 0;  i < statms.size();  i++)
+	    line(statms.get(i) + (i < statms.size()-1 ? ";" : ""));
+	--indent;
+	line(isProgram ? "end." : "end;");
+    }
+
+    /*
+     * Every variable of the block, and every element of its arrays, is
+     * given a value before anything is read. The compiled code does
+     * not clear the frame, so otherwise the output would depend on
+     * what was left on the stack.
+     */
+    private void initialize(Scope sc, ArrayList<String> statms) {
+	for (String x: sc.ints)
+	    statms.add(x + " := " + rnd.nextInt(1000));
+	for (String b: sc.bools)
+	    statms.add(b + " := " + (rnd.nextBoolean() ? "true" : "false"));
+	for (Array a: sc.arrays) {
+	    for (int i = a.low;  i <= a.high;  i++)
+		statms.add(a.name + "[" + i + "] := " + rnd.nextInt(1000));
+	}
+	for (String k: sc.counters)
+	    statms.add(k + " := 0");
+    }
+
+    /*
+     * A statement, which may span several lines; the lines are
+     * counted when the statement list is written.
+     */
+    private String statement(View v, int depth, int loops) {
+	this.loops = loops;
+	String ind = "   ".repeat(indent + depth);
+	Routine r;
+	while (true) {
+	    int kind = rnd.nextInt(100);
+	    if (kind < 35) {
+		return pick(v.ints) + " := " + intExpr(v, exprDepth);
+	    } else if (kind < 43 && ! v.bools.isEmpty()) {
+		return pick(v.bools) + " := " + boolExpr(v, exprDepth);
+	    } else if (kind < 53 && ! v.arrays.isEmpty()) {
+		return element(pick(v.arrays)) + " := " + intExpr(v, exprDepth);
+	    } else if (kind < 65 && (r = affordable(v.procs)) != null) {
+		return call(v, r, 1);
+	    } else if (kind < 73) {
+		return "write(" + intExpr(v, 1) + ", ' ', " + intExpr(v, 1) + ", eol)";
+	    } else if (kind < 85 && depth < maxStatmDepth) {
+		String s = "if " + boolExpr(v, exprDepth) + " then\n" + ind + "   " +
+		    statement(v, depth+1, loops);
+		++numLines;
+		if (rnd.nextBoolean()) {
+		    s += "\n" + ind + "else\n" + ind + "   " + statement(v, depth+1, loops);
+		    numLines += 2;
+		}
+		return s;
+	    } else if (kind < 93 && depth < maxStatmDepth && loops < v.counters.size()) {
+		String k = v.counters.get(loops);
+		String s = "begin\n" + ind + "   " + k + " := 0;\n" +
+		    ind + "   while " + k + " < " + between(2, 4) + " do\n" +
+		    ind + "   begin\n" +
+		    ind + "      " + statement(v, depth+2, loops+1) + ";\n" +
+		    ind + "      " + k + " := " + k + " + 1\n" +
+		    ind + "   end\n" + ind + "end";
+		numLines += 7;
+		return s;
+	    } else if (kind >= 93 && depth < maxStatmDepth) {
+		String s = "begin\n" + ind + "   " + statement(v, depth+1, loops) + ";\n" +
+		    ind + "   " + statement(v, depth+1, loops) + "\n" + ind + "end";
+		numLines += 3;
+		return s;
+	    }
+	}
+    }
+
+    private String element(Array a) {
+	return a.name + "[" + between(a.low, a.high) + "]";
+    }
+
+    /*
+     * Picks a routine which may be called within the budget, or null if
+     * a few tries find none.
+     */
+    private Routine affordable(ArrayList<Routine> l) {
+	long rounds = 1L << (2*loops);
+	for (int i = 0;  i < 4 && ! l.isEmpty();  i++) {
+	    Routine r = pick(l);
+	    if (cost + r.cost * rounds <= budget)
+		return r;
+	}
+	return null;
+    }
+
+    private String call(View v, Routine r, int depth) {
+	cost += r.cost << (2*loops);
+	StringBuilder sb = new StringBuilder(r.name).append('(');
+	for (int i = 0;  i < r.numParams;  i++)
+	    sb.append(i > 0 ? ", " : "").append(intExpr(v, depth));
+	return sb.append(')').toString();
+    }
+
+
+    /*
+     * An integer expression: a chain of terms with + and -, where each
+     * term is a chain of factors with *, div and mod.
+     */
+    private String intExpr(View v, int depth) {
+	StringBuilder sb = new StringBuilder();
+	if (rnd.nextInt(8) == 0) sb.append('-');
+	int n = between(1, maxChain);
+	for (int i = 0;  i < n;  i++) {
+	    if (i > 0) sb.append(rnd.nextBoolean() ? " + " : " - ");
+	    term(v, depth, sb);
+	}
+	return sb.toString();
+    }
+
+    private void term(View v, int depth, StringBuilder sb) {
+	intFactor(v, depth, sb);
+	int n = rnd.nextInt(maxChain);
+	for (int i = 0;  i < n;  i++) {
+	    // Only a constant divisor, so the program never divides by zero.
+	    switch (rnd.nextInt(3)) {
+	    case 0:
+		sb.append(" * ");  intFactor(v, depth, sb);  break;
+	    case 1:
+		sb.append(" div ").append(between(1, 9));  break;
+	    default:
+		sb.append(" mod ").append(between(1, 9));  break;
+	    }
+	}
+    }
+
+    private void intFactor(View v, int depth, StringBuilder sb) {
+	Routine r;
+	int kind = rnd.nextInt(100);
+	if (depth > 0 && kind < 25) {
+	    sb.append('(').append(intExpr(v, depth-1)).append(')');
+	} else if (depth > 0 && kind < 35 && (r = affordable(v.funcs)) != null) {
+	    sb.append(call(v, r, depth-1));
+	} else if (kind < 45 && ! v.arrays.isEmpty()) {
+	    sb.append(element(pick(v.arrays)));
+	} else if (kind < 60) {
+	    sb.append(rnd.nextInt(1000));
+	} else {
+	    sb.append(pick(v.readable));
+	}
+    }
+
+    /*
+     * A boolean expression: comparisons joined by and and or, perhaps
+     * negated with not.
+     */
+    private String boolExpr(View v, int depth) {
+	StringBuilder sb = new StringBuilder();
+	int n = between(1, Math.min(maxChain, 3));
+	for (int i = 0;  i < n;  i++) {
+	    if (i > 0) sb.append(rnd.nextBoolean() ? " and " : " or ");
+	    if (rnd.nextInt(4) == 0) sb.append("not ");
+	    if (! v.bools.isEmpty() && rnd.nextInt(5) == 0) {
+		sb.append(pick(v.bools));
+	    } else {
+		String[] rel = { " = ", " <> ", " < ", " <= ", " > ", " >= " };
+		sb.append('(').append(intExpr(v, Math.max(0, depth-1)))
+		    .append(rel[rnd.nextInt(rel.length)])
+		    .append(intExpr(v, Math.max(0, depth-1))).append(')');
+	    }
+	}
+	return sb.toString();
+    }
+}
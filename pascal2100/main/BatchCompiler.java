@@ -0,0 +1,131 @@
+package no.uio.ifi.pascal2100.main;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Compiles many files in one JVM (-batch), on a ForkJoinPool with one
+ * thread per core unless -j says otherwise. The options are given to
+ * every compilation, and a directory stands for all the .pas files
+ * below it. Every file gets its own CompilationContext, log file and
+ * code file, and an error in one file does not stop the others.
+ *
+ * What each compilation writes is kept and printed in the order the
+ * files were given. At last comes a summary of the throughput and of
+ * the time spent in each phase, summed over all the files.
+ */
+public class BatchCompiler {
+
+    // What became of one file:
+    private static class Result {
+	String fileName, output;
+	int status, lines;
+	long phaseTime[];
+    }
+
+    static int run(String arg[]) {
+	ArrayList<String> options = new ArrayList<>();
+	ArrayList<String> files = new ArrayList<>();
+	int threads = Runtime.getRuntime().availableProcessors();
+
+	for (int i = 0;  i < arg.length;  i++) {
+	    String a = arg[i];
+	    if (a.equals("-j") && i+1 < arg.length) {
+		try {
+		    threads = Integer.parseInt(arg[++i]);
+		} catch (NumberFormatException e) {
+		    Main.usage();
+		}
+		if (threads < 1) Main.usage();
+	    } else if ((a.equals("-target") || a.equals("-emit")) && i+1 < arg.length) {
+		options.add(a);  options.add(arg[++i]);
+	    } else if (a.startsWith("-")) {
+		options.add(a);
+	    } else {
+		addFiles(a, files);
+	    }
+	}
+	if (files.isEmpty()) Main.usage();
+
+	ForkJoinPool pool = new ForkJoinPool(threads);
+	ArrayList<Future<Result>> results = new ArrayList<>();
+	long start = System.nanoTime();
+	for (String f: files)
+	    results.add(pool.submit(() -> compile(options, f)));
+
+	int numFailed = 0;
+	long lines = 0;
+	long phaseTime[] = new long[CompilationContext.NUM_PHASES];
+	for (Future<Result> fr: results) {
+	    Result r;
+	    try {
+		r = fr.get();
+	    } catch (Exception e) {
+		Main.error("PANIC! The batch compilation failed: " + e);
+		return 2;
+	    }
+	    System.out.println("==> " + r.fileName + " <==");
+	    System.out.print(r.output);
+	    System.out.flush();
+	    if (r.status != 0) ++numFailed;
+	    lines += r.lines;
+	    for (int p = 0;  p < phaseTime.length;  p++)
+		phaseTime[p] += r.phaseTime[p];
+	}
+	double secs = (System.nanoTime() - start) / 1e9;
+	pool.shutdown();
+
+	System.out.println();
+	System.out.println(String.format(Locale.ROOT,
+	    "Compiled %d files (%d failed) with %d threads in %.2f s: %.1f files/s, %.0f lines/s",
+	    files.size(), numFailed, threads, secs, files.size()/secs, lines/secs));
+	System.out.println("Time per phase, summed over all files:");
+	for (int p = 0;  p < phaseTime.length;  p++) {
+	    if (phaseTime[p] > 0)
+		System.out.println(String.format(Locale.ROOT, "  %-10s %9.3f s",
+		    CompilationContext.phaseNames[p], phaseTime[p]/1e9));
+	}
+	return numFailed > 0 ? 1 : 0;
+    }
+
+    private static void addFiles(String name, ArrayList<String> files) {
+	Path p = Paths.get(name);
+	if (! Files.isDirectory(p)) {
+	    files.add(name);  return;
+	}
+	try (Stream<Path> s = Files.walk(p)) {
+	    s.filter(f -> f.toString().endsWith(".pas") && Files.isRegularFile(f))
+		.sorted().forEach(f -> files.add(f.toString()));
+	} catch (IOException e) {
+	    Main.error("Cannot read the directory " + name + "!");
+	}
+    }
+
+    private static Result compile(ArrayList<String> options, String fileName) {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	PrintStream ps = new PrintStream(buf, true);
+	CompilationContext ctx = new CompilationContext(null, ps, ps);
+	ArrayList<String> a = new ArrayList<>(options);
+	a.add(fileName);
+
+	Result r = new Result();
+	r.fileName = fileName;
+	try {
+	    r.status = Main.compile(ctx, a.toArray(new String[0]));
+	} catch (RuntimeException | StackOverflowError e) {
+	    ps.println();
+	    ps.println("PANIC! The compiler failed: " + e);
+	    r.status = 2;
+	}
+	ps.flush();
+	r.output = buf.toString();
+	r.lines = ctx.sourceLines;
+	r.phaseTime = ctx.phaseTime;
+	return r;
+    }
+}
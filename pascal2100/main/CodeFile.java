@@ -2,17 +2,66 @@ package no.uio.ifi.pascal2100.main;
 
 import java.io.*;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 
 public class CodeFile {
     private String codeFileName;
     private PrintWriter code;
+    private boolean emitObject;  // An ELF object file instead of assembly
+    private boolean discard = false;  // Nothing is written (nullSink)
     private int numLabels = 0;
 
+    // The instructions are kept here and written when the file is finished.
+    InstrList instrs = new InstrList();
+
+    // Expressions are generated by the register allocator (-regalloc).
+    boolean allocRegisters = false;
+
+    // The code generator may take shortcuts of its own (-O).
+    boolean optimizing = false;
+
+    // The code is for x86_64 instead of i386 (-target x86_64).
+    boolean target64 = false;
+
+    // Every routine is generated as a part of its own on another thread
+    // (-pargen). A part numbers its labels in a namespace of its own,
+    // such as "f_3.1" and ".L3.0001", so the code is the same however
+    // the threads are scheduled. The parts are spliced in when the code
+    // is finished, at the place where they were started.
+    boolean parallel = false;
+    private final String namespace;
+    private final ArrayList<Part> parts = new ArrayList<>();
+
+    private static class Part {
+	final int at;  // Where in the instructions of its parent it goes
+	final CodeFile file;
+	ForkJoinTask<?> task;
+
+	Part(int at, CodeFile file) {
+	    this.at = at;  this.file = file;
+	}
+    }
+
+    // Every line is built here, padded by hand, and written in one go.
+    private final StringBuilder line = new StringBuilder(128);
+    private char[] lineChars = new char[128];
+    private static final String newLine = System.lineSeparator();
+
     CodeFile(String fName) {
-	codeFileName = fName;
+	this(fName, false);
+    }
+
+    CodeFile(String fName, boolean object) {
+	codeFileName = fName;  emitObject = object;  namespace = "";
+	if (object) return;
 	try {
-	    code = new PrintWriter(fName);
+	    code = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+	        new FileOutputStream(fName)), 1 << 16));
 	} catch (FileNotFoundException e) {
 	    Main.error("Cannot create code file " + fName + "!");
 	}
@@ -20,69 +69,283 @@ public class CodeFile {
 	    new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
     }
 
+    /**
+     * A code file which collects the code but is never written, so the
+     * code generator may be measured on its own. No file is opened,
+     * and finish only splices in the parts of -pargen.
+     */
+    public static CodeFile nullSink() {
+	return new CodeFile();
+    }
+
+    private CodeFile() {
+	codeFileName = "(none)";  namespace = "";  discard = true;
+    }
+
+    private CodeFile(CodeFile parent, String ns) {
+	codeFileName = parent.codeFileName;  namespace = ns;
+	allocRegisters = parent.allocRegisters;  optimizing = parent.optimizing;
+	target64 = parent.target64;  parallel = true;
+    }
+
+    /**
+     * Generates a part of the code, such as a routine, at the current
+     * place. Without -pargen this is just a call of gen; with it, gen
+     * runs on a ForkJoinPool thread with a CodeFile of its own. The
+     * labels other code refers to must be chosen before the part is
+     * started.
+     */
+    public void genPart(Consumer<CodeFile> gen) {
+	if (! parallel) {
+	    gen.accept(this);  return;
+	}
+	Part p = new Part(instrs.size(),
+	    new CodeFile(this, namespace + (++numLabels) + "."));
+	p.task = ForkJoinTask.adapt(() -> {
+		gen.accept(p.file);  p.file.joinParts();
+	    }).fork();
+	parts.add(p);
+    }
+
+    /*
+     * Waits for the parts and splices their code into this one.
+     */
+    private void joinParts() {
+	if (parts.isEmpty()) return;
+	InstrList all = new InstrList();
+	int from = 0;
+	for (Part p : parts) {
+	    p.task.join();
+	    all.addAll(instrs, from, p.at);
+	    all.addAll(p.file.instrs, 0, p.file.instrs.size());
+	    from = p.at;
+	}
+	all.addAll(instrs, from, instrs.size());
+	instrs = all;  parts.clear();
+    }
+
+    /**
+     * Runs the peephole optimizer over the code generated so far.
+     */
+    void optimize() {
+	joinParts();
+	new Peephole(instrs).optimize();
+    }
+
     void finish() {
+	joinParts();
+	if (discard) return;
+	if (emitObject) {
+	    try {
+		new ObjectFile(instrs).write(codeFileName);
+	    } catch (IOException e) {
+		Main.error("Cannot create code file " + codeFileName + "!");
+	    }
+	    return;
+	}
+	for (int i = 0;  i < instrs.size();  i++)
+	    printInstr(i);
 	code.close();
     }
 
+    /**
+     * @return the number of instructions in the code, not counting
+     *         labels, directives and those the optimizer removed
+     */
+    public int getNumInstrs() {
+	int n = 0;
+	for (int i = 0;  i < instrs.size();  i++) {
+	    if (instrs.kind(i) == InstrList.INSTR && ! instrs.op(i).isEmpty()
+		    && ! instrs.op(i).startsWith("."))
+		++n;
+	}
+	return n;
+    }
+
     public String identify() {
 	return "Code file named " + codeFileName;
     }
 
+    public boolean isAllocatingRegisters() {
+	return allocRegisters;
+    }
+
+    public boolean isOptimizing() {
+	return optimizing;
+    }
+
+    public boolean isTarget64() {
+	return target64;
+    }
+
+    public boolean isParallel() {
+	return parallel;
+    }
+
 
     public String getLabel(String origName) {
-	return origName + "_" + (++numLabels);
+	return origName + "_" + namespace + (++numLabels);
     }
 
     public String getLocalLabel() {
-	return String.format(".L%04d", ++numLabels);
+	return ".L" + namespace + String.format("%04d", ++numLabels);
+    }
+
+
+    /**
+     * Appends s to the current line, padded with spaces to the given
+     * width, just like printf's "%-<width>s".
+     */
+    private void pad(String s, int width) {
+	line.append(s);
+	for (int i = s.length();  i < width;  i++) line.append(' ');
+    }
+
+    private void endLine() {
+	line.append(newLine);
+	int n = line.length();
+	if (n > lineChars.length) lineChars = new char[2*n];
+	line.getChars(0, n, lineChars, 0);
+	code.write(lineChars, 0, n);
+	line.setLength(0);
     }
 
 
     private void printLabel(String lab, boolean justALabel) {
 	if (lab.length() > 6) {
-	    code.print(lab + ":");
-	    if (! justALabel) code.print("\n        ");
+	    line.append(lab).append(':');
+	    if (! justALabel) line.append("\n        ");
 	} else if (lab.length() > 0) {
-	    code.printf("%-8s", lab+":");
+	    line.append(lab).append(':');
+	    for (int i = lab.length()+1;  i < 8;  i++) line.append(' ');
 	} else {
-	    code.print("        ");
+	    line.append("        ");
 	}
     }
 
 
     public void genDirective(String directive, String param) {
-	code.printf("%-7s %-7s %-15s", " ", directive, param);
-	code.println();
+	instrs.add(InstrList.DIRECTIVE, "", directive, param, "");
     }
 
 
     public void genInstr(String lab, String instr, 
 	 		 String arg, String comment) {
-	printLabel(lab, (instr+arg+comment).equals(""));
-	code.printf("%-7s %-23s ", instr, arg);
-	if (comment.length() > 0) {
-	    code.print("# " + comment);
-	}
-	code.println();
+	instrs.add(InstrList.INSTR, lab, instr, arg, comment);
     }
 
 
     public void genString(String name, String s, String comment) {
 	genDirective(".data", "");
-	printLabel(name, false);
-	code.printf(".asciz   \"");
-	for (int i = 0;  i < s.length();  i++) {
-	    if (s.charAt(i) == '\'')
-		code.print("\\");
-	    code.print(s.charAt(i));
-	}
-	code.print("\"");
+	instrs.add(InstrList.STRING, name, ".asciz", s, comment);
+	genDirective(".align", "2");
+	genDirective(".text", "");
+    }
+
+
+    private void printInstr(int i) {
+	String lab = instrs.label(i), op = instrs.op(i),
+	    arg = instrs.arg(i), comment = instrs.comment(i);
 
+	switch (instrs.kind(i)) {
+	case InstrList.INSTR:
+	    printLabel(lab, op.isEmpty() && arg.isEmpty() && comment.isEmpty());
+	    pad(op, 7);  line.append(' ');
+	    pad(arg, 23);  line.append(' ');
+	    break;
+	case InstrList.DIRECTIVE:
+	    line.append("        ");
+	    pad(op, 7);  line.append(' ');
+	    pad(arg, 15);
+	    break;
+	case InstrList.STRING:
+	    printLabel(lab, false);
+	    line.append(op).append("   \"");
+	    for (int c = 0;  c < arg.length();  c++) {
+		if (arg.charAt(c) == '\'')
+		    line.append('\\');
+		line.append(arg.charAt(c));
+	    }
+	    line.append('"');
+	    break;
+	default:
+	    return;
+	}
 	if (comment.length() > 0) {
-	    code.print("# " + comment);
+	    line.append("# ").append(comment);
 	}
-	code.println();
-	genDirective(".align", "2");
-	genDirective(".text", "");
+	endLine();
     }
 }
+
+
+/**
+ * The instructions of a code file, in the order they were generated.
+ * Each instruction is a row in a set of parallel arrays (kind, label,
+ * opcode, operands and comment), so a large program costs a few
+ * references per instruction and no extra object. The rows are stored
+ * in fixed-size blocks, so the list never has to be copied as it
+ * grows. The same operands and comments occur again and again, so
+ * only one copy of each is kept.
+ */
+class InstrList {
+    static final byte INSTR = 0, DIRECTIVE = 1, STRING = 2, DELETED = 3;
+
+    private static final int blockBits = 12, blockSize = 1 << blockBits,
+	blockMask = blockSize - 1;
+
+    private byte[][] kinds = new byte[16][];
+    private String[][] labels = new String[16][], ops = new String[16][],
+	args = new String[16][], comments = new String[16][];
+    private int numInstrs = 0;
+    private final HashMap<String,String> shared = new HashMap<>();
+
+    void add(byte kind, String lab, String op, String arg, String comment) {
+	int b = numInstrs >>> blockBits, i = numInstrs & blockMask;
+	if (i == 0) newBlock(b);
+	kinds[b][i] = kind;  labels[b][i] = lab;  ops[b][i] = op;
+	args[b][i] = share(arg);  comments[b][i] = share(comment);
+	++numInstrs;
+    }
+
+    private void newBlock(int b) {
+	if (b == kinds.length) {
+	    int n = 2*b;
+	    kinds = Arrays.copyOf(kinds, n);
+	    labels = Arrays.copyOf(labels, n);  ops = Arrays.copyOf(ops, n);
+	    args = Arrays.copyOf(args, n);  comments = Arrays.copyOf(comments, n);
+	}
+	kinds[b] = new byte[blockSize];
+	labels[b] = new String[blockSize];  ops[b] = new String[blockSize];
+	args[b] = new String[blockSize];  comments[b] = new String[blockSize];
+    }
+
+    private String share(String s) {
+	String old = shared.putIfAbsent(s, s);
+	return old != null ? old : s;
+    }
+
+    int size() {
+	return numInstrs;
+    }
+
+    void addAll(InstrList l, int from, int to) {
+	for (int i = from;  i < to;  i++)
+	    add(l.kind(i), l.label(i), l.op(i), l.arg(i), l.comment(i));
+    }
+
+    void set(int i, String op, String arg) {
+	ops[i >>> blockBits][i & blockMask] = op;
+	args[i >>> blockBits][i & blockMask] = share(arg);
+    }
+
+    void delete(int i) {
+	kinds[i >>> blockBits][i & blockMask] = DELETED;
+    }
+
+    byte kind(int i) { return kinds[i >>> blockBits][i & blockMask]; }
+    String label(int i) { return labels[i >>> blockBits][i & blockMask]; }
+    String op(int i) { return ops[i >>> blockBits][i & blockMask]; }
+    String arg(int i) { return args[i >>> blockBits][i & blockMask]; }
+    String comment(int i) { return comments[i >>> blockBits][i & blockMask]; }
+}
@@ -0,0 +1,104 @@
+package no.uio.ifi.pascal2100.main;
+
+import no.uio.ifi.pascal2100.parser.Library;
+import no.uio.ifi.pascal2100.scanner.NameTable;
+import no.uio.ifi.pascal2100.scanner.Scanner;
+import java.io.*;
+
+/**
+ * Everything which belongs to one compilation: the options, the log
+ * file, the names, the scanner, the library, the code file and where
+ * the messages go. Nothing is kept in static variables, so several
+ * compilations may run at the same time in one JVM, each with its own
+ * CompilationContext. tests/ConcurrentCompile.java checks that they
+ * give the same results as when run one at a time.
+ */
+public class CompilationContext {
+    public final LogFile log = new LogFile();
+    public final NameTable names = new NameTable();
+    // The messages from the compiler, and the output of -run, -vm and -jvm:
+    public final PrintStream out, err;
+    public Scanner scanner;
+    public Library library;
+    public CodeFile code;
+
+    // The program's name, and its label in the code:
+    public String programName, programLabel;
+
+    // The phases of a compilation, and the time spent in each (in ns):
+    public static final int SCAN = 0, PARSE = 1, CHECK = 2, GENERATE = 3,
+	WRITE = 4, ASSEMBLE = 5, RUN = 6, NUM_PHASES = 7;
+    public static final String[] phaseNames = {
+	"scan", "parse", "check", "generate", "write", "assemble", "run" };
+    public final long[] phaseTime = new long[NUM_PHASES];
+    private int curPhase = -1;
+    private long phaseStart;
+    // With -stats, the time and allocations in Scanner.readNextToken,
+    // which are moved from the phase they happen in to the scan phase:
+    private long scanTime = 0, scanAlloc = 0, scanStart, scanAllocStart;
+    private long phaseScanTime, phaseScanAlloc;
+    // The number of source lines read:
+    public int sourceLines = 0;
+    // How much was found of everything else:
+    public int numTokens = 0, numNodes = 0, numDecls = 0, numInstrs = 0;
+    // The cost of each phase, if -stats is given:
+    CompilerStats stats = null;
+
+    // The options:
+    String sourceFileName, baseFileName;
+    final File workDir;
+    boolean testParser = false, testScanner = false;
+    boolean mapSource = false, preLex = false;
+    boolean optimize = false, regAlloc = false;
+    boolean target64 = false, emitObject = false, parallelGen = false;
+    boolean runProgram = false, useVM = false, useJvm = false;
+
+    /**
+     * @param dir the directory of relative file names, or null for the
+     *            current directory
+     * @param out where the compiler writes its messages
+     * @param err where the compiler writes its errors
+     */
+    public CompilationContext(File dir, PrintStream out, PrintStream err) {
+	workDir = dir;  this.out = out;  this.err = err;
+    }
+
+    /**
+     * Ends the current phase, if any, and starts another.
+     */
+    void startPhase(int phase) {
+	endPhase();
+	curPhase = phase;  phaseStart = System.nanoTime();
+	phaseScanTime = scanTime;  phaseScanAlloc = scanAlloc;
+	if (stats != null) stats.startPhase();
+    }
+
+    void endPhase() {
+	if (curPhase >= 0) {
+	    long wall = System.nanoTime() - phaseStart;
+	    long scan = scanTime - phaseScanTime;
+	    phaseTime[curPhase] += wall - scan;
+	    phaseTime[SCAN] += scan;
+	    if (stats != null)
+		stats.endPhase(curPhase, wall, scan, scanAlloc - phaseScanAlloc);
+	}
+	curPhase = -1;
+    }
+
+    /**
+     * Does the Scanner have to tell when it finds a token? (Most of the
+     * scanning happens while parsing, as the parser asks for tokens.)
+     */
+    public boolean isTimingScanner() {
+	return stats != null;
+    }
+
+    public void startScanning() {
+	scanStart = System.nanoTime();  scanAllocStart = stats.allocated();
+    }
+
+    public void endScanning() {
+	scanTime += System.nanoTime() - scanStart;
+	scanAlloc += stats.allocated() - scanAllocStart;
+    }
+}
@@ -0,0 +1,46 @@
+package no.uio.ifi.pascal2100.main;
+
+import java.io.*;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The client of the CompileServer. It takes the same arguments as the
+ * compiler, lets the server compile, prints what the compiler wrote,
+ * and exits with the compiler's status.
+ */
+public class CompileClient {
+    public static void main(String arg[]) {
+	String socketName = CompileServer.defaultSocket();
+	int status;
+	try (SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of(socketName))) {
+	    DataOutputStream request = new DataOutputStream(
+		new BufferedOutputStream(Channels.newOutputStream(ch)));
+	    request.writeUTF(new File("").getAbsolutePath());
+	    request.writeInt(arg.length);
+	    for (String a: arg)
+		request.writeUTF(a);
+	    request.flush();
+
+	    DataInputStream in = new DataInputStream(
+		new BufferedInputStream(Channels.newInputStream(ch)));
+	    while (true) {
+		int kind = in.readByte();
+		if (kind == CompileServer.EXIT) {
+		    status = in.readInt();
+		    break;
+		}
+		byte b[] = new byte[in.readInt()];
+		in.readFully(b);
+		PrintStream to = kind == CompileServer.ERR ? System.err : System.out;
+		to.write(b, 0, b.length);
+		to.flush();
+	    }
+	} catch (IOException e) {
+	    System.err.println("Cannot use the compile server at " + socketName + ": " + e.getMessage());
+	    status = 1;
+	}
+	System.exit(status);
+    }
+}
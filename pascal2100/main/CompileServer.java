@@ -0,0 +1,126 @@
+package no.uio.ifi.pascal2100.main;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+
+/**
+ * The compile server (-server) keeps one JVM running, so a compilation
+ * does not pay for starting the JVM, and after the first ones it runs
+ * on code the JIT has already compiled. It listens on a Unix domain
+ * socket for CompileClient, which takes the same arguments as the
+ * compiler.
+ *
+ * A request is the client's directory and its arguments. The answer is
+ * what the compilation writes on standard output and standard error, in
+ * frames, and at last its exit status. Every compilation has its own
+ * CompilationContext, so each request is run in a thread of its own,
+ * at the same time as the others.
+ */
+public class CompileServer {
+    // The kinds of frames in an answer:
+    static final int OUT = 1, ERR = 2, EXIT = 3;
+
+    /**
+     * The socket is given by the property pascal2100.socket, or else it
+     * lies in the temporary directory.
+     */
+    static String defaultSocket() {
+	String s = System.getProperty("pascal2100.socket");
+	if (s == null)
+	    s = Paths.get(System.getProperty("java.io.tmpdir"),
+			  "pascal2100-" + System.getProperty("user.name") + ".sock").toString();
+	return s;
+    }
+
+    static void serve(String socketName) {
+	Path path = Paths.get(socketName);
+	try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+	    Files.deleteIfExists(path);
+	    server.bind(UnixDomainSocketAddress.of(path));
+	    path.toFile().deleteOnExit();
+	    System.out.println("The Pascal2100 compile server is listening on " + socketName);
+
+	    while (true) {
+		SocketChannel ch = server.accept();
+		new Thread(() -> {
+		    try (ch) {
+			handle(ch);
+		    } catch (IOException e) {
+			System.err.println("Compile server: " + e.getMessage());
+		    }
+		}, "compile").start();
+	    }
+	} catch (IOException e) {
+	    Main.error("Cannot listen on " + socketName + ": " + e.getMessage());
+	}
+    }
+
+    private static void handle(SocketChannel ch) throws IOException {
+	DataInputStream in = new DataInputStream(
+	    new BufferedInputStream(Channels.newInputStream(ch)));
+	DataOutputStream reply = new DataOutputStream(
+	    new BufferedOutputStream(Channels.newOutputStream(ch)));
+	File dir = new File(in.readUTF());
+	String arg[] = new String[in.readInt()];
+	for (int i = 0;  i < arg.length;  i++)
+	    arg[i] = in.readUTF();
+
+	BufferedOutputStream out = new BufferedOutputStream(new FrameStream(reply, OUT, null), 1 << 14);
+	PrintStream outStream = new PrintStream(out, false),
+	    errStream = new PrintStream(new FrameStream(reply, ERR, out), true);
+	int status;
+	try {
+	    status = Main.compile(arg, dir, outStream, errStream);
+	} catch (RuntimeException | StackOverflowError e) {
+	    outStream.println();
+	    errStream.println("PANIC! The compiler failed: " + e);
+	    status = 2;
+	} finally {
+	    outStream.flush();  errStream.flush();
+	}
+	reply.writeByte(EXIT);  reply.writeInt(status);
+	reply.flush();
+    }
+
+
+    /*
+     * Sends everything written to it as frames of one kind. A stream
+     * may have another one which is flushed first, so standard output
+     * and standard error arrive in the order they were written.
+     */
+    private static class FrameStream extends OutputStream {
+	private final DataOutputStream reply;
+	private final int kind;
+	private final OutputStream before;
+
+	FrameStream(DataOutputStream reply, int kind, OutputStream before) {
+	    this.reply = reply;  this.kind = kind;  this.before = before;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+	    write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte b[], int off, int len) throws IOException {
+	    if (before != null) before.flush();
+	    synchronized (reply) {
+		reply.writeByte(kind);  reply.writeInt(len);
+		reply.write(b, off, len);
+	    }
+	}
+
+	@Override
+	public void flush() throws IOException {
+	    synchronized (reply) {
+		reply.flush();
+	    }
+	}
+    }
+}
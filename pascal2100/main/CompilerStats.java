@@ -0,0 +1,157 @@
+package no.uio.ifi.pascal2100.main;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.Locale;
+
+/**
+ * What a compilation cost (-stats): for every phase the wall time, the
+ * CPU time and the bytes allocated by the compiling thread, and the
+ * peak heap of the JVM, together with the number of tokens, syntax
+ * nodes, declarations and instructions. The report is printed as a table,
+ * or written as JSON to <program>.stats.json so it may be compared
+ * with earlier runs.
+ *
+ * The CPU time and the allocations are those of the thread which runs
+ * the phase: the compiling thread, or for -run, -vm and -jvm the
+ * thread the program runs in. The worker threads of -pargen and the
+ * assembler are not counted.
+ *
+ * The Scanner finds most tokens while the parser runs, so it times
+ * every readNextToken, and CompilationContext moves that time and the
+ * bytes allocated from the phase it happened in to the scan phase.
+ * Asking for the CPU time of every token would cost far more than
+ * finding it, so the CPU time of a phase is shared between the phase
+ * and the scanning in proportion to their wall time.
+ *
+ * The peak heap is the highest use so far of all the heap pools
+ * together, as it was at the end of the phase. It is for the whole
+ * JVM, and it is never reset, since -batch and -server run other
+ * compilations at the same time.
+ */
+class CompilerStats {
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean hasCpu, hasAlloc;
+
+    final long[] cpuTime = new long[CompilationContext.NUM_PHASES];
+    final long[] allocated = new long[CompilationContext.NUM_PHASES];
+    final long[] peakHeap = new long[CompilationContext.NUM_PHASES];
+    private long cpuStart, allocStart;
+
+    // The format of the report:
+    boolean json = false;
+
+    CompilerStats() {
+	hasCpu = threads.isCurrentThreadCpuTimeSupported();
+	hasAlloc = threads instanceof com.sun.management.ThreadMXBean &&
+	    ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+    }
+
+    void startPhase() {
+	cpuStart = cpuTime();  allocStart = allocated();
+    }
+
+    /**
+     * @param phase     the phase which ends
+     * @param wall      its wall time (in ns)
+     * @param scanWall  how much of that was spent finding tokens
+     * @param scanAlloc how many bytes were allocated finding tokens
+     */
+    void endPhase(int phase, long wall, long scanWall, long scanAlloc) {
+	long cpu = cpuTime() - cpuStart;
+	long scanCpu = wall > 0 ? (long) ((double) cpu * scanWall / wall) : 0;
+	cpuTime[phase] += cpu - scanCpu;
+	cpuTime[CompilationContext.SCAN] += scanCpu;
+	allocated[phase] += allocated() - allocStart - scanAlloc;
+	allocated[CompilationContext.SCAN] += scanAlloc;
+	long peak = 0;
+	for (MemoryPoolMXBean m: ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (m.getType() == MemoryType.HEAP) peak += m.getPeakUsage().getUsed();
+	}
+	peakHeap[phase] = Math.max(peakHeap[phase], peak);
+    }
+
+    private long cpuTime() {
+	return hasCpu ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    long allocated() {
+	return hasAlloc ? ((com.sun.management.ThreadMXBean) threads)
+	    .getCurrentThreadAllocatedBytes() : 0;
+    }
+
+
+    /**
+     * Reports the statistics of a finished compilation.
+     */
+    void report(CompilationContext ctx) {
+	if (json) {
+	    String fName = ctx.baseFileName + ".stats.json";
+	    try (PrintWriter w = new PrintWriter(new FileWriter(fName))) {
+		writeJson(ctx, w);
+	    } catch (IOException e) {
+		ctx.err.println("Cannot create the statistics file " + fName + "!");
+	    }
+	} else {
+	    printTable(ctx, ctx.out);
+	}
+    }
+
+    private void printTable(CompilationContext ctx, PrintStream ps) {
+	ps.println();
+	ps.println(String.format(Locale.ROOT, "%-10s %10s %10s %12s %12s",
+	    "Phase", "Wall ms", "CPU ms", "Alloc KB", "JVM peak KB"));
+	long wall = 0, cpu = 0, alloc = 0, heap = 0;
+	for (int p = 0;  p < CompilationContext.NUM_PHASES;  p++) {
+	    if (ctx.phaseTime[p] == 0) continue;
+	    ps.println(String.format(Locale.ROOT, "%-10s %10.2f %10.2f %12d %12d",
+		CompilationContext.phaseNames[p], ctx.phaseTime[p]/1e6,
+		cpuTime[p]/1e6, allocated[p]/1024, peakHeap[p]/1024));
+	    wall += ctx.phaseTime[p];  cpu += cpuTime[p];
+	    alloc += allocated[p];  heap = Math.max(heap, peakHeap[p]);
+	}
+	ps.println(String.format(Locale.ROOT, "%-10s %10.2f %10.2f %12d %12d",
+	    "total", wall/1e6, cpu/1e6, alloc/1024, heap/1024));
+	ps.println(String.format(Locale.ROOT,
+	    "%d lines, %d tokens, %d syntax nodes, %d declarations, %d instructions",
+	    ctx.sourceLines, ctx.numTokens, ctx.numNodes, ctx.numDecls, ctx.numInstrs));
+    }
+
+    private void writeJson(CompilationContext ctx, PrintWriter w) {
+	w.println("{");
+	w.println("  \"file\": \"" + jsonString(ctx.sourceFileName) + "\",");
+	w.println("  \"lines\": " + ctx.sourceLines + ",");
+	w.println("  \"tokens\": " + ctx.numTokens + ",");
+	w.println("  \"nodes\": " + ctx.numNodes + ",");
+	w.println("  \"declarations\": " + ctx.numDecls + ",");
+	w.println("  \"instructions\": " + ctx.numInstrs + ",");
+	w.println("  \"phases\": {");
+	boolean first = true;
+	for (int p = 0;  p < CompilationContext.NUM_PHASES;  p++) {
+	    if (ctx.phaseTime[p] == 0) continue;
+	    if (! first) w.println(",");
+	    w.print("    \"" + CompilationContext.phaseNames[p] + "\": {" +
+		"\"wallNs\": " + ctx.phaseTime[p] + ", \"cpuNs\": " + cpuTime[p] +
+		", \"allocatedBytes\": " + allocated[p] +
+		", \"jvmPeakHeapBytes\": " + peakHeap[p] + "}");
+	    first = false;
+	}
+	w.println();
+	w.println("  }");
+	w.println("}");
+    }
+
+    private static String jsonString(String s) {
+	StringBuilder sb = new StringBuilder();
+	for (int i = 0;  i < s.length();  i++) {
+	    char c = s.charAt(i);
+	    if (c == '"' || c == '\\')
+		sb.append('\\').append(c);
+	    else if (c < ' ')
+		sb.append(String.format("\\u%04x", (int) c));
+	    else
+		sb.append(c);
+	}
+	return sb.toString();
+    }
+}
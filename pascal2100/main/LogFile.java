@@ -2,26 +2,70 @@ package no.uio.ifi.pascal2100.main;
 
 import no.uio.ifi.pascal2100.parser.*;
 import no.uio.ifi.pascal2100.scanner.Token;
+import no.uio.ifi.pascal2100.scanner.TokenKind;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class LogFile {
     boolean doLogBinding = false, doLogParser = false, doLogPrettyPrint = false,
 	doLogScanner = false, doLogTypeChecks = false;
+    boolean doLogAsync = false;
 
     private String logFileName = null;
+    private PrintWriter log = null;
+    private AsyncLogWriter async = null;
     private int nLogLines = 0;
     private int parseLevel = 0;
     private String prettyLine = "";
     private int prettyIndentation = 0;
 
+    // The kinds of log notes:
+    static final int TEXT = 0, SOURCE_LINE = 1, TOKEN = 2, TYPE_CHECK = 3,
+	TYPE_CHECK2 = 4, BINDING = 5, ENTER_PARSER = 6, LEAVE_PARSER = 7;
+    private static final TokenKind[] tokenKinds = TokenKind.values();
+
     void init(String fName) {
 	logFileName = fName;
+	if (doLogAsync)
+	    async = new AsyncLogWriter(this);
     }
 
     public void finish() {
 	if (prettyLine.length() > 0)
 	    prettyPrintLn();
+	if (async != null) {
+	    AsyncLogWriter a = async;
+	    async = null;
+	    a.close();
+	}
+	if (log != null) {
+	    log.close();  log = null;
+	}
+    }
+
+
+    /*
+     * The hot paths in the scanner and parser ask these before they
+     * make a note, so that a category which is not logged costs
+     * nothing there, not even preparing the arguments.
+     */
+    public boolean isLoggingScanner() {
+	return doLogScanner;
+    }
+
+    public boolean isLoggingSourceLines() {
+	return doLogParser || doLogScanner;
+    }
+
+    public boolean isLoggingParser() {
+	return doLogParser;
+    }
+
+    public boolean isLoggingBindings() {
+	return doLogBinding;
     }
 
 
@@ -33,23 +77,110 @@ public class LogFile {
     }
 
 
+    /*
+     * Every note goes through here. Normally it is formatted and
+     * written at once, but in asynchronous mode only the bare facts
+     * are queued, and the AsyncLogWriter thread does the formatting
+     * and writing. The facts are a line number or parse level n, two
+     * more numbers a and b, and objects which already exist and do not
+     * change, so making a note allocates nothing:
+     *   SOURCE_LINE  the line as a String, or a ByteBuffer holding
+     *                it from a to b
+     *   TOKEN        the TokenKind ordinal a, the value b, and the
+     *                name or string text
+     */
+    private void note(int kind, int n, Object x, Object y, Object z) {
+	note(kind, n, 0, 0, x, y, z);
+    }
+
+    private void note(int kind, int n, int a, int b, Object x, Object y, Object z) {
+	if (logFileName == null) return;
+
+	if (async != null) {
+	    async.put(kind, n, a, b, x, y, z);  ++nLogLines;
+	} else {
+	    writeLogLine(format(kind, n, a, b, x, y, z));
+	}
+    }
+
+    String format(int kind, int n, int a, int b, Object x, Object y, Object z) {
+	switch (kind) {
+	case SOURCE_LINE:
+	    return String.format("%4d: %s", n,
+		x instanceof ByteBuffer ? lineText((ByteBuffer)x, a, b) : x);
+	case TOKEN:
+	    return "Scanner: " + Token.identify(tokenKinds[a], n, (String)x, b);
+	case TYPE_CHECK:
+	    return "Type check on line " + n + ": " + 
+		"{" + x + "} " + ((Type)y).identify();
+	case TYPE_CHECK2:
+	    return "Type check on line " + n + ": " + 
+		((Type)x).identify() + " {" + y + "} " + ((Type)z).identify();
+	case BINDING:
+	    return "Binding on line " + n + ": " + x + 
+		" was declared in " + ((PascalDecl)y).identify();
+	case ENTER_PARSER:
+	case LEAVE_PARSER:
+	    StringBuilder logLine = new StringBuilder("Parser:   ");
+	    for (int i = 1;  i <= n;  ++i) logLine.append("  ");
+	    logLine.append(kind == ENTER_PARSER ? "<" : "</");
+	    return logLine.append(x).append(">").toString();
+	default:
+	    return (String)x;
+	}
+    }
+
+    /*
+     * A source line in an ASCII file, with the trailing space the
+     * Scanner adds.
+     */
+    private static String lineText(ByteBuffer buf, int from, int to) {
+	char[] c = new char[to-from+1];
+	for (int i = from;  i < to;  i++) c[i-from] = (char) buf.get(i);
+	c[to-from] = ' ';
+	return new String(c);
+    }
+
+    /*
+     * The log file is created (or truncated) when the first line is
+     * written, and it is then kept open until finish is called.
+     */
     private void writeLogLine(String data) {
 	if (logFileName == null) return;
 
 	try {
-	    PrintWriter log = (nLogLines==0 ? new PrintWriter(logFileName) :
-		new PrintWriter(new FileOutputStream(logFileName,true)));
+	    if (log == null)
+		log = new PrintWriter(logFileName);
 	    log.println(data);  ++nLogLines;
-	    log.close();
 	} catch (FileNotFoundException e) {
 	    String lName = logFileName;
 	    logFileName = null;  // To avoid infinite recursion
-	                         // Main.error -> noteError -> 
+	                         // Main.compile -> noteError -> 
 	                         //   writeLogLine -> ...
 	    Main.error("Cannot open log file " + lName + "!");
 	}
     }
 
+    /*
+     * Used by the AsyncLogWriter thread. Errors are not reported from
+     * that thread but returned, so they can be thrown on the compiler's
+     * own thread.
+     */
+    PascalError printLogLine(String data) {
+	try {
+	    if (log == null)
+		log = new PrintWriter(logFileName);
+	    log.println(data);
+	    return null;
+	} catch (FileNotFoundException e) {
+	    return new PascalError("Cannot open log file " + logFileName + "!");
+	}
+    }
+
+    void flushLog() {
+	if (log != null) log.flush();
+    }
+
 
     /**
      * Make a note in the log file that an error has occured.
@@ -58,8 +189,13 @@ public class LogFile {
      * @param message  The error message
      */
     public void noteError(String message) {
-	if (nLogLines > 0) 
-	    writeLogLine(message);
+	if (nLogLines > 0) {
+	    note(TEXT, 0, message, null, null);
+	    if (async != null) 
+		async.flush();
+	    else if (log != null) 
+		log.flush();
+	}
     }
 
 
@@ -70,9 +206,24 @@ public class LogFile {
      * @param lineNum  The line number
      * @param line     The actual line
      */
-    public void noteSourceLine(int lineNum, String line) {
+    public void noteSourceLine(int lineNum, CharSequence line) {
 	if (doLogParser || doLogScanner) 
-	    writeLogLine(String.format("%4d: %s",lineNum,line));
+	    note(SOURCE_LINE, lineNum, async != null ? line.toString() : line,
+		null, null);
+    }
+
+    /**
+     * Make a note in the log file that a source line has been read
+     * from a memory-mapped ASCII file (-mmap).
+     *
+     * @param lineNum  The line number
+     * @param buf      The file
+     * @param from     Where the line starts in buf
+     * @param to       Where the line ends, not counting the line break
+     */
+    public void noteSourceLine(int lineNum, ByteBuffer buf, int from, int to) {
+	if (doLogParser || doLogScanner) 
+	    note(SOURCE_LINE, lineNum, from, to, buf, null, null);
     }
 	
 
@@ -82,28 +233,26 @@ public class LogFile {
      */
     public void noteToken(Token tok) {
 	if (doLogScanner)
-	    writeLogLine("Scanner: " + tok.identify());
+	    note(TOKEN, tok.lineNum, tok.kind.ordinal(), tok.intVal,
+		 tok.kind == TokenKind.stringValToken ? tok.strVal : tok.id, null, null);
     }
 
 
     /* Del 3:*/
     public void noteTypeCheck(String op, Type t, PascalSyntax where) {
 	if (doLogTypeChecks)
-	    writeLogLine("Type check on line " + where.lineNum + ": " + 
-		"{" + op + "} " + t.identify());
+	    note(TYPE_CHECK, where.lineNum, op, t, null);
     }
 
     public void noteTypeCheck(Type t1, String op, Type t2, PascalSyntax where) {
 	if (doLogTypeChecks)
-	    writeLogLine("Type check on line " + where.lineNum + ": " + 
-		t1.identify() + " {" + op + "} " + t2.identify());
+	    note(TYPE_CHECK2, where.lineNum, t1, op, t2);
     }
     
 
     public void noteBinding(String id, PascalSyntax where, PascalDecl decl) {
 	if (doLogBinding)
-	    writeLogLine("Binding on line " + where.lineNum + ": " + id + 
-		" was declared in " + decl.identify());
+	    note(BINDING, where.lineNum, id, decl, null);
     }
 
 
@@ -115,7 +264,7 @@ public class LogFile {
      */
     public void enterParser(String name) {
 	if (doLogParser) {
-	    noteParserInfo(name);  ++parseLevel;
+	    note(ENTER_PARSER, parseLevel, name, null, null);  ++parseLevel;
 	}
     }
 
@@ -127,16 +276,10 @@ public class LogFile {
      */
     public void leaveParser(String name) {
 	if (doLogParser) {
-	    --parseLevel;  noteParserInfo("/"+name);
+	    --parseLevel;  note(LEAVE_PARSER, parseLevel, name, null, null);
 	}
     }
 
-    private void noteParserInfo(String name) {
-	String logLine = "Parser:   ";
-	for (int i = 1;  i <= parseLevel;  ++i) logLine += "  ";
-	writeLogLine(logLine + "<" + name + ">");
-    }
-
 
     public void prettyPrint(String s) {
 	if (prettyLine.equals("")) {
@@ -151,7 +294,7 @@ public class LogFile {
     }
 
     public void prettyPrintLn() {
-	writeLogLine(prettyLine);
+	note(TEXT, 0, prettyLine, null, null);
 	prettyLine = "";
     }
 
@@ -163,3 +306,113 @@ public class LogFile {
 	prettyIndentation--;
     }
 }
+
+
+/**
+ * The AsyncLogWriter formats and writes the log notes on a thread of
+ * its own. The notes are passed through a bounded ring buffer with
+ * one producer (the compiler) and one consumer (the writer thread),
+ * so no locks are needed: each side only moves its own index.
+ * The notes are written in the order they were made.
+ */
+class AsyncLogWriter implements Runnable {
+    private static final int SIZE = 8192;  // Must be a power of 2
+    private static final int FLUSH = -1;
+
+    private final LogFile logFile;
+    private final Thread writer;
+    private final int[] kinds = new int[SIZE], nums = new int[SIZE],
+	as = new int[SIZE], bs = new int[SIZE];
+    private final Object[] xs = new Object[SIZE], ys = new Object[SIZE],
+	zs = new Object[SIZE];
+    private final AtomicLong head = new AtomicLong(),  // Next to write
+	tail = new AtomicLong();                       // Next free
+    private volatile boolean closing = false;
+    private volatile RuntimeException failure = null;
+
+    AsyncLogWriter(LogFile lf) {
+	logFile = lf;
+	writer = new Thread(this, "Pascal2100 log writer");
+	writer.setDaemon(true);
+	writer.start();
+    }
+
+    void put(int kind, int n, int a, int b, Object x, Object y, Object z) {
+	checkFailure();
+	long t = tail.get();
+	while (t - head.get() >= SIZE) 
+	    LockSupport.parkNanos(10000);
+	int i = (int)t & (SIZE-1);
+	kinds[i] = kind;  nums[i] = n;  as[i] = a;  bs[i] = b;
+	xs[i] = x;  ys[i] = y;  zs[i] = z;
+	tail.lazySet(t+1);
+    }
+
+    /**
+     * Waits until every note so far has been written to the file.
+     */
+    void flush() {
+	put(FLUSH, 0, 0, 0, null, null, null);
+	long t = tail.get();
+	while (head.get() < t && writer.isAlive())
+	    LockSupport.parkNanos(10000);
+    }
+
+    /**
+     * Writes the remaining notes and stops the writer thread.
+     * Any error in the writer thread which has not yet been reported
+     * is thrown now.
+     */
+    void close() {
+	closing = true;
+	try {
+	    writer.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	logFile.flushLog();
+	checkFailure();
+    }
+
+    /*
+     * An error in the writer thread is thrown on the compiler's
+     * thread the next time it makes a note.
+     */
+    private void checkFailure() {
+	RuntimeException e = failure;
+	if (e != null) {
+	    failure = null;
+	    throw e;
+	}
+    }
+
+    @Override
+    public void run() {
+	while (true) {
+	    long h = head.get(), t = tail.get();
+	    if (h == t) {
+		if (closing && tail.get() == h) return;
+		LockSupport.parkNanos(100000);
+		continue;
+	    }
+	    for ( ;  h < t;  h++) {
+		int i = (int)h & (SIZE-1);
+		write(kinds[i], nums[i], as[i], bs[i], xs[i], ys[i], zs[i]);
+		xs[i] = ys[i] = zs[i] = null;
+	    }
+	    head.lazySet(t);
+	}
+    }
+
+    private void write(int kind, int n, int a, int b, Object x, Object y, Object z) {
+	if (failure != null) return;
+	if (kind == FLUSH) {
+	    logFile.flushLog();  return;
+	}
+	try {
+	    failure = logFile.printLogLine(logFile.format(kind, n, a, b, x, y, z));
+	} catch (RuntimeException e) {
+	    failure = e;
+	}
+    }
+}
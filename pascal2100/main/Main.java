@@ -5,6 +5,7 @@ import no.uio.ifi.pascal2100.scanner.*;
 import static no.uio.ifi.pascal2100.scanner.TokenKind.*;
 import java.io.*;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 
 
@@ -13,72 +14,161 @@ public class Main {
     public static final String version = "" + 
     		new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date());
 
-    //Del 3: 
-    public static Library library;
-    public static LogFile log = new LogFile();
-    public static CodeFile code;
-    private static String sourceFileName, baseFileName;
-    private static boolean testParser = false, testScanner = false;
-
     public static void main(String arg[]) {
-	System.out.println("This is the ifi Pascal2100 compiler (" +
+	if (arg.length > 0 && (arg[0].equals("-server") || arg[0].equals("-batch"))) {
+	    int status = 0;
+	    try {
+		if (arg[0].equals("-batch"))
+		    status = BatchCompiler.run(Arrays.copyOfRange(arg, 1, arg.length));
+		else
+		    CompileServer.serve(arg.length > 1 ? arg[1] : CompileServer.defaultSocket());
+	    } catch (PascalError e) {
+		System.err.println(e.getMessage());
+		status = 1;
+	    }
+	    System.exit(status);
+	}
+	System.exit(compile(arg, null, System.out, System.err));
+    }
+
+
+    /**
+     * Runs one compilation, as given by the command line arguments.
+     * Every compilation has its own CompilationContext, so several may
+     * run at the same time.
+     * @param arg the arguments
+     * @param dir the directory of relative file names, or null for the
+     *            current directory
+     * @param out where the messages go
+     * @param err where the errors go
+     * @return the exit status
+     */
+    public static int compile(String arg[], File dir, PrintStream out, PrintStream err) {
+	return compile(new CompilationContext(dir, out, err), arg);
+    }
+
+    /**
+     * Runs one compilation in a given context, which afterwards tells
+     * how long each phase took.
+     * @param ctx the context, which must be new
+     * @param arg the arguments
+     * @return the exit status
+     */
+    public static int compile(CompilationContext ctx, String arg[]) {
+	ctx.out.println("This is the ifi Pascal2100 compiler (" +
 			   version + ")" + " implemented by Mehdi Noroozi & Dorna Misaghian");
 
 	int exitStatus = 0;
 	try {
-	    readArgs(arg);
-	    log.init(baseFileName + ".log");
+	    readArgs(ctx, arg);
+	    ctx.log.init(ctx.baseFileName + ".log");
 
-	    Scanner s = new Scanner(sourceFileName);
-	    if (testScanner) 
+	    ctx.startPhase(CompilationContext.SCAN);
+	    Scanner s = ctx.scanner =
+		new Scanner(ctx, ctx.sourceFileName, ctx.mapSource, ctx.preLex);
+	    if (ctx.testScanner) 
 	    	doTestScanner(s);
-	    else if (testParser)
-	    	doTestParser(s);
+	    else if (ctx.testParser)
+	    	doTestParser(ctx, s);
 	    else
-	     doRunRealCompiler(s);
+	     doRunRealCompiler(ctx, s);
 	} catch (PascalError e) {
-	    System.out.println();
-	    System.err.println(e.getMessage());
+	    ctx.log.noteError(e.getMessage());
+	    ctx.out.println();
+	    ctx.err.println(e.getMessage());
 	    exitStatus = 1;
 	} finally {
-	    log.finish();
+	    ctx.endPhase();
+	    if (ctx.scanner != null) {
+		ctx.sourceLines = ctx.scanner.getLinesRead();
+		ctx.numTokens = ctx.scanner.getTokensRead();
+	    }
+	    if (ctx.code != null) ctx.numInstrs = ctx.code.getNumInstrs();
+	    ctx.log.finish();
 	}
-
-	System.exit(exitStatus);
+	if (ctx.stats != null && ctx.baseFileName != null) ctx.stats.report(ctx);
+	return exitStatus;
     }
 
-
-    private static void readArgs(String arg[]) {
+    private static void readArgs(CompilationContext ctx, String arg[]) {
 	for (int i = 0;  i < arg.length;  i++) {
 	    String a = arg[i];
 
 	    if (a.equals("-logB")) {
-		log.doLogBinding = true;
+		ctx.log.doLogBinding = true;
 	    } else if (a.equals("-logP")) {
-		log.doLogParser = true;
+		ctx.log.doLogParser = true;
 	    } else if (a.equals("-logS")) {
-		log.doLogScanner = true;
+		ctx.log.doLogScanner = true;
 	    } else if (a.equals("-logT")) {
-		log.doLogTypeChecks = true;
+		ctx.log.doLogTypeChecks = true;
 	    } else if (a.equals("-logY")) {
-		log.doLogPrettyPrint = true;
+		ctx.log.doLogPrettyPrint = true;
+	    } else if (a.equals("-logasync")) {
+		ctx.log.doLogAsync = true;
+	    } else if (a.equals("-O")) {
+		ctx.optimize = true;
+	    } else if (a.equals("-stats")) {
+		ctx.stats = new CompilerStats();
+		if (i+1 < arg.length && arg[i+1].equals("json")) {
+		    ctx.stats.json = true;  ++i;
+		} else if (i+1 < arg.length && arg[i+1].equals("table")) {
+		    ++i;
+		}
+	    } else if (a.equals("-pargen")) {
+		ctx.parallelGen = true;
+	    } else if (a.equals("-regalloc")) {
+		ctx.regAlloc = true;
+	    } else if (a.equals("-target")) {
+		if (i+1 == arg.length) usage();
+		String t = arg[++i];
+		if (t.equals("x86_64"))
+		    ctx.target64 = true;
+		else if (! t.equals("i386"))
+		    usage();
+	    } else if (a.equals("-emit")) {
+		if (i+1 == arg.length) usage();
+		String e = arg[++i];
+		if (e.equals("obj"))
+		    ctx.emitObject = true;
+		else if (! e.equals("asm"))
+		    usage();
+	    } else if (a.equals("-run")) {
+		ctx.runProgram = true;
+	    } else if (a.equals("-vm")) {
+		ctx.runProgram = ctx.useVM = true;
+	    } else if (a.equals("-jvm")) {
+		ctx.runProgram = ctx.useJvm = true;
+	    } else if (a.equals("-mmap")) {
+		ctx.mapSource = true;
+	    } else if (a.equals("-prelex")) {
+		ctx.preLex = true;
 	    } else if (a.equals("-testparser")) {
-		testParser = log.doLogParser = log.doLogPrettyPrint = true; 
+		ctx.testParser = ctx.log.doLogParser = ctx.log.doLogPrettyPrint = true; 
 	    } else if (a.equals("-testscanner")) {
-		testScanner = log.doLogScanner = true; 
+		ctx.testScanner = ctx.log.doLogScanner = true; 
 	    } else if (a.startsWith("-")) {
-		warning("Warning: Unknown option " + a + " ignored.");
-	    } else if (sourceFileName != null) {
+		warning(ctx, "Warning: Unknown option " + a + " ignored.");
+	    } else if (ctx.sourceFileName != null) {
 		usage();
+	    } else if (ctx.workDir != null && ! new File(a).isAbsolute()) {
+		ctx.sourceFileName = new File(ctx.workDir, a).getPath();
 	    } else {
-		sourceFileName = a;
+		ctx.sourceFileName = a;
 	    }
 	}
-	if (sourceFileName == null) usage();
+	if (ctx.sourceFileName == null) usage();
+	if (ctx.emitObject && ctx.target64)
+	    error("-emit obj is only available for the i386 target.");
+	if (ctx.regAlloc && ctx.target64)
+	    error("-regalloc is only available for the i386 target.");
+	if (ctx.optimize && ctx.target64 && ! ctx.runProgram)
+	    warning(ctx, "Warning: -O only folds constants for the x86_64 target; " +
+		    "the peephole optimizer is not run.");
 	
-	baseFileName = sourceFileName;
-	if (baseFileName.length()>4 && baseFileName.endsWith(".pas"))
-	    baseFileName = baseFileName.substring(0,baseFileName.length()-4);
+	ctx.baseFileName = ctx.sourceFileName;
+	if (ctx.baseFileName.length()>4 && ctx.baseFileName.endsWith(".pas"))
+	    ctx.baseFileName = ctx.baseFileName.substring(0,ctx.baseFileName.length()-4);
     }
 
 
@@ -89,69 +179,126 @@ public class Main {
 
 
     /* Del 2: */
-    private static void doTestParser(Scanner s) {
+    private static void doTestParser(CompilationContext ctx, Scanner s) {
 	Program prog = Program.parse(s);
 	if (s.curToken.kind != eofToken) 
 	    error("Scanner error: Garbage after the program!");
-	prog.prettyPrint();
+	prog.prettyPrint(ctx.log);
     }
     
 
     /* Del 3 og 4:*/
-    private static void doRunRealCompiler(Scanner s) {
-	System.out.print("Parsing...");
+    private static void doRunRealCompiler(CompilationContext ctx, Scanner s) {
+	ctx.out.print("Parsing...");
+	ctx.startPhase(CompilationContext.PARSE);
 	Program prog = Program.parse(s);
 	if (s.curToken.kind != eofToken) 
 	    error("Scanner error: Garbage after the program!");
-	if (log.doLogPrettyPrint)
-	    prog.prettyPrint();
-	System.out.println("OK!");
-	System.out.print("Checking...");
-	library = new Library(-1);
-	prog.check(library, library);
-	System.out.println("OK!");
-	System.out.println("Generating code...");
-	code = new CodeFile(baseFileName+".s");
-	library.genCode(code);  prog.genCode(code);
+	if (ctx.log.doLogPrettyPrint)
+	    prog.prettyPrint(ctx.log);
+	ctx.out.println("OK!");
+	ctx.out.print("Checking...");
+	ctx.startPhase(CompilationContext.CHECK);
+	ctx.library = new Library(ctx, -1);
+	prog.check(ctx.library, ctx.library);
+	if (ctx.optimize) prog.fold();
+	ctx.out.println("OK!");
+	if (ctx.runProgram) {
+	    ctx.endPhase();
+	    runProgram(ctx, prog);
+	    return;
+	}
+	ctx.out.println("Generating code...");
+	ctx.startPhase(CompilationContext.GENERATE);
+	CodeFile code = ctx.code =
+	    new CodeFile(ctx.baseFileName + (ctx.emitObject ? ".o" : ".s"), ctx.emitObject);
+	code.allocRegisters = ctx.regAlloc;
+	code.optimizing = ctx.optimize;
+	code.target64 = ctx.target64;
+	code.parallel = ctx.parallelGen;
+	ctx.library.genCode(code);  prog.genCode(code);
+	// The peephole optimizer only knows the i386 instructions.
+	if (ctx.optimize && ! ctx.target64) code.optimize();
+	ctx.startPhase(CompilationContext.WRITE);
 	code.finish();
-	assembleCode();
-	System.out.println("Job is done!");
+	ctx.startPhase(CompilationContext.ASSEMBLE);
+	assembleCode(ctx);
+	ctx.out.println("Job is done!");
     }
     
 
 
-    private static void assembleCode() {
-	String pName = baseFileName;
-	String sName = baseFileName + ".s";
+    /*
+     * The interpreter recurses for every Pascal call, so it runs in a
+     * thread with a large stack. The run phase is timed in that thread,
+     * so -stats gives its CPU time and allocations.
+     */
+    private static void runProgram(CompilationContext ctx, Program prog) {
+	RuntimeException[] failure = new RuntimeException[1];
+	Thread t = new Thread(null, () -> {
+	    ctx.startPhase(CompilationContext.RUN);
+	    try {
+		if (ctx.useJvm) prog.runJvm();
+		else if (ctx.useVM) prog.runByteCode();
+		else prog.run();
+	    } catch (RuntimeException e) {
+		failure[0] = e;
+	    } catch (StackOverflowError e) {
+		failure[0] = new PascalError("Run-time error: Stack overflow!");
+	    } finally {
+		ctx.endPhase();
+	    }
+	}, "run", 1L << 29);
+	t.start();
+	try {
+	    t.join();
+	} catch (InterruptedException e) {
+	    error("Interrupted while running the program.");
+	}
+	if (failure[0] != null) throw failure[0];
+    }
 
-	String cmd[] = new String[8];
-	cmd[0] = "gcc";  cmd[1] = "-m32";
-	cmd[2] = "-o";   cmd[3] = pName;
-	cmd[4] = sName;  
-	cmd[5] = "-L.";  cmd[6] = "-L/hom/inf2100";  cmd[7] = "-lpas2100";  
+    private static void assembleCode(CompilationContext ctx) {
+	String pName = ctx.baseFileName;
+	String sName = ctx.baseFileName + (ctx.emitObject ? ".o" : ".s");
+
+	String cmd[];
+	if (ctx.target64) {
+	    cmd = new String[7];
+	    cmd[0] = "gcc";
+	    cmd[1] = "-o";   cmd[2] = pName;
+	    cmd[3] = sName;  
+	    cmd[4] = "-L.";  cmd[5] = "-L/hom/inf2100";  cmd[6] = "-lpas2100_64";  
+	} else {
+	    cmd = new String[8];
+	    cmd[0] = "gcc";  cmd[1] = "-m32";
+	    cmd[2] = "-o";   cmd[3] = pName;
+	    cmd[4] = sName;  
+	    cmd[5] = "-L.";  cmd[6] = "-L/hom/inf2100";  cmd[7] = "-lpas2100";  
+	}
 
-	System.out.print("Running");
+	ctx.out.print("Running");
 	for (String s: cmd) {
 	    if (s.contains(" "))
-		System.out.print(" '" + s + "'");
+		ctx.out.print(" '" + s + "'");
 	    else
-		System.out.print(" " + s);
+		ctx.out.print(" " + s);
 	}
-	System.out.println();
+	ctx.out.println();
 
 	try {
 	    String line;
-	    Process p = Runtime.getRuntime().exec(cmd);
+	    Process p = Runtime.getRuntime().exec(cmd, null, ctx.workDir);
 	    BufferedReader out = new BufferedReader
 		(new InputStreamReader(p.getInputStream()));
 	    BufferedReader err = new BufferedReader
 		(new InputStreamReader(p.getErrorStream()));
 
 	    while ((line = out.readLine()) != null) {
-		System.out.println(line);
+		ctx.out.println(line);
 	    }
 	    while ((line = err.readLine()) != null) {
-		System.out.println(line);
+		ctx.out.println(line);
 	    }
 	    out.close();  err.close();
 	    p.waitFor();
@@ -167,8 +314,8 @@ public class Main {
 
     // Error message utilities:
 
+    // The error is noted in the log file when compile catches it.
     public static void error(String message) {
-	log.noteError(message);
 	throw new PascalError(message);
     }
 	
@@ -176,17 +323,19 @@ public class Main {
 	error("Error in line " + lineNum + ": " + message);
     }
 
-    private static void usage() {
+    static void usage() {
 	error("Usage: java -jar pascal2100.jar " +
-	    "[-log{B|P|S|T|Y}] [-test{parser|scanner}] file");
+	    "[-log{B|P|S|T|Y}] [-logasync] [-test{parser|scanner}] [-O] [-regalloc] [-pargen] [-stats [table|json]] [-target {i386|x86_64}] [-emit {asm|obj}] [-run] [-vm] [-jvm] [-mmap] [-prelex] file\n" +
+	    "   or: java -jar pascal2100.jar -batch [-j threads] [options] {file|directory}...\n" +
+	    "   or: java -jar pascal2100.jar -server [socket]");
     }
 
     public void panic(String where) {
 	error("PANIC! Programming error in " + where);
     }
 
-    public static void warning(String message) {
-	log.noteError(message);
-	System.err.println(message);
+    private static void warning(CompilationContext ctx, String message) {
+	ctx.log.noteError(message);
+	ctx.err.println(message);
     }
 }
@@ -0,0 +1,533 @@
+package no.uio.ifi.pascal2100.main;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Turns the i386 instructions in an InstrList into machine code and
+ * writes a relocatable ELF object file (-emit obj), so the assembler
+ * is not needed. Only the instructions and directives produced by the
+ * code generator and the peephole optimizer are known.
+ *
+ * Every jump and call uses a 32-bit displacement, so the size of an
+ * instruction never depends on where a label lies, and one pass is
+ * enough; the label references are patched afterwards. A reference
+ * which cannot be resolved here (a label in another section or an
+ * external routine) becomes a relocation for the linker.
+ */
+class ObjectFile {
+    private static final String[] regNames =
+	{ "eax", "ecx", "edx", "ebx", "esp", "ebp", "esi", "edi" };
+    private static final String[] conditions =
+	{ "o", "no", "b", "ae", "e", "ne", "be", "a",
+	  "s", "ns", "p", "np", "l", "ge", "le", "g" };
+
+    // The sections, as numbered in the section header table:
+    private static final int TEXT = 1, DATA = 2;
+
+    // ELF relocation types:
+    private static final int R_386_32 = 1, R_386_PC32 = 2;
+
+    private final InstrList code;
+    private final Bytes text = new Bytes(), data = new Bytes();
+    private Bytes cur = text;
+    private final HashMap<String,Label> labels = new HashMap<>();
+    private final LinkedHashSet<String> globals = new LinkedHashSet<>();
+    private final ArrayList<Fixup> fixups = new ArrayList<>();
+
+    private static class Label {
+	final int section, offset;
+
+	Label(int section, int offset) {
+	    this.section = section;  this.offset = offset;
+	}
+    }
+
+    // A label used by an instruction at a position in .text:
+    private static class Fixup {
+	final int pos;
+	final String label;
+	final boolean relative;
+
+	Fixup(int pos, String label, boolean relative) {
+	    this.pos = pos;  this.label = label;  this.relative = relative;
+	}
+    }
+
+    private static final int REG = 0, IMM = 1, MEM = 2, ABS = 3;
+
+    private static class Operand {
+	int kind, reg, value;
+	String label;  // For IMM and ABS
+    }
+
+    ObjectFile(InstrList code) {
+	this.code = code;
+    }
+
+
+    /**
+     * Encodes all the code and writes the object file.
+     * @param fileName the name of the object file
+     */
+    void write(String fileName) throws IOException {
+	for (int i = 0;  i < code.size();  i++)
+	    encode(i);
+	Bytes rel = new Bytes();
+	Bytes symtab = new Bytes(), strtab = new Bytes();
+	int firstGlobal = makeSymbols(symtab, strtab, rel);
+	writeElf(fileName, rel, symtab, strtab, firstGlobal);
+    }
+
+
+    private void encode(int i) {
+	String lab = code.label(i), op = code.op(i), arg = code.arg(i);
+	switch (code.kind(i)) {
+	case InstrList.INSTR:
+	    if (lab.length() > 0) defineLabel(lab);
+	    if (op.startsWith("."))
+		directive(op, arg);
+	    else if (op.length() > 0)
+		instruction(op, arg);
+	    break;
+	case InstrList.DIRECTIVE:
+	    directive(op, arg);
+	    break;
+	case InstrList.STRING:
+	    defineLabel(lab);
+	    for (int c = 0;  c < arg.length();  c++)
+		putChar(arg.charAt(c));
+	    cur.put8(0);
+	    break;
+	}
+    }
+
+    private void defineLabel(String lab) {
+	if (labels.containsKey(lab))
+	    Main.error("Label " + lab + " is defined twice!");
+	labels.put(lab, new Label(cur == text ? TEXT : DATA, cur.size()));
+    }
+
+    private void directive(String op, String arg) {
+	switch (op) {
+	case ".text":    cur = text;  break;
+	case ".data":    cur = data;  break;
+	case ".globl":   globals.add(arg);  break;
+	case ".extern":  break;  // Undefined names are external anyway
+	case ".align":
+	    int n = Integer.parseInt(arg);
+	    while (cur.size() % n != 0) cur.put8(cur == text ? 0x90 : 0);
+	    break;
+	case ".asciz":
+	    asciz(arg);  break;
+	default:
+	    Main.error("Cannot encode the directive " + op + "!");
+	}
+    }
+
+    /*
+     * A quoted string with the escapes the assembler knows.
+     */
+    private void asciz(String s) {
+	int end = s.lastIndexOf('"');
+	for (int i = s.indexOf('"')+1;  i < end;  i++) {
+	    char c = s.charAt(i);
+	    if (c == '\\' && i+1 < end) {
+		c = s.charAt(++i);
+		switch (c) {
+		case 'b':  c = '\b';  break;
+		case 'f':  c = '\f';  break;
+		case 'n':  c = '\n';  break;
+		case 'r':  c = '\r';  break;
+		case 't':  c = '\t';  break;
+		default:
+		    if (c >= '0' && c <= '7') {
+			int v = c - '0';
+			for (int k = 0;  k < 2 && i+1 < end &&
+				 s.charAt(i+1) >= '0' && s.charAt(i+1) <= '7';  k++)
+			    v = 8*v + s.charAt(++i) - '0';
+			cur.put8(v);  continue;
+		    }
+		}
+	    }
+	    putChar(c);
+	}
+	cur.put8(0);
+    }
+
+    // The assembler sees the code file as UTF-8.
+    private void putChar(char c) {
+	if (c < 0x80) {
+	    cur.put8(c);
+	} else {
+	    for (byte b : String.valueOf(c).getBytes(StandardCharsets.UTF_8))
+		cur.put8(b);
+	}
+    }
+
+
+    private void instruction(String op, String arg) {
+	Operand[] a = operands(arg);
+	Operand src = a.length > 0 ? a[0] : null, dst = a.length > 1 ? a[1] : null;
+
+	switch (op) {
+	case "movl":
+	    if (src.kind == IMM && dst.kind == REG) {
+		cur.put8(0xB8 + dst.reg);  imm32(src);
+	    } else if (src.kind == IMM) {
+		cur.put8(0xC7);  modrm(0, dst);  imm32(src);
+	    } else if (src.kind == REG) {
+		cur.put8(0x89);  modrm(src.reg, dst);
+	    } else {
+		cur.put8(0x8B);  modrm(reg(dst, op), src);
+	    }
+	    return;
+	case "leal":
+	    cur.put8(0x8D);  modrm(reg(dst, op), src);  return;
+	case "addl":  alu(0, src, dst, op);  return;
+	case "orl":   alu(1, src, dst, op);  return;
+	case "andl":  alu(4, src, dst, op);  return;
+	case "subl":  alu(5, src, dst, op);  return;
+	case "xorl":  alu(6, src, dst, op);  return;
+	case "cmpl":  alu(7, src, dst, op);  return;
+	case "imull":
+	    if (src.kind == IMM) {
+		boolean small = isByte(src);
+		cur.put8(small ? 0x6B : 0x69);  modrm(reg(dst, op), dst);
+		if (small) cur.put8(src.value); else imm32(src);
+	    } else {
+		cur.put8(0x0F);  cur.put8(0xAF);  modrm(reg(dst, op), src);
+	    }
+	    return;
+	case "pushl":
+	    if (src.kind == REG) {
+		cur.put8(0x50 + src.reg);
+	    } else if (src.kind == IMM && isByte(src)) {
+		cur.put8(0x6A);  cur.put8(src.value);
+	    } else if (src.kind == IMM) {
+		cur.put8(0x68);  imm32(src);
+	    } else {
+		cur.put8(0xFF);  modrm(6, src);
+	    }
+	    return;
+	case "popl":
+	    if (src.kind == REG) {
+		cur.put8(0x58 + src.reg);
+	    } else {
+		cur.put8(0x8F);  modrm(0, src);
+	    }
+	    return;
+	case "negl":   cur.put8(0xF7);  modrm(3, src);  return;
+	case "idivl":  cur.put8(0xF7);  modrm(7, src);  return;
+	case "cdq":    cur.put8(0x99);  return;
+	case "leave":  cur.put8(0xC9);  return;
+	case "ret":    cur.put8(0xC3);  return;
+	case "enter":
+	    cur.put8(0xC8);  cur.put16(src.value);  cur.put8(dst.value);  return;
+	case "movzbl":
+	    cur.put8(0x0F);  cur.put8(0xB6);  modrm(reg(dst, op), src);  return;
+	case "call":
+	    cur.put8(0xE8);  branch(arg);  return;
+	case "jmp":
+	    cur.put8(0xE9);  branch(arg);  return;
+	}
+
+	int cc = -1;
+	if (op.startsWith("set")) cc = condition(op.substring(3));
+	if (cc >= 0) {
+	    cur.put8(0x0F);  cur.put8(0x90 + cc);  modrm(0, src);  return;
+	}
+	if (op.startsWith("j")) cc = condition(op.substring(1));
+	if (cc >= 0) {
+	    cur.put8(0x0F);  cur.put8(0x80 + cc);  branch(arg);  return;
+	}
+	Main.error("Cannot encode the instruction " + op + " " + arg + "!");
+    }
+
+    /*
+     * The eight arithmetic instructions share their encoding; n tells
+     * which one it is.
+     */
+    private void alu(int n, Operand src, Operand dst, String op) {
+	if (src.kind == IMM) {
+	    boolean small = isByte(src);
+	    cur.put8(small ? 0x83 : 0x81);  modrm(n, dst);
+	    if (small) cur.put8(src.value); else imm32(src);
+	} else if (src.kind == REG) {
+	    cur.put8(8*n + 1);  modrm(src.reg, dst);
+	} else {
+	    cur.put8(8*n + 3);  modrm(reg(dst, op), src);
+	}
+    }
+
+    private static int condition(String cc) {
+	for (int i = 0;  i < conditions.length;  i++) {
+	    if (conditions[i].equals(cc)) return i;
+	}
+	return -1;
+    }
+
+    private static boolean isByte(Operand o) {
+	return o.label == null && o.value >= -128 && o.value <= 127;
+    }
+
+    private static int reg(Operand o, String op) {
+	if (o == null || o.kind != REG)
+	    Main.error("Cannot encode " + op + " without a register operand!");
+	return o.reg;
+    }
+
+    private void imm32(Operand o) {
+	if (o.label != null)
+	    fixups.add(new Fixup(cur.size(), o.label, false));
+	cur.put32(o.value);
+    }
+
+    private void branch(String target) {
+	fixups.add(new Fixup(cur.size(), target, true));
+	cur.put32(0);
+    }
+
+    /*
+     * The ModRM byte, with the SIB byte and displacement if needed.
+     */
+    private void modrm(int reg, Operand rm) {
+	reg <<= 3;
+	switch (rm.kind) {
+	case REG:
+	    cur.put8(0xC0 | reg | rm.reg);  return;
+	case ABS:
+	    cur.put8(reg | 5);
+	    fixups.add(new Fixup(cur.size(), rm.label, false));
+	    cur.put32(rm.value);
+	    return;
+	}
+	int base = rm.reg, disp = rm.value;
+	int mod = disp == 0 && base != 5 ? 0x00 : disp >= -128 && disp <= 127 ? 0x40 : 0x80;
+	cur.put8(mod | reg | base);
+	if (base == 4) cur.put8(0x24);  // %esp needs a SIB byte
+	if (mod == 0x40) cur.put8(disp);
+	else if (mod == 0x80) cur.put32(disp);
+    }
+
+
+    private static Operand[] operands(String arg) {
+	if (arg.isEmpty()) return new Operand[0];
+	String[] parts = arg.split(",");
+	Operand[] res = new Operand[parts.length];
+	for (int i = 0;  i < parts.length;  i++)
+	    res[i] = operand(parts[i].trim());
+	return res;
+    }
+
+    private static Operand operand(String s) {
+	Operand o = new Operand();
+	if (s.startsWith("%")) {
+	    o.kind = REG;  o.reg = register(s);
+	} else if (s.startsWith("$")) {
+	    o.kind = IMM;
+	    if (isNumber(s.substring(1)))
+		o.value = Integer.parseInt(s.substring(1));
+	    else
+		o.label = s.substring(1);
+	} else if (s.endsWith(")")) {
+	    int p = s.indexOf('(');
+	    o.kind = MEM;  o.reg = register(s.substring(p+1, s.length()-1));
+	    o.value = p == 0 ? 0 : Integer.parseInt(s.substring(0, p));
+	} else {
+	    o.kind = ABS;  o.label = s;
+	}
+	return o;
+    }
+
+    private static boolean isNumber(String s) {
+	int start = s.startsWith("-") ? 1 : 0;
+	if (s.length() == start) return false;
+	for (int i = start;  i < s.length();  i++) {
+	    if (! Character.isDigit(s.charAt(i))) return false;
+	}
+	return true;
+    }
+
+    private static int register(String s) {
+	String name = s.substring(1);
+	if (name.equals("al")) return 0;
+	for (int i = 0;  i < regNames.length;  i++) {
+	    if (regNames[i].equals(name)) return i;
+	}
+	Main.error("Unknown register " + s + "!");
+	return -1;
+    }
+
+
+    /*
+     * Resolves the label references within .text and turns the rest
+     * into relocations. The symbol table gets the section symbols, the
+     * local labels which are not .L labels, and then the global and
+     * external names.
+     * @return the index of the first global symbol
+     */
+    private int makeSymbols(Bytes symtab, Bytes strtab, Bytes rel) {
+	LinkedHashSet<String> externs = new LinkedHashSet<>();
+	for (Fixup fx : fixups) {
+	    if (! labels.containsKey(fx.label)) externs.add(fx.label);
+	}
+
+	strtab.put8(0);
+	symbol(symtab, 0, 0, 0, 0);               // The null symbol
+	symbol(symtab, 0, 0, 3, TEXT);            // .text
+	symbol(symtab, 0, 0, 3, DATA);            // .data
+	int numSyms = 3;
+	for (String name : labels.keySet()) {
+	    if (name.startsWith(".L") || globals.contains(name)) continue;
+	    Label l = labels.get(name);
+	    symbol(symtab, string(strtab, name), l.offset, 0, l.section);
+	    ++numSyms;
+	}
+	int firstGlobal = numSyms;
+	for (String name : globals) {
+	    Label l = labels.get(name);
+	    if (l == null) continue;
+	    symbol(symtab, string(strtab, name), l.offset, 0x10, l.section);
+	    ++numSyms;
+	}
+	HashMap<String,Integer> externIndex = new HashMap<>();
+	for (String name : externs) {
+	    externIndex.put(name, numSyms++);
+	    symbol(symtab, string(strtab, name), 0, 0x10, 0);
+	}
+
+	// A label defined here is relocated by its section symbol, with
+	// its offset added to the value already in the instruction.
+	for (Fixup fx : fixups) {
+	    Label l = labels.get(fx.label);
+	    int sym = l != null ? l.section : externIndex.get(fx.label);
+	    int addend = l != null ? l.offset : 0;
+	    if (fx.relative && l != null && l.section == TEXT) {
+		text.patch32(fx.pos, l.offset - (fx.pos+4));
+	    } else if (fx.relative) {
+		text.patch32(fx.pos, addend - 4);
+		relocation(rel, fx.pos, sym, R_386_PC32);
+	    } else {
+		text.patch32(fx.pos, text.get32(fx.pos) + addend);
+		relocation(rel, fx.pos, sym, R_386_32);
+	    }
+	}
+	return firstGlobal;
+    }
+
+    private static void symbol(Bytes symtab, int name, int value, int info, int section) {
+	symtab.put32(name);  symtab.put32(value);  symtab.put32(0);
+	symtab.put8(info);  symtab.put8(0);  symtab.put16(section);
+    }
+
+    private static int string(Bytes strtab, String s) {
+	int pos = strtab.size();
+	for (int i = 0;  i < s.length();  i++) strtab.put8(s.charAt(i));
+	strtab.put8(0);
+	return pos;
+    }
+
+    private static void relocation(Bytes rel, int pos, int sym, int type) {
+	rel.put32(pos);  rel.put32(sym << 8 | type);
+    }
+
+
+    private void writeElf(String fileName, Bytes rel, Bytes symtab, Bytes strtab,
+			  int firstGlobal) throws IOException {
+	String[] names = { "", ".text", ".data", ".rel.text", ".symtab",
+			   ".strtab", ".shstrtab", ".note.GNU-stack" };
+	Bytes shstrtab = new Bytes();
+	int[] nameOff = new int[names.length];
+	for (int i = 0;  i < names.length;  i++)
+	    nameOff[i] = string(shstrtab, names[i]);
+
+	Bytes[] contents = { null, text, data, rel, symtab, strtab, shstrtab, new Bytes() };
+	Bytes f = new Bytes();
+	f.put32(0x464C457F);                      // \177ELF
+	f.put8(1);  f.put8(1);  f.put8(1);        // 32 bits, little-endian, version 1
+	while (f.size() < 16) f.put8(0);
+	f.put16(1);  f.put16(3);  f.put32(1);     // Relocatable, i386, version 1
+	f.put32(0);  f.put32(0);                  // No entry point or program headers
+	int shoffPos = f.size();
+	f.put32(0);  f.put32(0);                  // Section headers; flags
+	f.put16(52);  f.put16(0);  f.put16(0);    // Header size; no program headers
+	f.put16(40);  f.put16(names.length);  f.put16(6);
+
+	int[] offsets = new int[names.length];
+	for (int i = 1;  i < names.length;  i++) {
+	    while (f.size() % 4 != 0) f.put8(0);
+	    offsets[i] = f.size();
+	    f.append(contents[i]);
+	}
+	while (f.size() % 4 != 0) f.put8(0);
+	f.patch32(shoffPos, f.size());
+
+	section(f, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+	section(f, nameOff[1], 1, 6, offsets[1], text.size(), 0, 0, 16, 0);
+	section(f, nameOff[2], 1, 3, offsets[2], data.size(), 0, 0, 4, 0);
+	section(f, nameOff[3], 9, 0, offsets[3], rel.size(), 4, TEXT, 4, 8);
+	section(f, nameOff[4], 2, 0, offsets[4], symtab.size(), 5, firstGlobal, 4, 16);
+	section(f, nameOff[5], 3, 0, offsets[5], strtab.size(), 0, 0, 1, 0);
+	section(f, nameOff[6], 3, 0, offsets[6], shstrtab.size(), 0, 0, 1, 0);
+	section(f, nameOff[7], 1, 0, offsets[7], 0, 0, 0, 1, 0);
+
+	try (OutputStream out = new FileOutputStream(fileName)) {
+	    f.writeTo(out);
+	}
+    }
+
+    private static void section(Bytes f, int name, int type, int flags, int offset,
+				int size, int link, int info, int align, int entSize) {
+	f.put32(name);  f.put32(type);  f.put32(flags);  f.put32(0);
+	f.put32(offset);  f.put32(size);  f.put32(link);  f.put32(info);
+	f.put32(align);  f.put32(entSize);
+    }
+}
+
+
+/**
+ * A growing array of bytes with little-endian numbers.
+ */
+class Bytes {
+    private byte[] buf = new byte[4096];
+    private int size = 0;
+
+    int size() {
+	return size;
+    }
+
+    void put8(int b) {
+	if (size == buf.length) buf = Arrays.copyOf(buf, 2*size);
+	buf[size++] = (byte) b;
+    }
+
+    void put16(int v) {
+	put8(v);  put8(v >> 8);
+    }
+
+    void put32(int v) {
+	put16(v);  put16(v >> 16);
+    }
+
+    int get32(int pos) {
+	return (buf[pos] & 0xFF) | (buf[pos+1] & 0xFF) << 8 |
+	    (buf[pos+2] & 0xFF) << 16 | buf[pos+3] << 24;
+    }
+
+    void patch32(int pos, int v) {
+	for (int i = 0;  i < 4;  i++) buf[pos+i] = (byte) (v >> 8*i);
+    }
+
+    void append(Bytes b) {
+	for (int i = 0;  i < b.size;  i++) put8(b.buf[i]);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+	out.write(buf, 0, size);
+    }
+}
@@ -0,0 +1,481 @@
+package no.uio.ifi.pascal2100.main;
+
+import java.util.Arrays;
+
+/**
+ * A peephole optimizer for the instructions in an InstrList. It looks
+ * at one basic block at a time and rewrites the patterns produced by
+ * the stack-based expression code:
+ * <ul>
+ * <li>a left operand pushed from %eax and popped again after a right
+ *     operand which is just loaded stays in %eax, and the right operand
+ *     is loaded into %ecx instead;</li>
+ * <li>a value moved into %ecx only to be the source of an arithmetic
+ *     or compare instruction is used directly, as in "addl $1,%eax";</li>
+ * <li>a compare which sets %eax to 0 or 1 only to test it and branch
+ *     becomes a single conditional jump;</li>
+ * <li>a value loaded into %eax only to be pushed is pushed directly;</li>
+ * <li>a move into a register which is never read, or which already
+ *     holds the value, is removed.</li>
+ * </ul>
+ *
+ * Only %eax, %ecx and %edx are tracked. The ordinary expression code
+ * uses no other registers, but with -regalloc the RegisterAllocator
+ * keeps values in %ebx, %ecx, %esi and %edi as well. The pass never
+ * rewrites or removes an instruction which writes %ebx, %esi or %edi,
+ * and it never remembers a value moved from them, so they may be
+ * used freely. %ecx may thus hold a value for many instructions, so
+ * a move into it is only removed, and it is only used as a scratch
+ * register, when isLive finds that it is not read again in the
+ * block. An instruction which reads and writes do not list is taken
+ * to read all three registers and to write none of them, and it makes
+ * removeRedundantMoves forget what they hold.
+ *
+ * No value is kept in a register across a label or a jump, since
+ * every statement loads what it needs. So no register is live at the
+ * end of a basic block, except %eax before leave and ret, where it
+ * holds the function value.
+ */
+class Peephole {
+    private static final int EAX = 1, ECX = 2, EDX = 4, ALL = EAX|ECX|EDX;
+
+    private final InstrList code;
+    private int[] block = new int[64];  // The rows of the current basic block
+    private int blockLen = 0;
+    private int numRemoved = 0;
+
+    Peephole(InstrList code) {
+	this.code = code;
+    }
+
+    /**
+     * Optimizes all the code.
+     * @return the number of instructions removed
+     */
+    int optimize() {
+	for (int i = 0;  i < code.size();  i++) {
+	    String op = code.op(i);
+	    if (code.kind(i) == InstrList.DELETED) continue;
+	    if (code.kind(i) != InstrList.INSTR || code.label(i).length() > 0 ||
+		op.startsWith(".")) {
+		endBlock();
+		if (code.kind(i) != InstrList.INSTR || op.startsWith("."))
+		    continue;
+	    }
+	    if (op.isEmpty()) continue;  // Just a comment
+
+	    if (blockLen == block.length)
+		block = Arrays.copyOf(block, 2*blockLen);
+	    block[blockLen++] = i;
+	    if (isJump(op) || op.equals("ret")) endBlock();
+	}
+	endBlock();
+	return numRemoved;
+    }
+
+
+    private void endBlock() {
+	boolean changed = true;
+	while (changed) {
+	    changed = false;
+	    for (int k = 0;  k < blockLen;  k++) {
+		if (fuseCompare(k) || keepLeftOperand(k) || useSourceDirectly(k)) {
+		    changed = true;  compact();
+		}
+	    }
+	    // Only when the pushes above have been dealt with:
+	    for (int k = 0;  k < blockLen && ! changed;  k++) {
+		if (pushDirectly(k)) {
+		    changed = true;  compact();
+		}
+	    }
+	    if (removeRedundantMoves()) {
+		changed = true;  compact();
+	    }
+	}
+	blockLen = 0;
+    }
+
+    private void delete(int k) {
+	code.delete(block[k]);  block[k] = -1;
+	++numRemoved;
+    }
+
+    private void compact() {
+	int n = 0;
+	for (int k = 0;  k < blockLen;  k++) {
+	    if (block[k] >= 0) block[n++] = block[k];
+	}
+	blockLen = n;
+    }
+
+
+    /*
+     * cmpl  A,B                     cmpl  A,B
+     * movl  $0,%eax                 j<not cc> L
+     * set<cc> %al              =>
+     * cmpl  $0,%eax
+     * je    L
+     */
+    private boolean fuseCompare(int k) {
+	if (k+4 >= blockLen || ! is(k, "cmpl") || ! is(k+1, "movl", "$0,%eax") ||
+	    ! is(k+3, "cmpl", "$0,%eax")) return false;
+
+	String cc = condition(op(k+2));
+	if (cc == null || ! arg(k+2).equals("%al")) return false;
+	if (is(k+4, "je"))
+	    cc = negated(cc);
+	else if (! is(k+4, "jne"))
+	    return false;
+
+	code.set(block[k+4], "j" + cc, arg(k+4));
+	delete(k+1);  delete(k+2);  delete(k+3);
+	return true;
+    }
+
+
+    /*
+     * pushl %eax                    <loads into %ecx>
+     * <loads into %eax>        =>   cmpl %ecx,%eax      or  <op> %ecx,%eax
+     * popl  %ecx
+     * cmpl  %eax,%ecx
+     *
+     * or
+     *
+     * pushl %eax                    <loads into %ecx>
+     * <loads into %eax>        =>
+     * movl  %eax,%ecx
+     * popl  %eax
+     *
+     * The loads (the right operand) must not read %eax or touch %ecx.
+     */
+    private boolean keepLeftOperand(int k) {
+	if (! is(k, "pushl", "%eax")) return false;
+
+	int m = k+1;
+	boolean loadsEax = false;
+	while (m < blockLen && isSimpleLoad(m)) {
+	    if (dst(arg(m)).equals("%eax")) loadsEax = true;
+	    ++m;
+	}
+	if (! loadsEax || m+1 >= blockLen) return false;
+
+	if (is(m, "popl", "%ecx") && is(m+1, "cmpl", "%eax,%ecx")) {
+	    // The two operands swap registers, so both must be dead after.
+	    if (isLive(m+1, EAX|ECX)) return false;
+	    code.set(block[m+1], "cmpl", "%ecx,%eax");
+	} else if (! (is(m, "movl", "%eax,%ecx") && is(m+1, "popl", "%eax"))) {
+	    return false;
+	} else {
+	    delete(m+1);
+	}
+	for (int j = k+1;  j < m;  j++) {
+	    if (dst(arg(j)).equals("%eax"))
+		code.set(block[j], op(j), src(arg(j)) + ",%ecx");
+	}
+	delete(k);  delete(m);
+	return true;
+    }
+
+    private boolean isSimpleLoad(int k) {
+	if (! (is(k, "movl") || is(k, "leal"))) return false;
+	String d = dst(arg(k));
+	return (d.equals("%eax") || d.equals("%edx")) &&
+	    (regs(src(arg(k))) & (EAX|ECX)) == 0;
+    }
+
+
+    /*
+     * movl  X,%ecx             =>   <op> X,%eax
+     * <op>  %ecx,%eax
+     */
+    private boolean useSourceDirectly(int k) {
+	if (k+1 >= blockLen || ! is(k, "movl") ||
+	    ! dst(arg(k)).equals("%ecx")) return false;
+	String x = src(arg(k));
+	if ((regs(x) & ECX) != 0 || ! arg(k+1).equals("%ecx,%eax")) return false;
+	switch (op(k+1)) {
+	case "addl":  case "subl":  case "imull":  case "andl":  case "orl":
+	case "xorl":  case "cmpl":
+	    break;
+	default:
+	    return false;
+	}
+	if (isLive(k+1, ECX)) return false;
+
+	code.set(block[k+1], op(k+1), x + ",%eax");
+	delete(k);
+	return true;
+    }
+
+
+    /*
+     * movl  X,%eax             =>   pushl X
+     * pushl %eax
+     */
+    private boolean pushDirectly(int k) {
+	if (k+1 >= blockLen || ! is(k, "movl") || ! dst(arg(k)).equals("%eax") ||
+	    ! is(k+1, "pushl", "%eax")) return false;
+	String x = src(arg(k));
+	if (x.contains("%esp") || isLive(k+1, EAX)) return false;
+
+	code.set(block[k+1], "pushl", x);
+	delete(k);
+	return true;
+    }
+
+
+    /*
+     * Removes moves into a register which is never read before it is
+     * written again, loads of a constant or a frame slot into a
+     * register which already holds it, and loads of a value which was
+     * just stored from the same register.
+     */
+    private boolean removeRedundantMoves() {
+	boolean changed = false;
+	String[] known = new String[EDX+1];  // Indexed by register mask
+
+	for (int k = 0;  k < blockLen;  k++) {
+	    String op = op(k), arg = arg(k);
+	    int r = isMove(k) ? regs(dst(arg)) : 0;
+	    if (r != 0 && (! isLive(k, r) || arg.equals(known[r] + "," + dst(arg)) ||
+			   isReload(k))) {
+		delete(k);  changed = true;
+		continue;
+	    }
+
+	    int w = writes(op, arg);
+	    if (op.equals("call") || op.equals("enter") || op.equals("leave") ||
+		! isKnown(op)) {
+		Arrays.fill(known, null);
+	    } else if (op.equals("movl") && ! isRegister(dst(arg))) {
+		forgetAliases(known, dst(arg));
+	    }
+	    for (int reg = EAX;  reg <= EDX;  reg <<= 1) {
+		if ((w & reg) != 0) known[reg] = null;
+	    }
+	    if (r != 0 && op.equals("movl") && isTrackable(src(arg)))
+		known[r] = src(arg);
+	}
+	return changed;
+    }
+
+    private boolean isReload(int k) {
+	String s = src(arg(k)), d = dst(arg(k));
+	return k > 0 && is(k, "movl") && is(k-1, "movl", d + "," + s) &&
+	    (regs(s) & regs(d)) == 0;
+    }
+
+    private boolean isMove(int k) {
+	if (! (is(k, "movl") || is(k, "leal"))) return false;
+	int r = regs(dst(arg(k)));
+	return isRegister(dst(arg(k))) && (r == EAX || r == ECX || r == EDX);
+    }
+
+    /*
+     * Only constants and display entries in the current frame are
+     * remembered. The display is written by enter only, and variables
+     * and parameters reached through another register are at least 36
+     * bytes below or 8 bytes above a frame pointer, so they never
+     * overlap it.
+     */
+    private static boolean isTrackable(String x) {
+	if (x.startsWith("$")) return true;
+	int off = ebpOffset(x);
+	return off < 0 && off > -32;
+    }
+
+    private static void forgetAliases(String[] known, String store) {
+	int off = offset(store);
+	boolean viaEbp = store.endsWith("(%ebp)");
+	for (int reg = EAX;  reg <= EDX;  reg <<= 1) {
+	    String x = known[reg];
+	    if (x == null || x.startsWith("$")) continue;
+	    if (viaEbp ? x.equals(store) : (off > -36 && off < 8))
+		known[reg] = null;
+	}
+    }
+
+    private static int ebpOffset(String x) {
+	return x.endsWith("(%ebp)") ? offset(x) : 0;
+    }
+
+    private static int offset(String x) {
+	int paren = x.indexOf('(');
+	if (paren < 0) return 0;
+	try {
+	    return paren == 0 ? 0 : Integer.parseInt(x, 0, paren, 10);
+	} catch (NumberFormatException e) {
+	    return 0;
+	}
+    }
+
+
+    /**
+     * Is any of the registers read after instruction k, before it is
+     * written again?
+     */
+    private boolean isLive(int k, int regMask) {
+	for (int j = k+1;  j < blockLen && regMask != 0;  j++) {
+	    if (block[j] < 0) continue;
+	    if ((reads(op(j), arg(j)) & regMask) != 0) return true;
+	    regMask &= ~writes(op(j), arg(j));
+	}
+	return false;
+    }
+
+    private static int reads(String op, String arg) {
+	switch (op) {
+	case "movl":  case "leal":  case "movzbl":
+	    String d = dst(arg);
+	    return regs(src(arg)) | (isRegister(d) ? 0 : regs(d));
+	case "pushl":  case "negl":  case "notl":  case "incl":  case "decl":
+	case "addl":  case "subl":  case "imull":  case "andl":  case "orl":
+	case "xorl":  case "cmpl":  case "testl":
+	    return regs(arg);
+	case "popl":
+	    return isRegister(arg) ? 0 : regs(arg);
+	case "cdq":
+	    return EAX;
+	case "idivl":
+	    return EAX | EDX | regs(arg);
+	case "call":
+	    return 0;
+	default:
+	    if (op.startsWith("set")) return regs(arg);
+	    if (isJump(op)) return 0;
+	    return ALL;  // leave, ret, enter and anything else
+	}
+    }
+
+    private static int writes(String op, String arg) {
+	switch (op) {
+	case "movl":  case "leal":  case "movzbl":
+	case "addl":  case "subl":  case "imull":  case "andl":  case "orl":
+	case "xorl":
+	    return isRegister(dst(arg)) ? regs(dst(arg)) : 0;
+	case "popl":  case "negl":  case "notl":  case "incl":  case "decl":
+	    return isRegister(arg) ? regs(arg) : 0;
+	case "cdq":
+	    return EDX;
+	case "idivl":
+	    return EAX | EDX;
+	case "call":
+	    return ALL;
+	case "pushl":  case "cmpl":  case "testl":
+	case "enter":  case "leave":  case "ret":
+	    return 0;
+	default:
+	    if (op.startsWith("set")) return regs(arg);
+	    // A jump, or an instruction the code generator does not use.
+	    return 0;
+	}
+    }
+
+    /*
+     * Is op one of the instructions reads and writes know? Anything
+     * else makes removeRedundantMoves forget what the registers hold.
+     */
+    private static boolean isKnown(String op) {
+	switch (op) {
+	case "movl":  case "leal":  case "movzbl":  case "addl":  case "subl":
+	case "imull":  case "andl":  case "orl":  case "xorl":  case "popl":
+	case "negl":  case "notl":  case "incl":  case "decl":  case "cdq":
+	case "idivl":  case "call":  case "pushl":  case "cmpl":  case "testl":
+	case "enter":  case "leave":  case "ret":
+	    return true;
+	default:
+	    return op.startsWith("set") || isJump(op);
+	}
+    }
+
+
+    private static String condition(String setOp) {
+	switch (setOp) {
+	case "sete":  return "e";
+	case "setne": return "ne";
+	case "setl":  return "l";
+	case "setle": return "le";
+	case "setg":  return "g";
+	case "setge": return "ge";
+	}
+	return null;
+    }
+
+    private static String negated(String cc) {
+	switch (cc) {
+	case "e":  return "ne";
+	case "ne": return "e";
+	case "l":  return "ge";
+	case "ge": return "l";
+	case "g":  return "le";
+	default:   return "g";  // le
+	}
+    }
+
+    private static boolean isJump(String op) {
+	return op.length() > 1 && op.charAt(0) == 'j';
+    }
+
+    private static boolean isRegister(String x) {
+	return x.startsWith("%");
+    }
+
+    /**
+     * @return the registers (of %eax, %ecx and %edx) mentioned in x
+     */
+    private static int regs(String x) {
+	int mask = 0;
+	for (int i = x.indexOf('%');  i >= 0;  i = x.indexOf('%', i+1)) {
+	    int end = i+1;
+	    while (end < x.length() && Character.isLetter(x.charAt(end))) ++end;
+	    switch (x.substring(i+1, end)) {
+	    case "eax":  case "ax":  case "al":  case "ah":  mask |= EAX;  break;
+	    case "ecx":  case "cx":  case "cl":  case "ch":  mask |= ECX;  break;
+	    case "edx":  case "dx":  case "dl":  case "dh":  mask |= EDX;  break;
+	    }
+	}
+	return mask;
+    }
+
+    /*
+     * The operands are separated by the last comma outside parentheses.
+     */
+    private static int operandSplit(String arg) {
+	int depth = 0;
+	for (int i = arg.length()-1;  i >= 0;  i--) {
+	    char c = arg.charAt(i);
+	    if (c == ')') ++depth;
+	    else if (c == '(') --depth;
+	    else if (c == ',' && depth == 0) return i;
+	}
+	return -1;
+    }
+
+    private static String src(String arg) {
+	int i = operandSplit(arg);
+	return i < 0 ? arg : arg.substring(0, i);
+    }
+
+    private static String dst(String arg) {
+	int i = operandSplit(arg);
+	return i < 0 ? arg : arg.substring(i+1);
+    }
+
+
+    private String op(int k) {
+	return code.op(block[k]);
+    }
+
+    private String arg(int k) {
+	return code.arg(block[k]);
+    }
+
+    private boolean is(int k, String op) {
+	return block[k] >= 0 && op(k).equals(op);
+    }
+
+    private boolean is(int k, String op, String arg) {
+	return is(k, op) && arg(k).equals(arg);
+    }
+}
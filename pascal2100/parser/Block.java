@@ -1,10 +1,10 @@
 package no.uio.ifi.pascal2100.parser;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import no.uio.ifi.pascal2100.main.CodeFile;
-import no.uio.ifi.pascal2100.main.Main;
+import no.uio.ifi.pascal2100.main.CompilationContext;
+import no.uio.ifi.pascal2100.main.LogFile;
 import no.uio.ifi.pascal2100.scanner.Scanner;
 import no.uio.ifi.pascal2100.scanner.TokenKind;
 
@@ -17,22 +17,27 @@ public class Block extends PascalSyntax{
 	FuncDecl fd;
 	ProcDecl pd;
 	Block outerScope;
+	CompilationContext ctx;
 	int blockLevel = 1;
 	int localVarByte = 0;
-	public HashMap<String, PascalDecl> decls;
+	// What the statements need from the display; see ProcDecl.isLeaf.
+	boolean makesCalls = false;
+	int minDisplayLevel = Integer.MAX_VALUE, maxDisplayLevel = Integer.MIN_VALUE;
+	public DeclTable decls;
 	ArrayList<PascalSyntax> declListPrint = new ArrayList<>();
 	ArrayList<ProcDecl> procList = new ArrayList<ProcDecl>();
 	ArrayList<FuncDecl> funcList = new ArrayList<FuncDecl>();
 
 	Block(int n) {
 		super(n);
-		decls = new HashMap<String, PascalDecl>();
+		decls = new DeclTable();
 	}
 
 	static Block parse(Scanner s) {
 
-		enterParser("block");
+		enterParser(s, "block");
 		Block b = new Block(s.curLineNum());
+		b.ctx = s.ctx;
 		if(s.curToken.kind == TokenKind.constToken){
 			b.cdp = ConsDeclPart.parse(s);
 			b.declListPrint.add(b.cdp);
@@ -63,7 +68,7 @@ public class Block extends PascalSyntax{
 		s.skip(TokenKind.endToken);
 		if(s.curToken.kind == TokenKind.semicolonToken)
 			s.skip(TokenKind.semicolonToken);
-		leaveParser("block");
+		leaveParser(s, "block");
 		return b;
 	}
 
@@ -73,35 +78,38 @@ public class Block extends PascalSyntax{
 	}
 
 	@Override
-	void prettyPrint() {
+	void prettyPrint(LogFile log) {
 
 		for(PascalSyntax p : declListPrint){
-			p.prettyPrint();
+			p.prettyPrint(log);
 		}
-		Main.log.prettyPrintLn();
-		Main.log.prettyPrintLn("begin");
-		Main.log.prettyIndent();
-		statList.prettyPrint();
-		Main.log.prettyOutdent();
-		Main.log.prettyPrint("end");
+		log.prettyPrintLn();
+		log.prettyPrintLn("begin");
+		log.prettyIndent();
+		statList.prettyPrint(log);
+		log.prettyOutdent();
+		log.prettyPrint("end");
 	}
 
 	void addDecl(String id, PascalDecl pd){
-		if(decls.containsKey(id))
+		int nameId = ctx.names.intern(id);
+		if(decls.get(nameId) != null)
 			pd.error(id + " declared twice in same block!");
-		decls.put(id, pd);
+		decls.put(nameId, pd);
+		++ctx.numDecls;
 	}
 
-	PascalDecl findDecl(String id, PascalSyntax where){
-		PascalDecl pd = decls.get(id);
+	PascalDecl findDecl(int nameId, PascalSyntax where){
+		PascalDecl pd = decls.get(nameId);
 		if(pd != null){
-			Main.log.noteBinding(id, where, pd);
+			if (ctx.log.isLoggingBindings())
+				ctx.log.noteBinding(ctx.names.name(nameId), where, pd);
 			return pd;
 		}
 		if(outerScope != null){
-			return outerScope.findDecl(id, where);
+			return outerScope.findDecl(nameId, where);
 		}
-		where.error("Name " + id + " is unknown!");
+		where.error("Name " + ctx.names.name(nameId) + " is unknown!");
 		return null;
 	}
 
@@ -153,6 +161,25 @@ public class Block extends PascalSyntax{
 		}
 	}
 
+	/**
+	 * Notes that a statement in this block reads a display entry.
+	 * @param level the block level of the variable
+	 */
+	void useDisplay(int level) {
+		minDisplayLevel = Math.min(minDisplayLevel, level);
+		maxDisplayLevel = Math.max(maxDisplayLevel, level);
+	}
+
+	@Override
+	void fold() {
+		for(PascalSyntax ps : declListPrint){
+			if(ps instanceof ProcDecl)
+				ps.fold();
+		}
+		if(statList != null)
+			statList.fold();
+	}
+
 	@Override
 	public void genCode(CodeFile f) {
 		for(PascalSyntax ps : declListPrint){
@@ -168,8 +195,8 @@ public class Block extends PascalSyntax{
 			}
 		}
 		if((outerScope.blockLevel) == 1){
-			f.genInstr("prog$" + Program.assName , "enter", "$"+ 
-					((32+localVarByte))+",$1" , "Start of " + Program.nam);
+			f.genInstr("prog$" + ctx.programLabel , "enter", "$"+ 
+					((32+localVarByte))+",$1" , "Start of " + ctx.programName);
 		}
 		
 		if(statList != null){
@@ -179,6 +206,55 @@ public class Block extends PascalSyntax{
 	}
 }
 
+/**
+ * The declarations of a block, keyed on the name id from the NameTable.
+ * This is a small open addressing hash table, so a lookup is just a few
+ * int comparisons.
+ */
+class DeclTable {
+	private int[] keys = new int[8];  // name id+1, or 0 if free
+	private PascalDecl[] decls = new PascalDecl[8];
+	private int size = 0;
+
+	PascalDecl get(int nameId) {
+		int mask = keys.length - 1;
+		for (int i = slot(nameId, mask);  keys[i] != 0;  i = (i+1) & mask) {
+			if (keys[i] == nameId+1)
+				return decls[i];
+		}
+		return null;
+	}
+
+	void put(int nameId, PascalDecl pd) {
+		int mask = keys.length - 1;
+		int i = slot(nameId, mask);
+		while (keys[i] != 0 && keys[i] != nameId+1)
+			i = (i+1) & mask;
+		if (keys[i] == 0) ++size;
+		keys[i] = nameId+1;  decls[i] = pd;
+		if (2*size > keys.length) grow();
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		PascalDecl[] oldDecls = decls;
+		keys = new int[2*oldKeys.length];
+		decls = new PascalDecl[2*oldKeys.length];
+		size = 0;
+		for (int i = 0;  i < oldKeys.length;  i++) {
+			if (oldKeys[i] != 0) put(oldKeys[i]-1, oldDecls[i]);
+		}
+	}
+
+	private static int slot(int nameId, int mask) {
+		return (nameId * 0x9E3779B9 >>> 16) & mask;
+	}
+}
+
 class ConsDeclPart extends PascalSyntax{
 
 	ArrayList<ConstDecl> constList = new ArrayList<ConstDecl>();
@@ -190,14 +266,14 @@ class ConsDeclPart extends PascalSyntax{
 
 	static ConsDeclPart parse(Scanner s) {
 
-		enterParser("const decl part");
+		enterParser(s, "const decl part");
 		ConsDeclPart cdp = new ConsDeclPart(s.curLineNum());
 		s.skip(TokenKind.constToken);
 		while(s.curToken.kind == TokenKind.nameToken){
 			ConstDecl cd = ConstDecl.parse(s);
 			cdp.constList.add(cd);
 		}
-		leaveParser("const decl part");
+		leaveParser(s, "const decl part");
 		return cdp;
 	}
 
@@ -207,10 +283,10 @@ class ConsDeclPart extends PascalSyntax{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrintLn("const ");
+	void prettyPrint(LogFile log) {
+		log.prettyPrintLn("const ");
 		for(ConstDecl c : constList){
-			c.prettyPrint();
+			c.prettyPrint(log);
 		}
 	}
 
@@ -242,14 +318,14 @@ class TypeDeclPart extends PascalSyntax{
 
 	static TypeDeclPart parse(Scanner s) {
 
-		enterParser("type decl part");
+		enterParser(s, "type decl part");
 		TypeDeclPart tdp = new TypeDeclPart(s.curLineNum());
 		s.skip(TokenKind.typeToken);
 		while(s.curToken.kind == TokenKind.nameToken){
 			TypeDecl td = TypeDecl.parse(s);
 			tdp.typeList.add(td);
 		}
-		leaveParser("type decl part");
+		leaveParser(s, "type decl part");
 		return tdp;
 	}
 
@@ -259,13 +335,13 @@ class TypeDeclPart extends PascalSyntax{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrintLn("type");
-		Main.log.prettyIndent();
+	void prettyPrint(LogFile log) {
+		log.prettyPrintLn("type");
+		log.prettyIndent();
 		for(TypeDecl t : typeList){
-			t.prettyPrint();
+			t.prettyPrint(log);
 		}
-		Main.log.prettyOutdent();
+		log.prettyOutdent();
 	}
 
 	@Override
@@ -293,14 +369,14 @@ class VarDeclPart extends PascalSyntax{
 
 	static VarDeclPart parse(Scanner s) {
 
-		enterParser("var decl part");
+		enterParser(s, "var decl part");
 		VarDeclPart vdp = new VarDeclPart(s.curLineNum());
 		s.skip(TokenKind.varToken);
 		while(s.curToken.kind == TokenKind.nameToken){
 			VarDecl vd = VarDecl.parse(s);
 			vdp.varList.add(vd);
 		}
-		leaveParser("var decl part");
+		leaveParser(s, "var decl part");
 		return vdp;
 	}
 
@@ -310,13 +386,13 @@ class VarDeclPart extends PascalSyntax{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrintLn("var ");
-		Main.log.prettyIndent();
+	void prettyPrint(LogFile log) {
+		log.prettyPrintLn("var ");
+		log.prettyIndent();
 		for(VarDecl v : varList){
-			v.prettyPrint();
+			v.prettyPrint(log);
 		}
-		Main.log.prettyOutdent();
+		log.prettyOutdent();
 	}
 
 	@Override
@@ -0,0 +1,472 @@
+package no.uio.ifi.pascal2100.parser;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import no.uio.ifi.pascal2100.main.Main;
+import no.uio.ifi.pascal2100.scanner.TokenKind;
+
+/**
+ * A compact stack-based bytecode for a checked program, and the VM which
+ * runs it (-vm). The program is compiled to one int[], where every
+ * instruction is an opcode followed by its operands, and the VM is a
+ * single loop with a switch on the opcode, so no tree is walked and no
+ * virtual call is made while the program runs.
+ *
+ * The frames lie in one int[] as well. A frame for a routine on level L
+ * starts with the display (the frames for level 1 to L), then the
+ * function value, then the variables and the parameters. So a variable
+ * is found by its level and its position, both known when the code is
+ * compiled. The program behaves as the compiled code and the -run
+ * interpreter do.
+ */
+class ByteCode {
+	// The opcodes, with their operands:
+	static final int
+		CONST = 0,    // value
+		LOAD = 1,     // level, offset
+		STORE = 2,    // level, offset
+		ADD = 3,  SUB = 4,  OR = 5,  MUL = 6,  AND = 7,
+		DIV = 8,      // line
+		MOD = 9,      // line
+		NEG = 10,  NOT = 11,
+		EQ = 12,  NE = 13,  LT = 14,  LE = 15,  GT = 16,  GE = 17,
+		JUMP = 18,    // target
+		JUMPF = 19,   // target; jumps if the value is 0
+		CALL = 20,    // routine
+		RET = 21,     // offset of the function value
+		POP = 22,
+		WRITEI = 23,  WRITEC = 24,
+		WRITES = 25,  // string
+		HALT = 26,
+		LOADL = 27,   // offset; a variable in the current frame
+		STOREL = 28;  // offset
+
+	// How many values each opcode leaves on the stack; CALL depends on
+	// the routine.
+	private static final int[] stackEffect = {
+		1, 1, -1, -1, -1, -1, -1, -1, -1, -1, 0, 0, -1, -1, -1, -1, -1, -1,
+		0, -1, 0, 0, -1, -1, -1, 0, 0, 1, -1 };
+
+	private int[] code = new int[1024];
+	private int size = 0;
+	private final ArrayList<String> strings = new ArrayList<>();
+
+	// The routines, numbered as they are met:
+	private final HashMap<ProcDecl, Integer> routineNo = new HashMap<>();
+	private int[] entry = new int[16], level = new int[16], frameSize = new int[16],
+		numParams = new int[16], firstParam = new int[16];
+	private int numRoutines = 0;
+
+	// Where the variables and parameters lie in their frame:
+	private final HashMap<PascalDecl, Integer> offsetOf = new HashMap<>();
+	private int mainFrameSize, mainEntry = 0;
+
+	// While compiling: the level of the current routine, and the number
+	// of values on the stack, so the VM knows how large it must be.
+	private int curLevel = 1, depth = 0, maxDepth = 0;
+
+	private ByteCode() {}
+
+	/**
+	 * Compiles a checked program.
+	 */
+	static ByteCode compile(Program p) {
+		ByteCode bc = new ByteCode();
+		if(p.body != null){
+			bc.mainFrameSize = bc.layout(p.body, null, 1);
+			bc.genRoutines(p.body);
+			int start = bc.size;
+			bc.genStatmList(p.body.statList);
+			bc.emit(HALT);
+			bc.mainEntry = start;
+		}else{
+			bc.emit(HALT);
+		}
+		return bc;
+	}
+
+
+	/*
+	 * Gives the variables and parameters of a block their offset in the
+	 * frame.
+	 * @return the size of the frame
+	 */
+	private int layout(Block b, ParamDeclList pdl, int lev) {
+		int off = lev + 1;
+		if(b.vdp != null){
+			for(VarDecl v : b.vdp.varList)
+				offsetOf.put(v, off++);
+		}
+		if(pdl != null){
+			for(ParamDecl p : pdl.paramList)
+				offsetOf.put(p, off++);
+		}
+		return off;
+	}
+
+	private int routine(ProcDecl pd) {
+		Integer r = routineNo.get(pd);
+		if(r != null) return r;
+		if(numRoutines == entry.length){
+			int n = 2*numRoutines;
+			entry = Arrays.copyOf(entry, n);  level = Arrays.copyOf(level, n);
+			frameSize = Arrays.copyOf(frameSize, n);
+			numParams = Arrays.copyOf(numParams, n);
+			firstParam = Arrays.copyOf(firstParam, n);
+		}
+		r = numRoutines++;
+		routineNo.put(pd, r);
+		level[r] = pd.declLevel;
+		frameSize[r] = layout(pd.block, pd.pdl, pd.declLevel);
+		numParams[r] = pd.pdl == null ? 0 : pd.pdl.paramList.size();
+		firstParam[r] = frameSize[r] - numParams[r];
+		return r;
+	}
+
+	private void genRoutines(Block b) {
+		for(PascalSyntax ps : b.declListPrint){
+			if(ps instanceof ProcDecl){
+				ProcDecl pd = (ProcDecl) ps;
+				int r = routine(pd);
+				genRoutines(pd.block);
+				entry[r] = size;
+				int outerLevel = curLevel;
+				curLevel = pd.declLevel;
+				genStatmList(pd.block.statList);
+				emit(RET, pd.declLevel);
+				curLevel = outerLevel;
+			}
+		}
+	}
+
+
+	private void genStatmList(StatmList sl) {
+		if(sl == null) return;
+		for(Statement s : sl.statList)
+			genStatement(s);
+	}
+
+	private void genStatement(Statement s) {
+		if(s instanceof AssignStatm){
+			AssignStatm a = (AssignStatm) s;
+			genExpression(a.expr);
+			PascalDecl d = a.var.declRef;
+			if(d instanceof VarDecl || d instanceof ParamDecl)
+				genAccess(STORE, d.declLevel, offsetOf.get(d));
+			else if(d instanceof FuncDecl)
+				genAccess(STORE, ((FuncDecl) d).declLevel, ((FuncDecl) d).declLevel);
+			else
+				emit(POP);
+		}else if(s instanceof CompoundStatm){
+			genStatmList(((CompoundStatm) s).list);
+		}else if(s instanceof IfStatm){
+			IfStatm is = (IfStatm) s;
+			genExpression(is.expr);
+			int jumpElse = emitJump(JUMPF);
+			genStatement(is.stat);
+			if(is.elsePart != null){
+				int jumpEnd = emitJump(JUMP);
+				code[jumpElse] = size;
+				genStatement(is.elsePart.stm);
+				code[jumpEnd] = size;
+			}else{
+				code[jumpElse] = size;
+			}
+		}else if(s instanceof WhileStatm){
+			WhileStatm ws = (WhileStatm) s;
+			int test = size;
+			genExpression(ws.expr);
+			int jumpEnd = emitJump(JUMPF);
+			genStatement(ws.statm);
+			emit(JUMP, test);
+			code[jumpEnd] = size;
+		}else if(s instanceof ProcCallStatm){
+			ProcCallStatm pc = (ProcCallStatm) s;
+			if(pc.nam.equals("write")){
+				genWrite(pc.exprList);
+			}else{
+				genCall(pc.procRef, pc.exprList);
+				emit(POP);
+			}
+		}
+	}
+
+	private void genWrite(ExpressionList el) {
+		for(Expression ex : el.exprList){
+			Factor ff = ex.simexpLeft.term.factor;
+			if(ff instanceof StringLiteral){
+				strings.add(((StringLiteral) ff).valString);
+				emit(WRITES, strings.size()-1);
+			}else if(ff instanceof Variable && ((Variable) ff).nam.equals("eol")){
+				emit(CONST, 10);  emit(WRITEC);
+			}else{
+				genExpression(ex);
+				emit(ff instanceof CharLiteral ? WRITEC : WRITEI);
+			}
+		}
+	}
+
+	private void genCall(ProcDecl pd, ExpressionList el) {
+		if(el != null){
+			for(int i = el.exprList.size()-1;  i >= 0;  i--)
+				genExpression(el.exprList.get(i));
+		}
+		emit(CALL, routine(pd));
+	}
+
+
+	private void genExpression(Expression e) {
+		if(e.isConst){
+			emit(CONST, e.constVal);  return;
+		}
+		genSimpleExpr(e.simexpLeft);
+		if(e.relopr == null) return;
+		genSimpleExpr(e.simexpRight);
+		switch (e.relopr.oprToken) {
+		case equalToken:     emit(EQ);  break;
+		case notEqualToken:  emit(NE);  break;
+		case lessToken:      emit(LT);  break;
+		case lessEqualToken: emit(LE);  break;
+		case greaterToken:   emit(GT);  break;
+		default:             emit(GE);  break;
+		}
+	}
+
+	private void genSimpleExpr(SimpleExpr se) {
+		if(se.isConst){
+			emit(CONST, se.constVal);  return;
+		}
+		genTerm(se.termList.get(0));
+		if(se.prefixOpr != null && se.prefixOpr.oprToken == TokenKind.subtractToken)
+			emit(NEG);
+		for(int i = 0;  i < se.termOprList.size();  i++){
+			genTerm(se.termList.get(i+1));
+			TokenKind opr = se.termOprList.get(i).oprToken;
+			emit(opr == TokenKind.addToken ? ADD : opr == TokenKind.subtractToken ? SUB : OR);
+		}
+	}
+
+	private void genTerm(Term t) {
+		if(t.isConst){
+			emit(CONST, t.constVal);  return;
+		}
+		genFactor(t.factorList.get(0));
+		for(int i = 0;  i < t.facOprList.size();  i++){
+			genFactor(t.factorList.get(i+1));
+			TokenKind opr = t.facOprList.get(i).oprToken;
+			if(opr == TokenKind.multiplyToken)
+				emit(MUL);
+			else if(opr == TokenKind.divToken)
+				emit(DIV, t.lineNum);
+			else if(opr == TokenKind.modToken)
+				emit(MOD, t.lineNum);
+			else
+				emit(AND);
+		}
+	}
+
+	private void genFactor(Factor fa) {
+		if(fa.isConst){
+			emit(CONST, fa.constVal);
+		}else if(fa instanceof NumberLiteral){
+			emit(CONST, ((NumberLiteral) fa).valInt);
+		}else if(fa instanceof CharLiteral){
+			emit(CONST, ((CharLiteral) fa).valChar.charAt(0));
+		}else if(fa instanceof StringLiteral){
+			emit(CONST, stringValue(((StringLiteral) fa).valString));
+		}else if(fa instanceof InnerExpr){
+			genExpression(((InnerExpr) fa).expr);
+		}else if(fa instanceof Negation){
+			genFactor(((Negation) fa).factor);
+			emit(NOT);
+		}else if(fa instanceof FuncCall){
+			FuncCall fc = (FuncCall) fa;
+			genCall(fc.funcDeclRef, fc.innerExprList);
+		}else if(fa instanceof Variable){
+			genVariable((Variable) fa);
+		}else{
+			emit(CONST, 0);
+		}
+	}
+
+	private void genVariable(Variable v) {
+		PascalDecl d = v.declRef;
+		int value = 0;
+		if(d instanceof ConstDecl){
+			Constant c = ((ConstDecl) d).constant;
+			if(c instanceof NumberLiteral)
+				value = ((NumberLiteral) c).valInt;
+			else if(c instanceof CharLiteral)
+				value = ((CharLiteral) c).valChar.charAt(0);
+			else if(c instanceof StringLiteral)
+				value = stringValue(((StringLiteral) c).valString);
+		}else if(d instanceof FuncDecl){
+			int lev = ((FuncDecl) d).declLevel;
+			genAccess(LOAD, lev, lev);  return;
+		}else if(d instanceof EnumLiteral){
+			EnumLiteral el = (EnumLiteral) d;
+			if(el.value.equals("true"))
+				value = 1;
+			else if(! el.value.equals("false") && el.type instanceof EnumType)
+				value = ((EnumType) el.type).enumLitList.indexOf(el);
+		}else if(d instanceof VarDecl || d instanceof ParamDecl){
+			if(v.expr != null){
+				// The index is the value, as in the compiled code.
+				genExpression(v.expr);
+			}else{
+				genAccess(LOAD, d.declLevel, offsetOf.get(d));
+			}
+			return;
+		}
+		emit(CONST, value);
+	}
+
+	// A string is used as the sum of its characters, as in the compiled code.
+	private static int stringValue(String s) {
+		int v = 0;
+		for(int i = 0;  i < s.length();  i++)
+			v += s.charAt(i);
+		return v;
+	}
+
+
+	// A variable in the current frame needs no display lookup.
+	private void genAccess(int op, int lev, int offset) {
+		if(lev == curLevel)
+			emit(op == LOAD ? LOADL : STOREL, offset);
+		else
+			emit(op, lev, offset);
+	}
+
+	private void emit(int... words) {
+		if(size + words.length > code.length)
+			code = Arrays.copyOf(code, 2*code.length + words.length);
+		for(int w : words) code[size++] = w;
+
+		int op = words[0];
+		if(op == CALL)
+			depth += 1 - numParams[words[1]];
+		else if(op == RET)
+			depth = 0;
+		else
+			depth += stackEffect[op];
+		maxDepth = Math.max(maxDepth, depth);
+	}
+
+	// Emits a jump and returns where its target is to be filled in.
+	private int emitJump(int op) {
+		emit(op, -1);
+		return size-1;
+	}
+
+
+	/**
+	 * Runs the program.
+	 * @param ps where the program writes
+	 */
+	void run(PrintStream ps) {
+		PrintWriter out = new PrintWriter(new BufferedWriter(
+				new OutputStreamWriter(ps), 1 << 16));
+		try {
+			execute(out);
+		} finally {
+			out.flush();
+		}
+	}
+
+	private void execute(PrintWriter out) {
+		final int[] code = this.code;
+		int[] stack = new int[2*maxDepth + 2];  // The values being computed
+		int[] mem = new int[4096];    // The frames
+		int[] calls = new int[128];   // Return address and frame of each call
+		int sp = 0, cp = 0;
+		int fp = 0, top = mainFrameSize;
+		mem[0] = 0;  // The display of the main program
+		int pc = mainEntry;
+
+		while(true){
+			int a, b;
+			switch (code[pc++]) {
+			case CONST:
+				stack[sp++] = code[pc++];  break;
+			case LOADL:
+				stack[sp++] = mem[fp + code[pc++]];  break;
+			case STOREL:
+				mem[fp + code[pc++]] = stack[--sp];  break;
+			case LOAD:
+				a = code[pc++];  b = code[pc++];
+				stack[sp++] = mem[mem[fp+a-1] + b];  break;
+			case STORE:
+				a = code[pc++];  b = code[pc++];
+				mem[mem[fp+a-1] + b] = stack[--sp];  break;
+			case ADD:  b = stack[--sp];  stack[sp-1] += b;  break;
+			case SUB:  b = stack[--sp];  stack[sp-1] -= b;  break;
+			case OR:   b = stack[--sp];  stack[sp-1] |= b;  break;
+			case MUL:  b = stack[--sp];  stack[sp-1] *= b;  break;
+			case AND:  b = stack[--sp];  stack[sp-1] &= b;  break;
+			case DIV:
+			case MOD:
+				b = stack[--sp];  a = stack[sp-1];
+				// idivl traps on these, and so does the compiled program.
+				if(b == 0 || (a == Integer.MIN_VALUE && b == -1)){
+					out.flush();
+					Main.error("Run-time error in line " + code[pc] +
+							": Division by zero or overflow!");
+				}
+				stack[sp-1] = code[pc-1] == DIV ? a / b : a % b;
+				++pc;
+				break;
+			case NEG:  stack[sp-1] = -stack[sp-1];  break;
+			case NOT:  stack[sp-1] ^= 1;  break;
+			case EQ:  b = stack[--sp];  stack[sp-1] = stack[sp-1] == b ? 1 : 0;  break;
+			case NE:  b = stack[--sp];  stack[sp-1] = stack[sp-1] != b ? 1 : 0;  break;
+			case LT:  b = stack[--sp];  stack[sp-1] = stack[sp-1] < b ? 1 : 0;  break;
+			case LE:  b = stack[--sp];  stack[sp-1] = stack[sp-1] <= b ? 1 : 0;  break;
+			case GT:  b = stack[--sp];  stack[sp-1] = stack[sp-1] > b ? 1 : 0;  break;
+			case GE:  b = stack[--sp];  stack[sp-1] = stack[sp-1] >= b ? 1 : 0;  break;
+			case JUMP:
+				pc = code[pc];  break;
+			case JUMPF:
+				pc = stack[--sp] == 0 ? code[pc] : pc+1;  break;
+			case CALL: {
+				int r = code[pc++], lev = level[r], newFp = top;
+				top += frameSize[r];
+				if(top > mem.length) mem = Arrays.copyOf(mem, 2*top);
+				// The display is copied from the caller, as enter does.
+				System.arraycopy(mem, fp, mem, newFp, lev-1);
+				mem[newFp+lev-1] = newFp;
+				Arrays.fill(mem, newFp+lev, firstParam[r] + newFp, 0);
+				for(int i = 0;  i < numParams[r];  i++)
+					mem[newFp + firstParam[r] + i] = stack[--sp];
+				if(cp + 2 > calls.length) calls = Arrays.copyOf(calls, 2*calls.length);
+				// The callee may need maxDepth more values.
+				if(sp + maxDepth + 1 > stack.length)
+					stack = Arrays.copyOf(stack, 2*stack.length + maxDepth);
+				calls[cp++] = pc;  calls[cp++] = fp;
+				fp = newFp;  pc = entry[r];
+				break;
+			}
+			case RET:
+				stack[sp++] = mem[fp + code[pc]];
+				top = fp;
+				fp = calls[--cp];  pc = calls[--cp];
+				break;
+			case POP:
+				--sp;  break;
+			case WRITEI:
+				out.print(stack[--sp]);  break;
+			case WRITEC:
+				out.print((char) stack[--sp]);  break;
+			case WRITES:
+				out.print(strings.get(code[pc++]));  break;
+			case HALT:
+				return;
+			default:
+				Main.error("PANIC! Programming error in ByteCode: bad opcode " + code[pc-1]);
+			}
+		}
+	}
+}
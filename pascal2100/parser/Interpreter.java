@@ -0,0 +1,266 @@
+package no.uio.ifi.pascal2100.parser;
+
+import java.io.*;
+import java.util.HashMap;
+
+import no.uio.ifi.pascal2100.main.Main;
+import no.uio.ifi.pascal2100.scanner.TokenKind;
+
+/**
+ * Runs a checked program directly from the tree (-run), so no code file
+ * or assembler is needed. The program should behave just as the
+ * compiled code does: integers are 32 bits, the parameters are
+ * computed from the last to the first, and write chooses how to print
+ * a value from its first factor. Where the compiled program would be
+ * killed by the processor, as for a division by zero, the interpreter
+ * stops with an error.
+ *
+ * Every call gets a Frame with its variables and parameters, and a
+ * display which is copied from the caller, as enter does.
+ */
+class Interpreter {
+	private static class Frame {
+		final int[] slots;
+		final Frame[] display;
+		int result;  // The function value
+
+		Frame(int numSlots, Frame caller, int level) {
+			slots = new int[numSlots];
+			display = new Frame[level+1];
+			if(caller != null)
+				System.arraycopy(caller.display, 0, display, 0,
+						Math.min(level, caller.display.length));
+			display[level] = this;
+		}
+	}
+
+	// Where the variables and parameters lie in their frame:
+	private final HashMap<PascalDecl, Integer> slotOf = new HashMap<>();
+	private final HashMap<Block, Integer> sizeOf = new HashMap<>();
+	private final PrintWriter out;
+	private Frame cur;
+
+	private Interpreter(PrintStream ps) {
+		out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(ps), 1 << 16));
+	}
+
+	static void run(Program p) {
+		Interpreter in = new Interpreter(p.ctx.out);
+		try {
+			if(p.body != null){
+				in.cur = new Frame(in.layout(p.body, null), null, 1);
+				in.execStatmList(p.body.statList);
+			}
+		} finally {
+			in.out.flush();
+		}
+	}
+
+	/*
+	 * Numbers the variables and parameters of a block.
+	 * @return the number of slots in its frame
+	 */
+	private int layout(Block b, ParamDeclList pdl) {
+		Integer size = sizeOf.get(b);
+		if(size != null) return size;
+		int n = 0;
+		if(b.vdp != null){
+			for(VarDecl v : b.vdp.varList)
+				slotOf.put(v, n++);
+		}
+		if(pdl != null){
+			for(ParamDecl p : pdl.paramList)
+				slotOf.put(p, n++);
+		}
+		sizeOf.put(b, n);
+		return n;
+	}
+
+
+	private void execStatmList(StatmList sl) {
+		if(sl == null) return;
+		for(Statement s : sl.statList)
+			exec(s);
+	}
+
+	private void exec(Statement s) {
+		if(s instanceof AssignStatm){
+			AssignStatm a = (AssignStatm) s;
+			int v = eval(a.expr);
+			PascalDecl d = a.var.declRef;
+			if(d instanceof VarDecl || d instanceof ParamDecl)
+				cur.display[d.declLevel].slots[slotOf.get(d)] = v;
+			else if(d instanceof FuncDecl)
+				cur.result = v;
+		}else if(s instanceof CompoundStatm){
+			execStatmList(((CompoundStatm) s).list);
+		}else if(s instanceof IfStatm){
+			IfStatm is = (IfStatm) s;
+			if(eval(is.expr) != 0)
+				exec(is.stat);
+			else if(is.elsePart != null)
+				exec(is.elsePart.stm);
+		}else if(s instanceof WhileStatm){
+			WhileStatm ws = (WhileStatm) s;
+			while(eval(ws.expr) != 0)
+				exec(ws.statm);
+		}else if(s instanceof ProcCallStatm){
+			ProcCallStatm pc = (ProcCallStatm) s;
+			if(pc.nam.equals("write"))
+				write(pc.exprList);
+			else
+				call(pc.procRef, pc.exprList);
+		}
+	}
+
+	private void write(ExpressionList el) {
+		for(Expression ex : el.exprList){
+			Factor ff = ex.simexpLeft.term.factor;
+			if(ff instanceof StringLiteral){
+				out.print(((StringLiteral) ff).valString);
+				continue;
+			}
+			int v = eval(ex);
+			if(ff instanceof Variable && ((Variable) ff).nam.equals("eol"))
+				out.print('\n');
+			else if(ff instanceof CharLiteral)
+				out.print((char) v);
+			else
+				out.print(v);
+		}
+	}
+
+	private int call(ProcDecl pd, ExpressionList el) {
+		int n = el == null ? 0 : el.exprList.size();
+		int[] args = new int[n];
+		for(int i = n-1;  i >= 0;  i--)
+			args[i] = eval(el.exprList.get(i));
+
+		Frame caller = cur;
+		cur = new Frame(layout(pd.block, pd.pdl), caller, pd.declLevel);
+		for(int i = 0;  i < n;  i++)
+			cur.slots[slotOf.get(pd.pdl.paramList.get(i))] = args[i];
+		try {
+			execStatmList(pd.block.statList);
+			return cur.result;
+		} finally {
+			cur = caller;
+		}
+	}
+
+
+	private int eval(Expression e) {
+		if(e.isConst) return e.constVal;
+		int v = eval(e.simexpLeft);
+		if(e.relopr == null) return v;
+		int w = eval(e.simexpRight);
+		boolean res;
+		switch (e.relopr.oprToken) {
+		case equalToken:     res = v == w;  break;
+		case notEqualToken:  res = v != w;  break;
+		case lessToken:      res = v < w;   break;
+		case lessEqualToken: res = v <= w;  break;
+		case greaterToken:   res = v > w;   break;
+		default:             res = v >= w;  break;
+		}
+		return res ? 1 : 0;
+	}
+
+	private int eval(SimpleExpr se) {
+		if(se.isConst) return se.constVal;
+		int v = eval(se.termList.get(0));
+		if(se.prefixOpr != null && se.prefixOpr.oprToken == TokenKind.subtractToken)
+			v = -v;
+		for(int i = 0;  i < se.termOprList.size();  i++){
+			int w = eval(se.termList.get(i+1));
+			TokenKind opr = se.termOprList.get(i).oprToken;
+			if(opr == TokenKind.addToken)
+				v += w;
+			else if(opr == TokenKind.subtractToken)
+				v -= w;
+			else
+				v |= w;
+		}
+		return v;
+	}
+
+	private int eval(Term t) {
+		if(t.isConst) return t.constVal;
+		int v = eval(t.factorList.get(0));
+		for(int i = 0;  i < t.facOprList.size();  i++){
+			int w = eval(t.factorList.get(i+1));
+			TokenKind opr = t.facOprList.get(i).oprToken;
+			if(opr == TokenKind.multiplyToken){
+				v *= w;
+			}else if(opr == TokenKind.divToken || opr == TokenKind.modToken){
+				// idivl traps on these, and so does the compiled program.
+				if(w == 0 || (v == Integer.MIN_VALUE && w == -1))
+					runError(t, "Division by zero or overflow");
+				v = opr == TokenKind.divToken ? v / w : v % w;
+			}else{
+				v &= w;
+			}
+		}
+		return v;
+	}
+
+	private int eval(Factor fa) {
+		if(fa.isConst) return fa.constVal;
+		if(fa instanceof NumberLiteral)
+			return ((NumberLiteral) fa).valInt;
+		if(fa instanceof CharLiteral)
+			return ((CharLiteral) fa).valChar.charAt(0);
+		if(fa instanceof StringLiteral)
+			return stringValue(((StringLiteral) fa).valString);
+		if(fa instanceof InnerExpr)
+			return eval(((InnerExpr) fa).expr);
+		if(fa instanceof Negation)
+			return eval(((Negation) fa).factor) ^ 1;
+		if(fa instanceof FuncCall){
+			FuncCall fc = (FuncCall) fa;
+			return call(fc.funcDeclRef, fc.innerExprList);
+		}
+		if(fa instanceof Variable)
+			return eval((Variable) fa);
+		return 0;
+	}
+
+	private int eval(Variable v) {
+		PascalDecl d = v.declRef;
+		if(d instanceof ConstDecl){
+			Constant c = ((ConstDecl) d).constant;
+			if(c instanceof NumberLiteral)
+				return ((NumberLiteral) c).valInt;
+			if(c instanceof CharLiteral)
+				return ((CharLiteral) c).valChar.charAt(0);
+			if(c instanceof StringLiteral)
+				return stringValue(((StringLiteral) c).valString);
+		}else if(d instanceof FuncDecl){
+			return cur.result;
+		}else if(d instanceof EnumLiteral){
+			EnumLiteral el = (EnumLiteral) d;
+			if(el.value.equals("false")) return 0;
+			if(el.value.equals("true")) return 1;
+			if(el.type instanceof EnumType)
+				return ((EnumType) el.type).enumLitList.indexOf(el);
+		}else if(d instanceof VarDecl || d instanceof ParamDecl){
+			int val = cur.display[d.declLevel].slots[slotOf.get(d)];
+			// An index is computed after the variable, as in the compiled code.
+			return v.expr != null ? eval(v.expr) : val;
+		}
+		return 0;
+	}
+
+	// A string is used as the sum of its characters, as in the compiled code.
+	private static int stringValue(String s) {
+		int v = 0;
+		for(int i = 0;  i < s.length();  i++)
+			v += s.charAt(i);
+		return v;
+	}
+
+	private void runError(PascalSyntax where, String message) {
+		out.flush();
+		Main.error("Run-time error in line " + where.lineNum + ": " + message + "!");
+	}
+}
@@ -0,0 +1,730 @@
+package no.uio.ifi.pascal2100.parser;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import no.uio.ifi.pascal2100.main.Main;
+import no.uio.ifi.pascal2100.scanner.TokenKind;
+
+/**
+ * Compiles a checked program to a JVM class in memory and runs it (-jvm),
+ * so HotSpot can compile the hot loops to machine code. Every routine
+ * becomes a static method which returns its function value (0 for a
+ * procedure). Its variables and parameters are JVM locals, except those
+ * used by a routine nested inside it: they lie in an int[] frame, and a
+ * routine on level L gets the frames for level 1 to L-1 as its first
+ * arguments. The parameters follow in reverse order, so they are computed
+ * from the last to the first, as in the compiled code.
+ *
+ * The nested routines are compiled before the routine around them, so
+ * it is known which variables must lie in a frame when the outer
+ * routine is compiled.
+ *
+ * The class file has version 49, which the JVM verifies without stack
+ * maps. It is defined as a hidden class in this package, so it may call
+ * divide and remainder below, and it is unloaded with the program.
+ */
+class JvmCompiler {
+	private static final String className = "no/uio/ifi/pascal2100/parser/PascalProgram",
+		helperName = "no/uio/ifi/pascal2100/parser/JvmCompiler";
+
+	// The JVM instructions used:
+	private static final int
+		ACONST_NULL = 0x01,  ICONST_0 = 0x03,  BIPUSH = 0x10,  SIPUSH = 0x11,
+		LDC = 0x12,  LDC_W = 0x13,  ILOAD = 0x15,  ALOAD = 0x19,  IALOAD = 0x2e,
+		ISTORE = 0x36,  ASTORE = 0x3a,  IASTORE = 0x4f,  POP = 0x57,
+		IADD = 0x60,  ISUB = 0x64,  IMUL = 0x68,  INEG = 0x74,  IAND = 0x7e,
+		IOR = 0x80,  IXOR = 0x82,  I2C = 0x92,  IFEQ = 0x99,
+		IF_ICMPEQ = 0x9f,  IF_ICMPNE = 0xa0,  IF_ICMPLT = 0xa1,  IF_ICMPGE = 0xa2,
+		IF_ICMPGT = 0xa3,  IF_ICMPLE = 0xa4,  GOTO = 0xa7,  IRETURN = 0xac,
+		RETURN = 0xb1,  GETSTATIC = 0xb2,  PUTSTATIC = 0xb3,
+		INVOKEVIRTUAL = 0xb6,  INVOKESTATIC = 0xb8,  NEWARRAY = 0xbc,  WIDE = 0xc4;
+	private static final int T_INT = 10;
+
+	private final ConstantPool pool = new ConstantPool();
+	private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+	private int numMethods = 0;
+
+	// The routines, numbered as they are met:
+	private final HashMap<ProcDecl, Integer> routineNo = new HashMap<>();
+
+	// Which block every variable, parameter and function value belongs
+	// to, and the place in its frame of those used by a nested routine:
+	private final HashMap<PascalDecl, Block> ownerOf = new HashMap<>();
+	private final HashMap<PascalDecl, Integer> frameSlot = new HashMap<>();
+	private final HashMap<Block, Integer> frameSizeOf = new HashMap<>();
+	// The JVM local of the others:
+	private final HashMap<PascalDecl, Integer> localOf = new HashMap<>();
+
+	// The method being compiled:
+	private byte[] code = new byte[1024];
+	private int size, depth, maxDepth, numLocals;
+	private int curLevel, frameLocal;
+
+	private JvmCompiler() {}
+
+	/**
+	 * Compiles a checked program and runs it.
+	 */
+	static void run(Program p) {
+		JvmCompiler jc = new JvmCompiler();
+		byte[] classFile = jc.compile(p);
+
+		PrintWriter out = new PrintWriter(new BufferedWriter(
+				new OutputStreamWriter(p.ctx.out), 1 << 16));
+		try {
+			MethodHandles.Lookup lookup =
+				MethodHandles.lookup().defineHiddenClass(classFile, true);
+			MethodHandle main = lookup.findStatic(lookup.lookupClass(), "run",
+					MethodType.methodType(void.class, PrintWriter.class));
+			main.invokeExact(out);
+		} catch (DivisionError e) {
+			out.flush();
+			Main.error("Run-time error in line " + e.lineNum +
+					": Division by zero or overflow!");
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			Main.error("PANIC! Could not run the JVM class: " + e);
+		} finally {
+			out.flush();
+		}
+	}
+
+
+	private byte[] compile(Program p) {
+		curLevel = 1;
+		if(p.body != null){
+			own(p.body, p.body, null, null);
+			genRoutines(p.body);
+		}
+
+		// run(PrintWriter) stores the writer and runs the main program.
+		beginMethod(1);
+		curLevel = 1;
+		genLocal(ALOAD, 0, 1);
+		emitRef(PUTSTATIC, pool.fieldRef(className, "out", "Ljava/io/PrintWriter;"), -1);
+		if(p.body != null){
+			genFrame(p.body, null);
+			genStatmList(p.body.statList);
+		}
+		emit(RETURN, 0);
+		endMethod("run", "(Ljava/io/PrintWriter;)V");
+
+		return classFile();
+	}
+
+	private void own(Block owner, Block b, ParamDeclList pdl, FuncDecl fd) {
+		if(b.vdp != null){
+			for(VarDecl v : b.vdp.varList)
+				ownerOf.put(v, owner);
+		}
+		if(pdl != null){
+			for(ParamDecl pd : pdl.paramList)
+				ownerOf.put(pd, owner);
+		}
+		if(fd != null)
+			ownerOf.put(fd, owner);
+	}
+
+	private int routine(ProcDecl pd) {
+		Integer r = routineNo.get(pd);
+		if(r == null){
+			r = routineNo.size();
+			routineNo.put(pd, r);
+		}
+		return r;
+	}
+
+	private static int numParams(ProcDecl pd) {
+		return pd.pdl == null ? 0 : pd.pdl.paramList.size();
+	}
+
+	// The frames for level 1 to L-1, then the parameters, last first.
+	private static String descriptor(ProcDecl pd) {
+		StringBuilder sb = new StringBuilder("(");
+		for(int k = 1;  k < pd.declLevel;  k++)
+			sb.append("[I");
+		for(int i = 0;  i < numParams(pd);  i++)
+			sb.append('I');
+		return sb.append(")I").toString();
+	}
+
+	private void genRoutines(Block b) {
+		for(PascalSyntax ps : b.declListPrint){
+			if(ps instanceof ProcDecl)
+				genRoutine((ProcDecl) ps);
+		}
+	}
+
+	private void genRoutine(ProcDecl pd) {
+		FuncDecl fd = pd instanceof FuncDecl ? (FuncDecl) pd : null;
+		own(pd.block, pd.block, pd.pdl, fd);
+		genRoutines(pd.block);
+
+		int n = numParams(pd);
+		beginMethod(pd.declLevel-1 + n);
+		curLevel = pd.declLevel;
+		for(int i = 0;  i < n;  i++)
+			localOf.put(pd.pdl.paramList.get(i), pd.declLevel-1 + n-1-i);
+		if(fd == null || ! frameSlot.containsKey(fd)){
+			int result = numLocals++;
+			if(fd != null) localOf.put(fd, result);
+			genConst(0);  genLocal(ISTORE, result, -1);
+			genFrame(pd.block, pd.pdl);
+			genStatmList(pd.block.statList);
+			genLocal(ILOAD, result, 1);
+		}else{
+			genFrame(pd.block, pd.pdl);
+			genStatmList(pd.block.statList);
+			genLoad(fd);
+		}
+		emit(IRETURN, -1);
+		endMethod("r" + routine(pd), descriptor(pd));
+	}
+
+	/*
+	 * Creates the frame of a block if a nested routine uses any of its
+	 * variables, and gives the other variables a JVM local.
+	 */
+	private void genFrame(Block b, ParamDeclList pdl) {
+		frameLocal = -1;
+		Integer fs = frameSizeOf.get(b);
+		if(fs != null){
+			frameLocal = numLocals++;
+			genConst(fs);
+			emit(NEWARRAY, 0);  emit1(T_INT);
+			genLocal(ASTORE, frameLocal, -1);
+		}
+		if(pdl != null){
+			for(ParamDecl p : pdl.paramList){
+				Integer slot = frameSlot.get(p);
+				if(slot == null) continue;
+				genLocal(ALOAD, frameLocal, 1);  genConst(slot);
+				genLocal(ILOAD, localOf.get(p), 1);
+				emit(IASTORE, -3);
+			}
+		}
+		if(b.vdp != null){
+			for(VarDecl v : b.vdp.varList){
+				if(frameSlot.containsKey(v)) continue;
+				int local = numLocals++;
+				localOf.put(v, local);
+				genConst(0);  genLocal(ISTORE, local, -1);
+			}
+		}
+	}
+
+
+	private void genStatmList(StatmList sl) {
+		if(sl == null) return;
+		for(Statement s : sl.statList)
+			genStatement(s);
+	}
+
+	private void genStatement(Statement s) {
+		if(s instanceof AssignStatm){
+			AssignStatm a = (AssignStatm) s;
+			PascalDecl d = a.var.declRef;
+			if(d instanceof VarDecl || d instanceof ParamDecl || d instanceof FuncDecl){
+				genStore(d, a.expr);
+			}else{
+				genExpression(a.expr);  emit(POP, -1);
+			}
+		}else if(s instanceof CompoundStatm){
+			genStatmList(((CompoundStatm) s).list);
+		}else if(s instanceof IfStatm){
+			IfStatm is = (IfStatm) s;
+			int jumpElse = genCondition(is.expr);
+			genStatement(is.stat);
+			if(is.elsePart != null){
+				int jumpEnd = emitJump(GOTO, 0);
+				setTarget(jumpElse);
+				genStatement(is.elsePart.stm);
+				setTarget(jumpEnd);
+			}else{
+				setTarget(jumpElse);
+			}
+		}else if(s instanceof WhileStatm){
+			WhileStatm ws = (WhileStatm) s;
+			int test = size;
+			int jumpEnd = genCondition(ws.expr);
+			genStatement(ws.statm);
+			int back = emitJump(GOTO, 0);
+			setTarget(back, test);
+			setTarget(jumpEnd);
+		}else if(s instanceof ProcCallStatm){
+			ProcCallStatm pc = (ProcCallStatm) s;
+			if(pc.nam.equals("write")){
+				genWrite(pc.exprList);
+			}else{
+				genCall(pc.procRef, pc.exprList);
+				emit(POP, -1);
+			}
+		}
+	}
+
+	/*
+	 * Computes a condition and jumps if it is false.
+	 * @return where the jump is to be filled in
+	 */
+	private int genCondition(Expression e) {
+		if(e.isConst || e.relopr == null){
+			genExpression(e);
+			return emitJump(IFEQ, -1);
+		}
+		genSimpleExpr(e.simexpLeft);
+		genSimpleExpr(e.simexpRight);
+		int op;
+		switch (e.relopr.oprToken) {
+		case equalToken:     op = IF_ICMPNE;  break;
+		case notEqualToken:  op = IF_ICMPEQ;  break;
+		case lessToken:      op = IF_ICMPGE;  break;
+		case lessEqualToken: op = IF_ICMPGT;  break;
+		case greaterToken:   op = IF_ICMPLE;  break;
+		default:             op = IF_ICMPLT;  break;
+		}
+		return emitJump(op, -2);
+	}
+
+	private void genWrite(ExpressionList el) {
+		int out = pool.fieldRef(className, "out", "Ljava/io/PrintWriter;");
+		for(Expression ex : el.exprList){
+			Factor ff = ex.simexpLeft.term.factor;
+			emitRef(GETSTATIC, out, 1);
+			if(ff instanceof StringLiteral){
+				genLdc(pool.string(((StringLiteral) ff).valString));
+				emitPrint("(Ljava/lang/String;)V");
+			}else if(ff instanceof Variable && ((Variable) ff).nam.equals("eol")){
+				genConst(10);
+				emitPrint("(C)V");
+			}else{
+				genExpression(ex);
+				if(ff instanceof CharLiteral){
+					emit(I2C, 0);
+					emitPrint("(C)V");
+				}else{
+					emitPrint("(I)V");
+				}
+			}
+		}
+	}
+
+	private void emitPrint(String desc) {
+		emitRef(INVOKEVIRTUAL, pool.methodRef("java/io/PrintWriter", "print", desc), -2);
+	}
+
+	private void genCall(ProcDecl pd, ExpressionList el) {
+		for(int k = 1;  k < pd.declLevel;  k++)
+			genFrameRef(k);
+		int n = el == null ? 0 : el.exprList.size();
+		for(int i = n-1;  i >= 0;  i--)
+			genExpression(el.exprList.get(i));
+		emitRef(INVOKESTATIC, pool.methodRef(className, "r" + routine(pd), descriptor(pd)),
+				1 - (pd.declLevel-1) - n);
+	}
+
+	// Pushes the frame for a level, which is null if nobody uses it.
+	private void genFrameRef(int level) {
+		if(level < curLevel)
+			genLocal(ALOAD, level-1, 1);
+		else if(frameLocal >= 0)
+			genLocal(ALOAD, frameLocal, 1);
+		else
+			emit(ACONST_NULL, 1);
+	}
+
+
+	private void genExpression(Expression e) {
+		if(e.isConst){
+			genConst(e.constVal);  return;
+		}
+		genSimpleExpr(e.simexpLeft);
+		if(e.relopr == null) return;
+		genSimpleExpr(e.simexpRight);
+		int op;
+		switch (e.relopr.oprToken) {
+		case equalToken:     op = IF_ICMPEQ;  break;
+		case notEqualToken:  op = IF_ICMPNE;  break;
+		case lessToken:      op = IF_ICMPLT;  break;
+		case lessEqualToken: op = IF_ICMPLE;  break;
+		case greaterToken:   op = IF_ICMPGT;  break;
+		default:             op = IF_ICMPGE;  break;
+		}
+		int jumpTrue = emitJump(op, -2);
+		genConst(0);
+		int jumpEnd = emitJump(GOTO, -1);
+		setTarget(jumpTrue);
+		genConst(1);
+		setTarget(jumpEnd);
+	}
+
+	private void genSimpleExpr(SimpleExpr se) {
+		if(se.isConst){
+			genConst(se.constVal);  return;
+		}
+		genTerm(se.termList.get(0));
+		if(se.prefixOpr != null && se.prefixOpr.oprToken == TokenKind.subtractToken)
+			emit(INEG, 0);
+		for(int i = 0;  i < se.termOprList.size();  i++){
+			genTerm(se.termList.get(i+1));
+			TokenKind opr = se.termOprList.get(i).oprToken;
+			emit(opr == TokenKind.addToken ? IADD : opr == TokenKind.subtractToken ? ISUB : IOR, -1);
+		}
+	}
+
+	private void genTerm(Term t) {
+		if(t.isConst){
+			genConst(t.constVal);  return;
+		}
+		genFactor(t.factorList.get(0));
+		for(int i = 0;  i < t.facOprList.size();  i++){
+			genFactor(t.factorList.get(i+1));
+			TokenKind opr = t.facOprList.get(i).oprToken;
+			if(opr == TokenKind.multiplyToken){
+				emit(IMUL, -1);
+			}else if(opr == TokenKind.divToken || opr == TokenKind.modToken){
+				genConst(t.lineNum);
+				emitRef(INVOKESTATIC, pool.methodRef(helperName,
+						opr == TokenKind.divToken ? "divide" : "remainder", "(III)I"), -2);
+			}else{
+				emit(IAND, -1);
+			}
+		}
+	}
+
+	private void genFactor(Factor fa) {
+		if(fa.isConst){
+			genConst(fa.constVal);
+		}else if(fa instanceof NumberLiteral){
+			genConst(((NumberLiteral) fa).valInt);
+		}else if(fa instanceof CharLiteral){
+			genConst(((CharLiteral) fa).valChar.charAt(0));
+		}else if(fa instanceof StringLiteral){
+			genConst(stringValue(((StringLiteral) fa).valString));
+		}else if(fa instanceof InnerExpr){
+			genExpression(((InnerExpr) fa).expr);
+		}else if(fa instanceof Negation){
+			genFactor(((Negation) fa).factor);
+			genConst(1);  emit(IXOR, -1);
+		}else if(fa instanceof FuncCall){
+			FuncCall fc = (FuncCall) fa;
+			genCall(fc.funcDeclRef, fc.innerExprList);
+		}else if(fa instanceof Variable){
+			genVariable((Variable) fa);
+		}else{
+			genConst(0);
+		}
+	}
+
+	private void genVariable(Variable v) {
+		PascalDecl d = v.declRef;
+		int value = 0;
+		if(d instanceof ConstDecl){
+			Constant c = ((ConstDecl) d).constant;
+			if(c instanceof NumberLiteral)
+				value = ((NumberLiteral) c).valInt;
+			else if(c instanceof CharLiteral)
+				value = ((CharLiteral) c).valChar.charAt(0);
+			else if(c instanceof StringLiteral)
+				value = stringValue(((StringLiteral) c).valString);
+		}else if(d instanceof FuncDecl){
+			genLoad(d);  return;
+		}else if(d instanceof EnumLiteral){
+			EnumLiteral el = (EnumLiteral) d;
+			if(el.value.equals("true"))
+				value = 1;
+			else if(! el.value.equals("false") && el.type instanceof EnumType)
+				value = ((EnumType) el.type).enumLitList.indexOf(el);
+		}else if(d instanceof VarDecl || d instanceof ParamDecl){
+			if(v.expr != null){
+				// The index is the value, as in the compiled code.
+				genExpression(v.expr);
+			}else{
+				genLoad(d);
+			}
+			return;
+		}
+		genConst(value);
+	}
+
+	// A string is used as the sum of its characters, as in the compiled code.
+	private static int stringValue(String s) {
+		int v = 0;
+		for(int i = 0;  i < s.length();  i++)
+			v += s.charAt(i);
+		return v;
+	}
+
+
+	/*
+	 * A variable, parameter or function value of an outer routine must
+	 * lie in the frame of that routine.
+	 */
+	private Integer slotOf(PascalDecl d) {
+		Integer slot = frameSlot.get(d);
+		if(slot == null && d.declLevel < curLevel){
+			Block owner = ownerOf.get(d);
+			slot = frameSizeOf.getOrDefault(owner, 0);
+			frameSlot.put(d, slot);
+			frameSizeOf.put(owner, slot+1);
+		}
+		return slot;
+	}
+
+	private void genLoad(PascalDecl d) {
+		Integer slot = slotOf(d);
+		if(slot == null){
+			genLocal(ILOAD, localOf.get(d), 1);
+		}else{
+			genFrameRef(d.declLevel);  genConst(slot);
+			emit(IALOAD, -1);
+		}
+	}
+
+	private void genStore(PascalDecl d, Expression value) {
+		Integer slot = slotOf(d);
+		if(slot == null){
+			genExpression(value);
+			genLocal(ISTORE, localOf.get(d), -1);
+		}else{
+			genFrameRef(d.declLevel);  genConst(slot);
+			genExpression(value);
+			emit(IASTORE, -3);
+		}
+	}
+
+	private void genConst(int v) {
+		if(v >= -1 && v <= 5){
+			emit(ICONST_0 + v, 1);
+		}else if(v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE){
+			emit(BIPUSH, 1);  emit1(v);
+		}else if(v >= Short.MIN_VALUE && v <= Short.MAX_VALUE){
+			emit(SIPUSH, 1);  emit2(v);
+		}else{
+			genLdc(pool.integer(v));
+		}
+	}
+
+	private void genLdc(int index) {
+		if(index < 256){
+			emit(LDC, 1);  emit1(index);
+		}else{
+			emit(LDC_W, 1);  emit2(index);
+		}
+	}
+
+	private void genLocal(int op, int local, int effect) {
+		if(local < 256){
+			emit(op, effect);  emit1(local);
+		}else{
+			emit(WIDE, 0);  emit(op, effect);  emit2(local);
+		}
+	}
+
+
+	private void beginMethod(int numArgs) {
+		size = depth = maxDepth = 0;
+		numLocals = numArgs;
+		frameLocal = -1;
+	}
+
+	private void endMethod(String name, String desc) {
+		if(size > 0xffff)
+			Main.error("The program is too large for -jvm.");
+		try {
+			DataOutputStream m = new DataOutputStream(methods);
+			m.writeShort(0x0008);  // static
+			m.writeShort(pool.utf8(name));
+			m.writeShort(pool.utf8(desc));
+			m.writeShort(1);
+			m.writeShort(pool.utf8("Code"));
+			m.writeInt(12 + size);
+			m.writeShort(maxDepth);
+			m.writeShort(numLocals);
+			m.writeInt(size);
+			m.write(code, 0, size);
+			m.writeShort(0);  // No exception table
+			m.writeShort(0);  // and no attributes
+		} catch (IOException e) {
+			Main.error("PANIC! " + e);
+		}
+		++numMethods;
+	}
+
+	private byte[] classFile() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream cf = new DataOutputStream(bytes);
+			int thisClass = pool.classRef(className),
+				superClass = pool.classRef("java/lang/Object"),
+				outName = pool.utf8("out"), outType = pool.utf8("Ljava/io/PrintWriter;");
+			cf.writeInt(0xcafebabe);
+			cf.writeShort(0);  cf.writeShort(49);
+			pool.write(cf);
+			cf.writeShort(0x0030);  // final, super
+			cf.writeShort(thisClass);
+			cf.writeShort(superClass);
+			cf.writeShort(0);  // No interfaces
+			cf.writeShort(1);
+			cf.writeShort(0x000a);  // private static
+			cf.writeShort(outName);  cf.writeShort(outType);
+			cf.writeShort(0);
+			cf.writeShort(numMethods);
+			methods.writeTo(cf);
+			cf.writeShort(0);  // No attributes
+		} catch (IOException e) {
+			Main.error("PANIC! " + e);
+		}
+		return bytes.toByteArray();
+	}
+
+
+	private void emit(int op, int effect) {
+		emit1(op);
+		depth += effect;
+		maxDepth = Math.max(maxDepth, depth);
+	}
+
+	private void emitRef(int op, int index, int effect) {
+		emit(op, effect);  emit2(index);
+	}
+
+	// Emits a jump and returns where its target is to be filled in.
+	private int emitJump(int op, int effect) {
+		emit(op, effect);  emit2(0);
+		return size-3;
+	}
+
+	private void setTarget(int jump) {
+		setTarget(jump, size);
+	}
+
+	private void setTarget(int jump, int target) {
+		int offset = target - jump;
+		if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+			Main.error("The program is too large for -jvm.");
+		code[jump+1] = (byte) (offset >> 8);
+		code[jump+2] = (byte) offset;
+	}
+
+	private void emit1(int b) {
+		if(size == code.length) code = Arrays.copyOf(code, 2*size);
+		code[size++] = (byte) b;
+	}
+
+	private void emit2(int v) {
+		emit1(v >> 8);  emit1(v);
+	}
+
+
+	/*
+	 * Called from the compiled class. idivl traps on a zero divisor and
+	 * on overflow, and so does the compiled program.
+	 */
+	static int divide(int v, int w, int line) {
+		if(w == 0 || (v == Integer.MIN_VALUE && w == -1))
+			throw new DivisionError(line);
+		return v / w;
+	}
+
+	static int remainder(int v, int w, int line) {
+		if(w == 0 || (v == Integer.MIN_VALUE && w == -1))
+			throw new DivisionError(line);
+		return v % w;
+	}
+
+	private static class DivisionError extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final int lineNum;
+
+		DivisionError(int lineNum) {
+			super(null, null, false, false);
+			this.lineNum = lineNum;
+		}
+	}
+
+
+	/**
+	 * The constant pool of the class file; every constant is stored once.
+	 */
+	private static class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream data = new DataOutputStream(bytes);
+		private final HashMap<String, Integer> indexOf = new HashMap<>();
+		private int count = 1;
+
+		void write(DataOutputStream cf) throws IOException {
+			cf.writeShort(count);
+			bytes.writeTo(cf);
+		}
+
+		private Integer find(String key) {
+			return indexOf.get(key);
+		}
+
+		private int add(String key) {
+			indexOf.put(key, count);
+			return count++;
+		}
+
+		int utf8(String s) {
+			Integer i = find("U" + s);
+			if(i != null) return i;
+			try {
+				data.writeByte(1);  data.writeUTF(s);
+			} catch (IOException e) {
+				Main.error("PANIC! " + e);
+			}
+			return add("U" + s);
+		}
+
+		int integer(int v) {
+			Integer i = find("I" + v);
+			if(i != null) return i;
+			try {
+				data.writeByte(3);  data.writeInt(v);
+			} catch (IOException e) {
+				Main.error("PANIC! " + e);
+			}
+			return add("I" + v);
+		}
+
+		int string(String s) {
+			return ref(8, "S" + s, utf8(s), -1);
+		}
+
+		int classRef(String name) {
+			return ref(7, "C" + name, utf8(name), -1);
+		}
+
+		int fieldRef(String cls, String name, String desc) {
+			return ref(9, "F" + cls + " " + name + " " + desc, classRef(cls), nameAndType(name, desc));
+		}
+
+		int methodRef(String cls, String name, String desc) {
+			return ref(10, "M" + cls + " " + name + " " + desc, classRef(cls), nameAndType(name, desc));
+		}
+
+		private int nameAndType(String name, String desc) {
+			return ref(12, "N" + name + " " + desc, utf8(name), utf8(desc));
+		}
+
+		// An entry which refers to one or two other entries.
+		private int ref(int tag, String key, int first, int second) {
+			Integer i = find(key);
+			if(i != null) return i;
+			try {
+				data.writeByte(tag);  data.writeShort(first);
+				if(second >= 0) data.writeShort(second);
+			} catch (IOException e) {
+				Main.error("PANIC! " + e);
+			}
+			return add(key);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package no.uio.ifi.pascal2100.parser;
 
 import no.uio.ifi.pascal2100.main.CodeFile;
+import no.uio.ifi.pascal2100.main.CompilationContext;
 
 public class Library extends Block{
 	ProcDecl writeDecl;
@@ -11,8 +12,9 @@ public class Library extends Block{
 	EnumLiteral trueType;
 	EnumLiteral falseType;
 
-	public Library(int n) {
+	public Library(CompilationContext ctx, int n) {
 		super(n);
+		this.ctx = ctx;
 		writeDecl = new ProcDecl("write",n);
 		eolDecl = new ConstDecl("eol", n);
 		integerType = new TypeDecl("integer", n);
@@ -1,12 +1,13 @@
 package no.uio.ifi.pascal2100.parser;
 
 import no.uio.ifi.pascal2100.main.CodeFile;
+import no.uio.ifi.pascal2100.main.LogFile;
 import no.uio.ifi.pascal2100.main.Main;
 import no.uio.ifi.pascal2100.scanner.Scanner;
 import no.uio.ifi.pascal2100.scanner.TokenKind;
 
 public abstract class PascalDecl extends PascalSyntax {
-	static String name;
+	String name;
 	String progProcFuncName;
 	String assemNameblockLevel, assemNameOffset;
 	int declLevel = 0, declOffset = 0;
@@ -75,14 +76,14 @@ class ConstDecl extends PascalDecl{
 
 	static ConstDecl parse(Scanner s) {
 
-		enterParser("const decl");
+		enterParser(s, "const decl");
 		ConstDecl cd = new ConstDecl(s.curToken.id,s.curLineNum());
 		cd.name = s.curToken.id;
 		s.skip(TokenKind.nameToken);
 		s.skip(TokenKind.equalToken);
 		cd.constant = Constant.parse(s);
 		s.skip(TokenKind.semicolonToken);
-		leaveParser("const decl");
+		leaveParser(s, "const decl");
 		return cd;
 	}
 
@@ -94,13 +95,13 @@ class ConstDecl extends PascalDecl{
 	}
 
 	@Override
-	void prettyPrint() {
+	void prettyPrint(LogFile log) {
 
-		Main.log.prettyIndent();
-		Main.log.prettyPrint(name + " = ");
-		constant.prettyPrint();
-		Main.log.prettyPrintLn(";");
-		Main.log.prettyOutdent();
+		log.prettyIndent();
+		log.prettyPrint(name + " = ");
+		constant.prettyPrint(log);
+		log.prettyPrintLn(";");
+		log.prettyOutdent();
 	}
 
 
@@ -162,13 +163,13 @@ class ParamDecl extends PascalDecl{
 	}
 	static ParamDecl parse(Scanner s){
 
-		enterParser("param decl");
+		enterParser(s, "param decl");
 		ParamDecl pd = new ParamDecl(s.curToken.id, s.curLineNum());
 		pd.name = s.curToken.id;
 		s.skip(TokenKind.nameToken);
 		s.skip(TokenKind.colonToken);
 		pd.tn = TypeName.parse(s);
-		leaveParser("param decl");
+		leaveParser(s, "param decl");
 		return pd;
 	}
 
@@ -178,9 +179,9 @@ class ParamDecl extends PascalDecl{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint(name + ":");
-		tn.prettyPrint();
+	void prettyPrint(LogFile log) {
+		log.prettyPrint(name + ":");
+		tn.prettyPrint(log);
 	}
 	@Override
 	void checkWhetherAssignable(PascalSyntax where) {}
@@ -224,17 +225,17 @@ class EnumLiteral extends PascalDecl{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint(" " + value);
+	void prettyPrint(LogFile log) {
+		log.prettyPrint(" " + value);
 	}
 
 	static EnumLiteral parse(Scanner s){
 
-		enterParser("enum literal");
+		enterParser(s, "enum literal");
 		EnumLiteral el = new EnumLiteral(s.curToken.id, s.curLineNum());
 		el.value = s.curToken.strVal;
 		s.skip(TokenKind.nameToken);
-		leaveParser("enum literal");
+		leaveParser(s, "enum literal");
 		return el;
 
 	}
@@ -278,22 +279,22 @@ class TypeDecl extends PascalDecl{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint(name +" = ");
-		type.prettyPrint();
-		Main.log.prettyPrintLn(";");
+	void prettyPrint(LogFile log) {
+		log.prettyPrint(name +" = ");
+		type.prettyPrint(log);
+		log.prettyPrintLn(";");
 	}
 
 	static TypeDecl parse(Scanner s){
 
-		enterParser("type decl");
+		enterParser(s, "type decl");
 		TypeDecl td = new TypeDecl(s.curToken.id, s.curLineNum());
 		td.name = s.curToken.id;
 		s.skip(TokenKind.nameToken);
 		s.skip(TokenKind.equalToken);
 		td.type = Type.parse(s);
 		s.skip(TokenKind.semicolonToken);
-		leaveParser("type decl");
+		leaveParser(s, "type decl");
 		return td;
 	}
 
@@ -346,22 +347,22 @@ class VarDecl extends PascalDecl{
 
 	
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint(name + " : ");
-		type.prettyPrint();
-		Main.log.prettyPrintLn(";");
+	void prettyPrint(LogFile log) {
+		log.prettyPrint(name + " : ");
+		type.prettyPrint(log);
+		log.prettyPrintLn(";");
 	}
 
 	static VarDecl parse(Scanner s){
 
-		enterParser("var decl");
+		enterParser(s, "var decl");
 		VarDecl vd = new VarDecl(s.curToken.id, s.curLineNum());
 		vd.name = s.curToken.id;
 		s.skip(TokenKind.nameToken);
 		s.skip(TokenKind.colonToken);
 		vd.type = Type.parse(s);
 		s.skip(TokenKind.semicolonToken);
-		leaveParser("var decl");
+		leaveParser(s, "var decl");
 		return vd;
 	}
 
@@ -416,22 +417,22 @@ class ProcDecl extends PascalDecl{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint("procedure " + name);
+	void prettyPrint(LogFile log) {
+		log.prettyPrint("procedure " + name);
 		if (pdl != null){
-			pdl.prettyPrint();
+			pdl.prettyPrint(log);
 		}
-		Main.log.prettyPrintLn(";");
-		Main.log.prettyIndent();
-		block.prettyPrint();
-		Main.log.prettyPrint(";");
-		Main.log.prettyOutdent();
-		Main.log.prettyPrintLn();
-		Main.log.prettyPrintLn();
+		log.prettyPrintLn(";");
+		log.prettyIndent();
+		block.prettyPrint(log);
+		log.prettyPrint(";");
+		log.prettyOutdent();
+		log.prettyPrintLn();
+		log.prettyPrintLn();
 	}
 	static ProcDecl parse(Scanner s){
 
-		enterParser("proc decl");
+		enterParser(s, "proc decl");
 		ProcDecl pd = new ProcDecl(s.curToken.id, s.curLineNum());
 		s.skip(TokenKind.procedureToken);
 		pd.name = s.curToken.id;
@@ -445,7 +446,7 @@ class ProcDecl extends PascalDecl{
 		s.skip(TokenKind.semicolonToken);
 		pd.block = Block.parse(s);
 
-		leaveParser("proc decl");
+		leaveParser(s, "proc decl");
 		return pd;
 	}
 
@@ -476,17 +477,55 @@ class ProcDecl extends PascalDecl{
 		block.check(curScope, lib);
 	}
 
+	@Override
+	void fold() {
+		block.fold();
+	}
+
+	/*
+	 * A routine which calls no other routine and only uses its own
+	 * variables and parameters never looks at the rest of the display.
+	 */
+	boolean isLeaf() {
+		return ! block.makesCalls && block.minDisplayLevel >= declLevel
+				&& block.maxDisplayLevel <= declLevel;
+	}
+
+	/*
+	 * enter is slow, so with -O a leaf routine gets a plain frame
+	 * where only its own display entry is filled in.
+	 */
+	void genPrologue(CodeFile f, String comment) {
+		if(f.isOptimizing() && isLeaf()){
+			f.genInstr("", "pushl", "%ebp", comment);
+			f.genInstr("", "movl", "%esp,%ebp", "");
+			f.genInstr("", "subl", "$" + (32+ block.localVarByte) + ",%esp", "");
+			if(block.maxDisplayLevel == declLevel)
+				f.genInstr("", "movl", "%ebp," + (-4*declLevel) + "(%ebp)", "Display");
+		}else{
+			f.genInstr("", "enter", "$" + (32+ block.localVarByte) + ",$" + declLevel, 
+					comment);
+		}
+	}
+
+	/*
+	 * The label is chosen here, since the calls need it, but the code
+	 * itself may be generated on another thread (-pargen).
+	 */
 	@Override
 	void genCode(CodeFile f) {
 		progProcFuncName = f.getLabel(name);
+		f.genPart(this::genBody);
+	}
+
+	void genBody(CodeFile f) {
 		if(pdl == null){
 			block.genCode(f);
 			f.genInstr("", "leave", "", "End of procedure " + name);
 			f.genInstr("", "ret", "", "");
 		}else{
 			f.genInstr("proc$" + progProcFuncName  , "", "", "");
-			f.genInstr("", "enter", "$" + (32+ (block.localVarByte)) + ",$" + declLevel, 
-					"Start of procedure " +name);
+			genPrologue(f, "Start of procedure " + name);
 			if(pdl != null)
 				pdl.genCode(f);
 			block.genCode(f);
@@ -512,7 +551,7 @@ class FuncDecl extends ProcDecl{
 
 	static FuncDecl parse(Scanner s){
 
-		enterParser("func decl");
+		enterParser(s, "func decl");
 		FuncDecl fd = new FuncDecl(s.curToken.id, s.curLineNum());
 		s.skip(TokenKind.functionToken);
 		fd.name = s.curToken.id;
@@ -527,22 +566,22 @@ class FuncDecl extends ProcDecl{
 		fd.typeN = TypeName.parse(s); 
 		s.skip(TokenKind.semicolonToken);
 		fd.block = Block.parse(s);
-		leaveParser("func decl");
+		leaveParser(s, "func decl");
 		return fd;
 
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint("function " + name + " ");
-		if (pdl != null) pdl.prettyPrint();
-		Main.log.prettyPrint(": ");
-		typeN.prettyPrint();
-		Main.log.prettyPrintLn(";");
-		Main.log.prettyIndent();
-		block.prettyPrint();
-		Main.log.prettyPrint(";");
-		Main.log.prettyOutdent();
+	void prettyPrint(LogFile log) {
+		log.prettyPrint("function " + name + " ");
+		if (pdl != null) pdl.prettyPrint(log);
+		log.prettyPrint(": ");
+		typeN.prettyPrint(log);
+		log.prettyPrintLn(";");
+		log.prettyIndent();
+		block.prettyPrint(log);
+		log.prettyPrint(";");
+		log.prettyOutdent();
 	}
 
 	@Override
@@ -560,8 +599,7 @@ class FuncDecl extends ProcDecl{
 	}
 	
 	@Override
-	void genCode(CodeFile f) {
-		progProcFuncName = f.getLabel(name);
+	void genBody(CodeFile f) {
 		if(pdl == null){
 			block.genCode(f);
 			f.genInstr("" , "movl", "-32(%ebp),%eax", "Fetch return value");
@@ -569,8 +607,7 @@ class FuncDecl extends ProcDecl{
 			f.genInstr("", "ret", "", "");
 		}else{
 			f.genInstr("func$" + progProcFuncName , "", "", "");
-			f.genInstr("", "enter", "$" + (32+ block.localVarByte)+ ",$" + declLevel, 
-					"Start of function " + name);	
+			genPrologue(f, "Start of function " + name);
 			if(pdl != null)
 				pdl.genCode(f);
 			block.genCode(f);
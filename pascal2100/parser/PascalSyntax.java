@@ -19,19 +19,33 @@ public abstract class PascalSyntax {
 
 	abstract void check(Block curScope, Library lib);
 	abstract void genCode(CodeFile f);
+
+	/**
+	 * Constant folding, done after check() when optimizing. Every part
+	 * of an expression whose operands are all constants gets its value
+	 * worked out here, so genCode can load the value directly.
+	 */
+	void fold() {}
 	abstract public String identify();
-	abstract void prettyPrint();
+	abstract void prettyPrint(LogFile log);
 
 	void error(String message) {
 		Main.error("Error at line " + lineNum + ": " + message);
 	}
 
-	static void enterParser(String nonTerm) {
-		Main.log.enterParser(nonTerm);
+	static void enterParser(Scanner s, String nonTerm) {
+		++s.ctx.numNodes;
+		LogFile log = s.ctx.log;
+		if (log.isLoggingParser()) log.enterParser(nonTerm);
+	}
+
+	static void leaveParser(Scanner s, String nonTerm) {
+		LogFile log = s.ctx.log;
+		if (log.isLoggingParser()) log.leaveParser(nonTerm);
 	}
 
-	static void leaveParser(String nonTerm) {
-		Main.log.leaveParser(nonTerm);
+	static void genConst(CodeFile f, int value) {
+		f.genInstr("", "movl", "$" + value + ",%eax", "" + value);
 	}
 
 }
@@ -40,6 +54,8 @@ public abstract class PascalSyntax {
 
 abstract class Factor extends PascalSyntax{
 	//String name;
+	boolean isConst = false;  // Set by fold() if the value is known
+	int constVal;
 	Factor(int n) {
 		super(n);
 	}
@@ -52,7 +68,7 @@ abstract class Factor extends PascalSyntax{
 
 	static Factor parse(Scanner s){
 
-		enterParser("factor");
+		enterParser(s, "factor");
 		Factor f = null;
 		switch (s.curToken.kind) {
 		case leftParToken:
@@ -75,7 +91,7 @@ abstract class Factor extends PascalSyntax{
 		default: f = Constant.parse(s);
 		break;
 		}
-		leaveParser("factor");
+		leaveParser(s, "factor");
 		return f;
 	}
 	@Override
@@ -97,7 +113,7 @@ abstract class Constant extends Factor{
 
 	static Constant parse(Scanner s){
 
-		enterParser("constant");
+		enterParser(s, "constant");
 		Constant c = null;
 		switch (s.curToken.kind) {
 		case intValToken:
@@ -113,7 +129,7 @@ abstract class Constant extends Factor{
 			c = NamedConst.parse(s);
 			break;
 		}
-		leaveParser("constant");
+		leaveParser(s, "constant");
 		return c;
 	}
 
@@ -140,20 +156,25 @@ class NumberLiteral extends Constant{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint(""+valInt);
+	void prettyPrint(LogFile log) {
+		log.prettyPrint(""+valInt);
 
 	}
 	static NumberLiteral parse(Scanner s){
 
-		enterParser("number literal");
+		enterParser(s, "number literal");
 		NumberLiteral nl = new NumberLiteral(s.curLineNum());
 		nl.valInt = s.curToken.intVal;
 		s.skip(TokenKind.intValToken);
-		leaveParser("number literal");
+		leaveParser(s, "number literal");
 		return nl;
 	}
 
+	@Override
+	void fold() {
+		isConst = true;  constVal = valInt;
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		f.genInstr("", "movl", "$" + valInt + ",%eax", "" + valInt);
@@ -172,20 +193,25 @@ class CharLiteral extends Constant{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint("'" + valChar + "'");
+	void prettyPrint(LogFile log) {
+		log.prettyPrint("'" + valChar + "'");
 	}
 
 	static CharLiteral parse(Scanner s){
 
-		enterParser("char literal");
+		enterParser(s, "char literal");
 		CharLiteral cl = new CharLiteral(s.curLineNum());
 		cl.valChar = s.curToken.strVal;
 		s.skip(TokenKind.stringValToken);
-		leaveParser("char literal");
+		leaveParser(s, "char literal");
 		return cl;
 	}
 
+	@Override
+	void fold() {
+		isConst = true;  constVal = (int) valChar.charAt(0);
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		int ascii = (int) valChar.charAt(0);
@@ -207,20 +233,30 @@ class StringLiteral extends Constant{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint("'"+ valString + "'");
+	void prettyPrint(LogFile log) {
+		log.prettyPrint("'"+ valString + "'");
 	}
 
 	static StringLiteral parse(Scanner s){
 
-		enterParser("string literal");
+		enterParser(s, "string literal");
 		StringLiteral sl = new StringLiteral(s.curLineNum());
 		sl.valString = s.curToken.strVal;
 		s.skip(TokenKind.stringValToken);
-		leaveParser("string literal");
+		leaveParser(s, "string literal");
 		return sl;
 	}
 
+	@Override
+	void fold() {
+		// The value genCode gives a string: the sum of its characters.
+		int ascii = 0;
+		for(int i = 0; i < valString.length(); i++){
+			ascii += (int) valString.charAt(i);
+		}
+		isConst = true;  constVal = ascii;
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		int ascii = 0;
@@ -234,6 +270,7 @@ class StringLiteral extends Constant{
 
 class NamedConst extends Constant{
 	String nam;
+	int nameId;
 	NamedConst(int n) {
 		super(n);
 	}
@@ -244,23 +281,24 @@ class NamedConst extends Constant{
 	}
 
 	@Override
-	void prettyPrint(){
-		Main.log.prettyPrint(nam);
+	void prettyPrint(LogFile log){
+		log.prettyPrint(nam);
 	}
 
 	static NamedConst parse(Scanner s){
 
-		enterParser("name const");
+		enterParser(s, "name const");
 		NamedConst nc = new NamedConst(s.curLineNum());
 		nc.nam = s.curToken.id;
+		nc.nameId = s.curToken.nameId;
 		s.skip(TokenKind.nameToken);
-		leaveParser("name const");
+		leaveParser(s, "name const");
 		return nc;
 	}
 
 	@Override
 	void check(Block curScope, Library lib) {
-		PascalDecl p = curScope.findDecl(nam, this);
+		PascalDecl p = curScope.findDecl(nameId, this);
 		ref = (ConstDecl) p;
 
 	}
@@ -283,22 +321,22 @@ class InnerExpr extends Factor{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint("(");
-		expr.prettyPrint();
-		Main.log.prettyPrint(")");
+	void prettyPrint(LogFile log) {
+		log.prettyPrint("(");
+		expr.prettyPrint(log);
+		log.prettyPrint(")");
 	}
 
 	static InnerExpr parse(Scanner s){
 
-		enterParser("inner expr");
+		enterParser(s, "inner expr");
 		InnerExpr ix = new InnerExpr(s.curLineNum());
 		s.skip(TokenKind.leftParToken);
 		while(s.curToken.kind != TokenKind.rightParToken){
 			ix.expr = Expression.parse(s);
 		}
 		s.skip(TokenKind.rightParToken);
-		leaveParser("inner expr");
+		leaveParser(s, "inner expr");
 		return ix;
 	}
 
@@ -308,6 +346,12 @@ class InnerExpr extends Factor{
 
 	}
 
+	@Override
+	void fold() {
+		expr.fold();
+		isConst = expr.isConst;  constVal = expr.constVal;
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		
@@ -330,20 +374,20 @@ class Negation extends Factor {
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint(" not ");
-		factor.prettyPrint();
+	void prettyPrint(LogFile log) {
+		log.prettyPrint(" not ");
+		factor.prettyPrint(log);
 
 
 	}
 
 	static Negation parse(Scanner s){
 
-		enterParser("negation");
+		enterParser(s, "negation");
 		Negation neg = new Negation(s.curLineNum());
 		s.skip(TokenKind.notToken);
 		neg.factor =  Factor.parse(s);
-		leaveParser("negation");
+		leaveParser(s, "negation");
 		return neg;
 	}
 
@@ -353,8 +397,17 @@ class Negation extends Factor {
 
 	}
 
+	@Override
+	void fold() {
+		factor.fold();
+		isConst = factor.isConst;  constVal = factor.constVal ^ 1;
+	}
+
 	@Override
 	void genCode(CodeFile f) {
+		if(isConst){
+			genConst(f, constVal);  return;
+		}
 		factor.genCode(f);
 		f.genInstr("", "xorl", "$1,%eax", " not");
 		
@@ -364,6 +417,7 @@ class Negation extends Factor {
 
 class FuncCall extends Factor{
 	String nam;
+	int nameId;
 	ExpressionList innerExprList;
 	String assName;
 	FuncDecl funcDeclRef;
@@ -379,20 +433,21 @@ class FuncCall extends Factor{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint(nam);
+	void prettyPrint(LogFile log) {
+		log.prettyPrint(nam);
 		if(innerExprList != null){
-			Main.log.prettyPrint(" (");
-			innerExprList.prettyPrint();
-			Main.log.prettyPrint(") ");
+			log.prettyPrint(" (");
+			innerExprList.prettyPrint(log);
+			log.prettyPrint(") ");
 		}
 	}
 
 	static FuncCall parse(Scanner s){
 
-		enterParser("func call");
+		enterParser(s, "func call");
 		FuncCall fc = new FuncCall(s.curLineNum());
 		fc.nam = s.curToken.id;
+		fc.nameId = s.curToken.nameId;
 		s.skip(TokenKind.nameToken);
 		if(s.curToken.kind == TokenKind.leftParToken){
 			s.skip(TokenKind.leftParToken);
@@ -401,16 +456,17 @@ class FuncCall extends Factor{
 			}
 			s.skip(TokenKind.rightParToken);
 		}
-		leaveParser("func call");
+		leaveParser(s, "func call");
 		return fc;
 	}
 
 	@Override
 	void check(Block curScope, Library lib) {
-		PascalDecl p = curScope.findDecl(nam, this);
+		PascalDecl p = curScope.findDecl(nameId, this);
 		funcDeclRef = (FuncDecl) p;
 		funcDeclRef.checkWhetherAssignable(this);
 		funcDeclRef.checkWhetherFunction(this);
+		curScope.makesCalls = true;
 		if(innerExprList != null){
 			for(Expression e : innerExprList.exprList){
 				e.check(curScope, lib);
@@ -420,6 +476,12 @@ class FuncCall extends Factor{
 
 	}
 
+	@Override
+	void fold() {
+		if(innerExprList != null)
+			innerExprList.fold();
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 
@@ -432,6 +494,7 @@ class FuncCall extends Factor{
 
 class Variable extends Factor{
 	String nam;
+	int nameId;
 	Expression expr;
 	PascalDecl declRef;
 	ArrayList<Expression> expList = new ArrayList<>();
@@ -447,23 +510,24 @@ class Variable extends Factor{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint(nam + "");
+	void prettyPrint(LogFile log) {
+		log.prettyPrint(nam + "");
 		if (expr != null){
-			Main.log.prettyPrint(" [");
+			log.prettyPrint(" [");
 			for(Expression e : expList){
-				e.prettyPrint();
+				e.prettyPrint(log);
 			}
-			Main.log.prettyPrint("]");
+			log.prettyPrint("]");
 		}
 
 	}
 
 	static Variable parse(Scanner s){
 
-		enterParser("variable");
+		enterParser(s, "variable");
 		Variable v = new Variable(s.curLineNum());
 		v.nam = s.curToken.id;
+		v.nameId = s.curToken.nameId;
 		s.skip(TokenKind.nameToken);
 		if(s.curToken.kind == TokenKind.leftBracketToken){
 			s.skip(TokenKind.leftBracketToken);
@@ -473,19 +537,48 @@ class Variable extends Factor{
 			}
 			s.skip(TokenKind.rightBracketToken);
 		}
-		leaveParser("variable");
+		leaveParser(s, "variable");
 		return v;
 	}
 
 	@Override
 	void check(Block curScope, Library lib) {
-		 PascalDecl p = curScope.findDecl(nam, this);
+		 PascalDecl p = curScope.findDecl(nameId, this);
 		 declRef = p;
+		if(p instanceof VarDecl || p instanceof ParamDecl)
+			curScope.useDisplay(p.declLevel);
 		if(expr != null)
 			expr.check(curScope, lib);
 		
 	}
 
+	@Override
+	void fold() {
+		for(Expression e : expList){
+			e.fold();
+		}
+		if(expr != null)
+			return;
+		if(declRef instanceof ConstDecl){
+			Constant c = ((ConstDecl)declRef).constant;
+			if(c != null){
+				c.fold();
+				isConst = c.isConst;  constVal = c.constVal;
+			}
+		}else if(declRef instanceof EnumLiteral){
+			// Only true and false have a fixed value in genCode.
+			EnumLiteral el = (EnumLiteral)declRef;
+			if(el.type instanceof EnumType && 
+					((EnumType)el.type).enumLitList.size() == 1){
+				if(el.value.equals("false")){
+					isConst = true;  constVal = 0;
+				}else if(el.value.equals("true")){
+					isConst = true;  constVal = 1;
+				}
+			}
+		}
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		if(declRef instanceof ConstDecl){
@@ -523,19 +616,19 @@ class ParamDeclList extends PascalSyntax{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint("(");
+	void prettyPrint(LogFile log) {
+		log.prettyPrint("(");
 		ListIterator<ParamDecl> it = paramList.listIterator();
 		while(it.hasNext()){
-			it.next().prettyPrint();
+			it.next().prettyPrint(log);
 			if(it.hasNext())
-				Main.log.prettyPrint(" ; ");
+				log.prettyPrint(" ; ");
 		}
-		Main.log.prettyPrint(")");
+		log.prettyPrint(")");
 	}
 	static ParamDeclList parse(Scanner s){
 
-		enterParser("param decl list");
+		enterParser(s, "param decl list");
 		ParamDeclList pdl = new ParamDeclList(s.curLineNum());
 		s.skip(TokenKind.leftParToken);
 		while(s.curToken.kind != TokenKind.rightParToken){
@@ -544,7 +637,7 @@ class ParamDeclList extends PascalSyntax{
 			if(s.curToken.kind == TokenKind.semicolonToken)
 				s.skip(TokenKind.semicolonToken);
 		}
-		leaveParser("param decl list");
+		leaveParser(s, "param decl list");
 		return pdl;
 	}
 
@@ -589,12 +682,12 @@ class ExpressionList extends PascalSyntax{
 	}
 
 	@Override
-	void prettyPrint() {
+	void prettyPrint(LogFile log) {
 		ListIterator<Expression> it = exprList.listIterator();
 		while(it.hasNext()){
-			it.next().prettyPrint();
+			it.next().prettyPrint(log);
 			if(it.hasNext())
-				Main.log.prettyPrint(",");
+				log.prettyPrint(",");
 		}
 	}
 	static ExpressionList parse(Scanner s){
@@ -617,6 +710,13 @@ class ExpressionList extends PascalSyntax{
 
 	}
 
+	@Override
+	void fold() {
+		for(Expression e : exprList){
+			e.fold();
+		}
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		for(int i = exprList.size()-1; i >-1; i--){
@@ -630,6 +730,8 @@ class Expression extends PascalSyntax{
 	SimpleExpr simexpLeft, simexpRight;
 	RelOperator relopr;
 	Type type;
+	boolean isConst = false;  // Set by fold() if the value is known
+	int constVal;
 
 	Expression(int n) {
 		super(n);
@@ -641,24 +743,24 @@ class Expression extends PascalSyntax{
 	}
 
 	@Override
-	void prettyPrint() {
-		simexpLeft.prettyPrint();
+	void prettyPrint(LogFile log) {
+		simexpLeft.prettyPrint(log);
 		if (relopr != null){
-			relopr.prettyPrint();
-			simexpRight.prettyPrint();
+			relopr.prettyPrint(log);
+			simexpRight.prettyPrint(log);
 		}
 	}
 
 	static Expression parse(Scanner s){
 
-		enterParser("expression");
+		enterParser(s, "expression");
 		Expression exp = new Expression(s.curLineNum());
 		exp.simexpLeft = SimpleExpr.parse(s);
 		if(s.curToken.kind.isRelOpr()){
 			exp.relopr = RelOperator.parse(s);
 			exp.simexpRight = SimpleExpr.parse(s);
 		}
-		leaveParser("expression");
+		leaveParser(s, "expression");
 		return exp;
 	}
 
@@ -672,8 +774,27 @@ class Expression extends PascalSyntax{
 
 	}
 
+	@Override
+	void fold() {
+		simexpLeft.fold();
+		if(relopr == null){
+			isConst = simexpLeft.isConst;  constVal = simexpLeft.constVal;
+			return;
+		}
+		simexpRight.fold();
+		if(simexpLeft.isConst && simexpRight.isConst){
+			isConst = true;
+			constVal = relopr.apply(simexpLeft.constVal, simexpRight.constVal);
+		}
+	}
+
 	@Override
 	void genCode(CodeFile f) {
+		if(isConst && relopr != null){
+			genConst(f, constVal);  return;
+		}
+		if(f.isAllocatingRegisters() && RegisterAllocator.genCode(this, f))
+			return;
 		simexpLeft.genCode(f);
 	
 		if(relopr != null){
@@ -718,22 +839,22 @@ class FactorOperator extends Operator{
 	}
 
 	@Override
-	void prettyPrint() {
-		if (oprToken == TokenKind.multiplyToken) Main.log.prettyPrint(" * ");
-		else if (oprToken == TokenKind.divToken) Main.log.prettyPrint(" div ");
-		else if (oprToken == TokenKind.modToken) Main.log.prettyPrint(" mod ");
-		else Main.log.prettyPrint(" and ");
+	void prettyPrint(LogFile log) {
+		if (oprToken == TokenKind.multiplyToken) log.prettyPrint(" * ");
+		else if (oprToken == TokenKind.divToken) log.prettyPrint(" div ");
+		else if (oprToken == TokenKind.modToken) log.prettyPrint(" mod ");
+		else log.prettyPrint(" and ");
 
 	}
 	static FactorOperator parse(Scanner s){
 
-		enterParser("factor opr");
+		enterParser(s, "factor opr");
 		FactorOperator fo = new FactorOperator(s.curLineNum());
 		if(s.curToken.kind.isFactorOpr()){
 			fo.oprToken = s.curToken.kind;
 			s.skip(s.curToken.kind);
 		}
-		leaveParser("factor opr");
+		leaveParser(s, "factor opr");
 		return fo;
 	}
 
@@ -743,6 +864,22 @@ class FactorOperator extends Operator{
 
 	}
 
+	/*
+	 * idivl traps on division by zero and on the one quotient which
+	 * does not fit, so those are left for run time.
+	 */
+	boolean traps(int a, int b) {
+		return (oprToken == TokenKind.divToken || oprToken == TokenKind.modToken) &&
+			(b == 0 || (a == Integer.MIN_VALUE && b == -1));
+	}
+
+	int apply(int a, int b) {
+		if (oprToken == TokenKind.multiplyToken) return a * b;
+		if (oprToken == TokenKind.divToken) return a / b;
+		if (oprToken == TokenKind.modToken) return a % b;
+		return a & b;
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		f.genInstr("", "movl", "%eax,%ecx", "");
@@ -782,21 +919,21 @@ class PrefixOperator extends Operator{
 	}
 
 	@Override
-	void prettyPrint() {
-		if (oprToken == TokenKind.addToken) Main.log.prettyPrint("+");
-		else Main.log.prettyPrint("-");
+	void prettyPrint(LogFile log) {
+		if (oprToken == TokenKind.addToken) log.prettyPrint("+");
+		else log.prettyPrint("-");
 
 	}
 
 	static PrefixOperator parse(Scanner s){
 
-		enterParser("prefix opr");
+		enterParser(s, "prefix opr");
 		PrefixOperator po = new PrefixOperator(s.curLineNum());
 		if(s.curToken.kind.isPrefixOpr()){
 			po.oprToken = s.curToken.kind;
 			s.skip(s.curToken.kind);
 		}
-		leaveParser("prefix opr");
+		leaveParser(s, "prefix opr");
 		return po;
 	}
 
@@ -806,6 +943,10 @@ class PrefixOperator extends Operator{
 
 	}
 
+	int apply(int a) {
+		return oprToken == TokenKind.subtractToken ? -a : a;
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		if (oprToken == TokenKind.subtractToken) 
@@ -828,7 +969,7 @@ class RelOperator extends Operator{
 	}
 
 	@Override
-	void prettyPrint() {
+	void prettyPrint(LogFile log) {
 		String op = "?";
 		switch (oprToken) {
 		case equalToken:        op = " = ";  break;
@@ -840,19 +981,19 @@ class RelOperator extends Operator{
 		default:
 			break;
 		}
-		Main.log.prettyPrint(op);
+		log.prettyPrint(op);
 
 	}
 
 	static RelOperator parse(Scanner s){
 
-		enterParser("rel opr");
+		enterParser(s, "rel opr");
 		RelOperator ro = new RelOperator(s.curLineNum());
 		if(s.curToken.kind.isRelOpr()){
 			ro.oprToken = s.curToken.kind;
 			s.skip(s.curToken.kind);
 		}
-		leaveParser("rel opr");
+		leaveParser(s, "rel opr");
 		return ro;
 	}
 
@@ -860,6 +1001,20 @@ class RelOperator extends Operator{
 	void check(Block curScope, Library lib) {
 	}
 
+	int apply(int a, int b) {
+		boolean res;
+		switch (oprToken) {
+		case equalToken:        res = a == b;  break;
+		case notEqualToken:     res = a != b;  break;
+		case lessToken:         res = a < b;   break;
+		case lessEqualToken:    res = a <= b;  break;
+		case greaterToken:      res = a > b;   break;
+		case greaterEqualToken: res = a >= b;  break;
+		default:                res = false;   break;
+		}
+		return res ? 1 : 0;
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		f.genInstr("", "popl", "%ecx", "");
@@ -899,22 +1054,22 @@ class TermOperator extends Operator{
 	}
 
 	@Override
-	void prettyPrint() {
-		if (oprToken == TokenKind.addToken) Main.log.prettyPrint(" + ");
-		else if (oprToken == TokenKind.subtractToken) Main.log.prettyPrint(" - ");
-		else Main.log.prettyPrint(" or ");
+	void prettyPrint(LogFile log) {
+		if (oprToken == TokenKind.addToken) log.prettyPrint(" + ");
+		else if (oprToken == TokenKind.subtractToken) log.prettyPrint(" - ");
+		else log.prettyPrint(" or ");
 
 	}
 
 	static TermOperator parse(Scanner s){
 
-		enterParser("term opr");
+		enterParser(s, "term opr");
 		TermOperator to = new TermOperator(s.curLineNum());
 		if(s.curToken.kind.isTermOpr()){
 			to.oprToken = s.curToken.kind;
 			s.skip(s.curToken.kind);
 		}
-		leaveParser("term opr");
+		leaveParser(s, "term opr");
 		return to;
 	}
 
@@ -924,6 +1079,12 @@ class TermOperator extends Operator{
 
 	}
 
+	int apply(int a, int b) {
+		if (oprToken == TokenKind.addToken) return a + b;
+		if (oprToken == TokenKind.subtractToken) return a - b;
+		return a | b;
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		f.genInstr("", "movl", "%eax,%ecx", "");
@@ -947,6 +1108,8 @@ class SimpleExpr extends PascalSyntax{
 	ArrayList<Term> termList = new ArrayList<>();
 	ArrayList<PascalSyntax> sexList = new ArrayList<>();
 	ArrayList<TermOperator> termOprList = new ArrayList<>();
+	boolean isConst = false;  // Set by fold() if the value is known
+	int constVal;
 
 	SimpleExpr(int n) {
 		super(n);
@@ -960,14 +1123,14 @@ class SimpleExpr extends PascalSyntax{
 	}
 
 	@Override
-	void prettyPrint() {
+	void prettyPrint(LogFile log) {
 		for(PascalSyntax p : sexList){
-			p.prettyPrint();
+			p.prettyPrint(log);
 		}
 	}
 	static SimpleExpr parse(Scanner s){
 
-		enterParser("simple expr");
+		enterParser(s, "simple expr");
 		SimpleExpr se = new SimpleExpr(s.curLineNum());
 		if(s.curToken.kind.isPrefixOpr()){
 			se.prefixOpr = PrefixOperator.parse(s);
@@ -989,7 +1152,7 @@ class SimpleExpr extends PascalSyntax{
 			}
 		}
 
-		leaveParser("simple expr");
+		leaveParser(s, "simple expr");
 		return se;
 	}
 
@@ -1001,8 +1164,28 @@ class SimpleExpr extends PascalSyntax{
 		}
 	}
 
+	@Override
+	void fold() {
+		for(Term t : termList){
+			t.fold();
+		}
+		for(Term t : termList){
+			if(! t.isConst) return;
+		}
+		int v = termList.get(0).constVal;
+		if(prefixOpr != null)
+			v = prefixOpr.apply(v);
+		for(int i = 0; i < termOprList.size(); i++){
+			v = termOprList.get(i).apply(v, termList.get(i+1).constVal);
+		}
+		isConst = true;  constVal = v;
+	}
+
 	@Override
 	void genCode(CodeFile f) {
+		if(isConst && (prefixOpr != null || ! termOprList.isEmpty())){
+			genConst(f, constVal);  return;
+		}
 		Iterator<Term> it = termList.iterator();
 		Iterator<TermOperator> ito = termOprList.iterator();
 		while(it.hasNext()){
@@ -1037,20 +1220,20 @@ class StatmList extends PascalSyntax{
 	}
 
 	@Override
-	void prettyPrint() {
+	void prettyPrint(LogFile log) {
 		for(Statement s : statList){
-			s.prettyPrint();
+			s.prettyPrint(log);
 			if(s instanceof EmptyStatm)
 				break;
 			if(s != null)
-				Main.log.prettyPrintLn(";");
+				log.prettyPrintLn(";");
 		}
 
 	}
 
 	static StatmList parse(Scanner s){
 
-		enterParser("statm list");
+		enterParser(s, "statm list");
 		StatmList sl = new StatmList(s.curLineNum());
 		Statement st = Statement.parse(s);
 		sl.statList.add(st);
@@ -1061,7 +1244,7 @@ class StatmList extends PascalSyntax{
 			Statement st1 = Statement.parse(s);
 			sl.statList.add(st1);
 		}
-		leaveParser("statm list");
+		leaveParser(s, "statm list");
 		return sl;
 	}
 
@@ -1073,6 +1256,13 @@ class StatmList extends PascalSyntax{
 
 	}
 
+	@Override
+	void fold() {
+		for(Statement s : statList){
+			s.fold();
+		}
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		for(Statement s : statList){
@@ -1089,6 +1279,8 @@ class Term extends PascalSyntax{
 	ArrayList<Factor> factorList = new ArrayList<>();
 	ArrayList<FactorOperator> facOprList = new ArrayList<>();
 	ArrayList<PascalSyntax> termList = new ArrayList<>();
+	boolean isConst = false;  // Set by fold() if the value is known
+	int constVal;
 
 	Term(int n) {
 		super(n);
@@ -1102,9 +1294,9 @@ class Term extends PascalSyntax{
 	}
 
 	@Override
-	void prettyPrint() {
+	void prettyPrint(LogFile log) {
 		for(PascalSyntax p : termList){
-			p.prettyPrint();
+			p.prettyPrint(log);
 		}
 
 
@@ -1112,7 +1304,7 @@ class Term extends PascalSyntax{
 
 	static Term parse(Scanner s){
 
-		enterParser("term");
+		enterParser(s, "term");
 		Term t = new Term(s.curLineNum());
 		t.factor = Factor.parse(s);
 		t.factorList.add(t.factor);
@@ -1127,7 +1319,7 @@ class Term extends PascalSyntax{
 				t.termList.add(t.factor);
 			}
 		}
-		leaveParser("term");
+		leaveParser(s, "term");
 		return t;
 	}
 
@@ -1139,8 +1331,26 @@ class Term extends PascalSyntax{
 
 	}
 
+	@Override
+	void fold() {
+		for(Factor f : factorList){
+			f.fold();
+		}
+		if(! factorList.get(0).isConst) return;
+		int v = factorList.get(0).constVal;
+		for(int i = 0; i < facOprList.size(); i++){
+			Factor f = factorList.get(i+1);
+			if(! f.isConst || facOprList.get(i).traps(v, f.constVal)) return;
+			v = facOprList.get(i).apply(v, f.constVal);
+		}
+		isConst = true;  constVal = v;
+	}
+
 	@Override
 	void genCode(CodeFile f) {
+		if(isConst && ! facOprList.isEmpty()){
+			genConst(f, constVal);  return;
+		}
 		Iterator<Factor > itf = factorList.iterator();
 		while(itf.hasNext()){
 			itf.next().genCode(f);
@@ -1170,7 +1380,7 @@ abstract class Statement extends PascalSyntax{
 
 	static Statement parse(Scanner s){
 
-		enterParser("statement");
+		enterParser(s, "statement");
 		Statement st = null;
 		switch (s.curToken.kind) {
 		case beginToken:
@@ -1192,7 +1402,7 @@ abstract class Statement extends PascalSyntax{
 		default:
 			st = EmptyStatm.parse(s);  break;
 		}
-		leaveParser("statement");
+		leaveParser(s, "statement");
 		return st;
 	}
 
@@ -1211,20 +1421,20 @@ class AssignStatm extends Statement{
 	}
 
 	@Override
-	void prettyPrint() {
-		var.prettyPrint();
-		Main.log.prettyPrint(" := ");
-		expr.prettyPrint();
+	void prettyPrint(LogFile log) {
+		var.prettyPrint(log);
+		log.prettyPrint(" := ");
+		expr.prettyPrint(log);
 	}
 
 	static AssignStatm parse(Scanner s){
 
-		enterParser("assign statm");
+		enterParser(s, "assign statm");
 		AssignStatm as = new AssignStatm(s.curLineNum());
 		as.var = Variable.parse(s);
 		s.skip(TokenKind.assignToken);
 		as.expr = Expression.parse(s);
-		leaveParser("assign statm");
+		leaveParser(s, "assign statm");
 		return as;
 	}
 
@@ -1234,6 +1444,12 @@ class AssignStatm extends Statement{
 		expr.check(curScope, lib);
 	}
 
+	@Override
+	void fold() {
+		var.fold();
+		expr.fold();
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		expr.genCode(f);
@@ -1261,24 +1477,24 @@ class CompoundStatm extends Statement{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrintLn("begin");
-		Main.log.prettyIndent();
-		list.prettyPrint();
-		Main.log.prettyOutdent();
-		Main.log.prettyPrint("end");
+	void prettyPrint(LogFile log) {
+		log.prettyPrintLn("begin");
+		log.prettyIndent();
+		list.prettyPrint(log);
+		log.prettyOutdent();
+		log.prettyPrint("end");
 	}
 
 	static CompoundStatm parse(Scanner s){
 
-		enterParser("compound statm");
+		enterParser(s, "compound statm");
 		CompoundStatm cs = new CompoundStatm(s.curLineNum());
 		s.skip(TokenKind.beginToken);
 		cs.list = StatmList.parse(s);
 		s.skip(TokenKind.endToken);
 		if(s.curToken.kind == TokenKind.semicolonToken)
 			s.skip(TokenKind.semicolonToken);
-		leaveParser("compound statm");
+		leaveParser(s, "compound statm");
 		return cs;
 	}
 
@@ -1288,6 +1504,11 @@ class CompoundStatm extends Statement{
 
 	}
 
+	@Override
+	void fold() {
+		list.fold();
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		list.genCode(f);
@@ -1311,23 +1532,23 @@ class IfStatm extends Statement{
 	}
 
 	@Override
-	void prettyPrint() {
+	void prettyPrint(LogFile log) {
 
-		Main.log.prettyPrint("if ");
-		expr.prettyPrint();
-		Main.log.prettyPrintLn(" then ");
-		Main.log.prettyIndent();
-		stat.prettyPrint();
-		Main.log.prettyOutdent();
-		Main.log.prettyPrintLn();
+		log.prettyPrint("if ");
+		expr.prettyPrint(log);
+		log.prettyPrintLn(" then ");
+		log.prettyIndent();
+		stat.prettyPrint(log);
+		log.prettyOutdent();
+		log.prettyPrintLn();
 		if (elsePart != null)
-			elsePart.prettyPrint();
+			elsePart.prettyPrint(log);
 
 	}
 
 	static IfStatm parse(Scanner s){
 
-		enterParser("if-statm");
+		enterParser(s, "if-statm");
 		IfStatm ifs = new IfStatm(s.curLineNum());
 		s.skip(TokenKind.ifToken);
 		ifs.expr = Expression.parse(s);
@@ -1337,7 +1558,7 @@ class IfStatm extends Statement{
 
 			ifs.elsePart = ElsePart.parse(s);
 		}
-		leaveParser("if-statm");
+		leaveParser(s, "if-statm");
 		return ifs;
 	}
 
@@ -1349,6 +1570,14 @@ class IfStatm extends Statement{
 			elsePart.check(curScope, lib);
 	}
 
+	@Override
+	void fold() {
+		expr.fold();
+		stat.fold();
+		if(elsePart != null)
+			elsePart.fold();
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		if(elsePart != null){
@@ -1389,12 +1618,12 @@ class ElsePart extends Statement{
 	}
 
 	@Override
-	void prettyPrint() {
+	void prettyPrint(LogFile log) {
 
-		Main.log.prettyPrintLn("else");
-		Main.log.prettyIndent();
-		stm.prettyPrint();
-		Main.log.prettyOutdent();
+		log.prettyPrintLn("else");
+		log.prettyIndent();
+		stm.prettyPrint(log);
+		log.prettyOutdent();
 	}
 
 	static ElsePart parse(Scanner s){
@@ -1411,6 +1640,11 @@ class ElsePart extends Statement{
 		stm.check(curScope, lib);
 	}
 
+	@Override
+	void fold() {
+		stm.fold();
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		String testLable = f.getLocalLabel(),
@@ -1439,35 +1673,41 @@ class WhileStatm extends Statement{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint("while ");
-		expr.prettyPrint();
-		Main.log.prettyPrintLn(" do");
-		Main.log.prettyIndent();
-		statm.prettyPrint();
-		Main.log.prettyOutdent();
+	void prettyPrint(LogFile log) {
+		log.prettyPrint("while ");
+		expr.prettyPrint(log);
+		log.prettyPrintLn(" do");
+		log.prettyIndent();
+		statm.prettyPrint(log);
+		log.prettyOutdent();
 
 	}
 
 	static WhileStatm parse(Scanner s){
 
-		enterParser("while-statm");
+		enterParser(s, "while-statm");
 		WhileStatm ws = new WhileStatm(s.curLineNum());
 		s.skip(TokenKind.whileToken);
 		ws.expr = Expression.parse(s);
 		s.skip(TokenKind.doToken);
 		ws.statm = Statement.parse(s);
-		leaveParser("while-statm");
+		leaveParser(s, "while-statm");
 		return ws;
 	}
 
 	@Override
 	void check(Block curScope, Library lib) {
 		expr.check(curScope, lib);
-		Main.log.noteTypeCheck("while", expr.type, this);
+		curScope.ctx.log.noteTypeCheck("while", expr.type, this);
 		statm.check(curScope, lib);
 	}
 
+	@Override
+	void fold() {
+		expr.fold();
+		statm.fold();
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		String testLable = f.getLocalLabel(),
@@ -1487,6 +1727,7 @@ class WhileStatm extends Statement{
 class ProcCallStatm extends Statement{
 
 	String nam;
+	int nameId;
 	ExpressionList exprList;
 	String assName;
 	ProcDecl procRef;
@@ -1502,21 +1743,22 @@ class ProcCallStatm extends Statement{
 	}
 
 	@Override
-	void prettyPrint() {
-		Main.log.prettyPrint(nam);
+	void prettyPrint(LogFile log) {
+		log.prettyPrint(nam);
 		if(exprList != null){
-			Main.log.prettyPrint(" (");
-			exprList.prettyPrint();
-			Main.log.prettyPrint(")");
+			log.prettyPrint(" (");
+			exprList.prettyPrint(log);
+			log.prettyPrint(")");
 		}
 		
 	}
 
 	static ProcCallStatm parse(Scanner s){
 
-		enterParser("proc call");
+		enterParser(s, "proc call");
 		ProcCallStatm pcs = new ProcCallStatm(s.curLineNum());
 		pcs.nam = s.curToken.id;
+		pcs.nameId = s.curToken.nameId;
 		s.skip(TokenKind.nameToken);
 		if(s.curToken.kind == TokenKind.leftParToken){
 			s.skip(TokenKind.leftParToken);
@@ -1525,17 +1767,19 @@ class ProcCallStatm extends Statement{
 			}
 			s.skip(TokenKind.rightParToken);
 		}
-		leaveParser("proc call");
+		leaveParser(s, "proc call");
 		return pcs;
 	}
 
 	@Override
 	void check(Block curScope, Library lib) {
 
-		PascalDecl pd = curScope.findDecl(nam, this);
+		PascalDecl pd = curScope.findDecl(nameId, this);
 		procRef = (ProcDecl)pd;
 		procRef.checkWhetherAssignable(this);
 		procRef.checkWhetherProcedure(this);
+		if(procRef != lib.writeDecl)
+			curScope.makesCalls = true;
 		if(exprList != null){
 			for(Expression ex : exprList.exprList){
 				ex.check(curScope, lib);
@@ -1544,6 +1788,12 @@ class ProcCallStatm extends Statement{
 		
 	}
 
+	@Override
+	void fold() {
+		if(exprList != null)
+			exprList.fold();
+	}
+
 	@Override
 	void genCode(CodeFile f) {
 		if(nam.equals("write")){
@@ -1623,15 +1873,15 @@ class EmptyStatm extends Statement{
 	}
 
 	@Override
-	void prettyPrint() {
+	void prettyPrint(LogFile log) {
 
 	}
 
 	static EmptyStatm parse(Scanner s){
 
-		enterParser("empty statm");
+		enterParser(s, "empty statm");
 		EmptyStatm es = new EmptyStatm(s.curLineNum());
-		leaveParser("empty statm");
+		leaveParser(s, "empty statm");
 		return es;
 	}
 
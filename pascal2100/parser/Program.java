@@ -1,7 +1,8 @@
 package no.uio.ifi.pascal2100.parser;
 
 import no.uio.ifi.pascal2100.main.CodeFile;
-import no.uio.ifi.pascal2100.main.Main;
+import no.uio.ifi.pascal2100.main.CompilationContext;
+import no.uio.ifi.pascal2100.main.LogFile;
 import no.uio.ifi.pascal2100.scanner.Scanner;
 import no.uio.ifi.pascal2100.scanner.TokenKind;
 
@@ -9,38 +10,38 @@ public class Program extends PascalDecl{
 
 	Block body;
 	Library lib;
-	public static String nam;
-	public static String assName;
+	CompilationContext ctx;
 	Program(String id, int lNum) {
 		super(id, lNum);
 	}
 
 	@Override
 	public String identify() {
-		return "<program>" + nam +  "on line " + lineNum;
+		return "<program>" + ctx.programName +  "on line " + lineNum;
 	}
 
 	@Override
-	public void prettyPrint() {
-		Main.log.prettyPrintLn();
-		Main.log.prettyPrintLn("*************************");
-		Main.log.prettyPrintLn();
-		Main.log.prettyPrintLn("program " + nam + ";");
-		body.prettyPrint();
-		Main.log.prettyPrintLn(".");
+	public void prettyPrint(LogFile log) {
+		log.prettyPrintLn();
+		log.prettyPrintLn("*************************");
+		log.prettyPrintLn();
+		log.prettyPrintLn("program " + ctx.programName + ";");
+		body.prettyPrint(log);
+		log.prettyPrintLn(".");
 	}
 
 	public static Program parse(Scanner s){
 
-		enterParser("program");
+		enterParser(s, "program");
 		Program p = new Program(s.curToken.id, s.curLineNum());
+		p.ctx = s.ctx;
 		s.skip(TokenKind.programToken);
-		Program.nam = s.curToken.id;
+		s.ctx.programName = s.curToken.id;
 		s.skip(TokenKind.nameToken);
 		s.skip(TokenKind.semicolonToken);
 		p.body = Block.parse(s);
 		s.skip(TokenKind.dotToken);
-		leaveParser("program");
+		leaveParser(s, "program");
 
 		return p;
 	}
@@ -75,22 +76,63 @@ public class Program extends PascalDecl{
 		}
 	}
 
+	/**
+	 * Runs the checked program directly, without generating code.
+	 */
+	public void run() {
+		Interpreter.run(this);
+	}
+
+	/**
+	 * Compiles the checked program to bytecode and runs it.
+	 */
+	public void runByteCode() {
+		ByteCode.compile(this).run(ctx.out);
+	}
+
+	/**
+	 * Compiles the checked program to a JVM class and runs it.
+	 */
+	public void runJvm() {
+		JvmCompiler.run(this);
+	}
+
+	@Override
+	public void fold() {
+		if(body != null)
+			body.fold();
+	}
+
 	@Override
 	public	void genCode(CodeFile f) {
-		assName = f.getLabel(nam);
+		if(f.isTarget64()){
+			X86_64Generator.genCode(this, f);  return;
+		}
+		String assName = ctx.programLabel = f.getLabel(ctx.programName);
 		f.genInstr("", ".extern", "write_char", "");
 		f.genInstr("", ".extern", "write_int", "");
 		f.genInstr("", ".extern", "write_string", "");
 		f.genInstr("", ".globl", "_main", "");
 		f.genInstr("", ".globl", "main", "");
 		f.genInstr("_main", "", "", "");
-		f.genInstr("main", "call", "prog$" + assName , "Start program");
+		if(f.isAllocatingRegisters()){
+			// The expression code uses registers the C caller expects kept.
+			f.genInstr("main", "pushl", "%ebx", "Save registers");
+			f.genInstr("", "pushl", "%esi", "");
+			f.genInstr("", "pushl", "%edi", "");
+			f.genInstr("", "call", "prog$" + assName , "Start program");
+			f.genInstr("", "popl", "%edi", "Restore registers");
+			f.genInstr("", "popl", "%esi", "");
+			f.genInstr("", "popl", "%ebx", "");
+		}else{
+			f.genInstr("main", "call", "prog$" + assName , "Start program");
+		}
 		f.genInstr("", "movl", "$0,%eax", "Set status 0 and");
 		f.genInstr("", "ret", "", "terminate the program");
 		if(body != null){
 			body.genCode(f);
 		}
-		f.genInstr("", "leave", "", "End of " + nam);
+		f.genInstr("", "leave", "", "End of " + ctx.programName);
 		f.genInstr("", "ret", "", "");
 	}
 }
\ No newline at end of file
@@ -0,0 +1,306 @@
+package no.uio.ifi.pascal2100.parser;
+
+import no.uio.ifi.pascal2100.main.CodeFile;
+import no.uio.ifi.pascal2100.main.Main;
+import no.uio.ifi.pascal2100.scanner.TokenKind;
+
+/**
+ * Generates code for an expression with the intermediate values in
+ * registers instead of on the stack. The expression is seen as a binary
+ * tree, and every node gets its Sethi-Ullman number: the number of
+ * registers needed to evaluate it without spilling. The operand which
+ * needs more registers is evaluated first, so a value is only pushed
+ * when both operands need all the free registers.
+ *
+ * The registers used are %ebx, %ecx, %esi and %edi. %eax and %edx are
+ * left free for idivl and for factors which are generated the ordinary
+ * way, like function calls; registers in use are pushed around those,
+ * since the function may use them too. The result ends up in %eax,
+ * just as for the ordinary code.
+ */
+class RegisterAllocator {
+	private static final String[] regs = { "%ebx", "%ecx", "%esi", "%edi" };
+
+	// The kinds of nodes:
+	private static final int CONST = 0, VAR = 1, OTHER = 2, UNARY = 3, BINARY = 4;
+
+	private static class Node {
+		int kind, need;
+		boolean hasCall = false;  // The code may call a function
+		int value;                // CONST
+		Factor factor;            // VAR and OTHER
+		String instr;             // UNARY
+		TokenKind opr;            // BINARY
+		Node left, right;
+	}
+
+	private final CodeFile f;
+	private final boolean[] busy = new boolean[regs.length];
+
+	private RegisterAllocator(CodeFile f) {
+		this.f = f;
+	}
+
+	/**
+	 * Generates code for an expression, if it is more than a single
+	 * factor.
+	 * @return false if the ordinary code should be used instead
+	 */
+	static boolean genCode(Expression e, CodeFile f) {
+		RegisterAllocator ra = new RegisterAllocator(f);
+		Node root = ra.build(e);
+		if (root.kind != UNARY && root.kind != BINARY)
+			return false;
+		int r = ra.gen(root);
+		f.genInstr("", "movl", regs[r] + ",%eax", "");
+		return true;
+	}
+
+
+	private Node build(Expression e) {
+		if (e.isConst) return constant(e.constVal);
+		Node n = build(e.simexpLeft);
+		if (e.relopr != null)
+			n = binary(e.relopr.oprToken, n, build(e.simexpRight));
+		return n;
+	}
+
+	private Node build(SimpleExpr se) {
+		if (se.isConst) return constant(se.constVal);
+		Node n = build(se.termList.get(0));
+		if (se.prefixOpr != null && se.prefixOpr.oprToken == TokenKind.subtractToken)
+			n = unary("negl", n);
+		for (int i = 0;  i < se.termOprList.size();  i++)
+			n = binary(se.termOprList.get(i).oprToken, n, build(se.termList.get(i+1)));
+		return n;
+	}
+
+	private Node build(Term t) {
+		if (t.isConst) return constant(t.constVal);
+		Node n = build(t.factorList.get(0));
+		for (int i = 0;  i < t.facOprList.size();  i++) {
+			TokenKind opr = t.facOprList.get(i).oprToken;
+			if (opr != TokenKind.multiplyToken && opr != TokenKind.divToken &&
+					opr != TokenKind.modToken)
+				opr = TokenKind.andToken;
+			n = binary(opr, n, build(t.factorList.get(i+1)));
+		}
+		return n;
+	}
+
+	private Node build(Factor fa) {
+		if (fa.isConst) return constant(fa.constVal);
+		if (fa instanceof NumberLiteral)
+			return constant(((NumberLiteral) fa).valInt);
+		if (fa instanceof CharLiteral)
+			return constant((int) ((CharLiteral) fa).valChar.charAt(0));
+		if (fa instanceof InnerExpr)
+			return build(((InnerExpr) fa).expr);
+		if (fa instanceof Negation)
+			return unary("xorl", build(((Negation) fa).factor));
+
+		Node n = new Node();
+		n.kind = OTHER;  n.need = 1;  n.factor = fa;
+		if (fa instanceof Variable) {
+			Variable v = (Variable) fa;
+			if (v.expr == null &&
+					(v.declRef instanceof VarDecl || v.declRef instanceof ParamDecl)) {
+				n.kind = VAR;
+			} else if (v.expr == null && v.declRef instanceof ConstDecl) {
+				Constant c = ((ConstDecl) v.declRef).constant;
+				if (c instanceof NumberLiteral)
+					return constant(((NumberLiteral) c).valInt);
+				if (c instanceof CharLiteral)
+					return constant((int) ((CharLiteral) c).valChar.charAt(0));
+			} else if (v.expr != null) {
+				n.hasCall = true;  // The index is an expression of its own.
+			}
+		} else if (fa instanceof FuncCall) {
+			n.hasCall = true;
+		}
+		return n;
+	}
+
+	private Node constant(int value) {
+		Node n = new Node();
+		n.kind = CONST;  n.need = 1;  n.value = value;
+		return n;
+	}
+
+	private Node unary(String instr, Node child) {
+		Node n = new Node();
+		n.kind = UNARY;  n.instr = instr;  n.left = child;
+		n.need = child.need;  n.hasCall = child.hasCall;
+		return n;
+	}
+
+	private Node binary(TokenKind opr, Node left, Node right) {
+		Node n = new Node();
+		n.kind = BINARY;  n.opr = opr;  n.left = left;  n.right = right;
+		n.hasCall = left.hasCall || right.hasCall;
+		if (isImmediate(n))
+			n.need = left.need;
+		else if (left.need == right.need)
+			n.need = left.need + 1;
+		else
+			n.need = Math.max(left.need, right.need);
+		return n;
+	}
+
+	// A constant right operand is used directly, except by idivl.
+	private static boolean isImmediate(Node n) {
+		return n.right.kind == CONST &&
+			n.opr != TokenKind.divToken && n.opr != TokenKind.modToken;
+	}
+
+
+	/**
+	 * Generates code for a node.
+	 * @return the register holding the value
+	 */
+	private int gen(Node n) {
+		int r;
+		switch (n.kind) {
+		case CONST:
+			r = alloc();
+			f.genInstr("", "movl", "$" + n.value + "," + regs[r], "" + n.value);
+			return r;
+		case VAR:
+			Variable v = (Variable) n.factor;
+			r = alloc();
+			f.genInstr("", "movl", v.declRef.assemNameblockLevel + "," + regs[r], "");
+			f.genInstr("", "movl", v.declRef.declOffset + "(" + regs[r] + ")," + regs[r],
+					v.nam);
+			return r;
+		case OTHER:
+			return genOther(n);
+		case UNARY:
+			r = gen(n.left);
+			if (n.instr.equals("xorl"))
+				f.genInstr("", "xorl", "$1," + regs[r], " not");
+			else
+				f.genInstr("", n.instr, regs[r], "Prefix -");
+			return r;
+		}
+
+		if (isImmediate(n)) {
+			r = gen(n.left);
+			genOperator(n.opr, regs[r], "$" + n.right.value);
+			return r;
+		}
+		if (n.left.need >= numFree() && n.right.need >= numFree()) {
+			// Both operands need all the registers, so spill the left.
+			r = gen(n.left);
+			f.genInstr("", "pushl", regs[r], "Spill");
+			free(r);
+			int rr = gen(n.right);
+			f.genInstr("", "popl", "%eax", "");
+			genOperator(n.opr, "%eax", regs[rr]);
+			f.genInstr("", "movl", "%eax," + regs[rr], "");
+			return rr;
+		}
+
+		int rl, rr;
+		// Calls are made left to right, as in the ordinary code.
+		if (n.right.need > n.left.need && ! n.hasCall) {
+			rr = gen(n.right);  rl = gen(n.left);
+		} else {
+			rl = gen(n.left);  rr = gen(n.right);
+		}
+		genOperator(n.opr, regs[rl], regs[rr]);
+		free(rr);
+		return rl;
+	}
+
+	/*
+	 * A factor generated the ordinary way, with its value in %eax.
+	 */
+	private int genOther(Node n) {
+		for (int i = 0;  i < regs.length;  i++) {
+			if (busy[i] && n.hasCall)
+				f.genInstr("", "pushl", regs[i], "Save");
+		}
+		n.factor.genCode(f);
+		for (int i = regs.length-1;  i >= 0;  i--) {
+			if (busy[i] && n.hasCall)
+				f.genInstr("", "popl", regs[i], "Restore");
+		}
+		int r = alloc();
+		f.genInstr("", "movl", "%eax," + regs[r], "");
+		return r;
+	}
+
+	/*
+	 * left := left opr right
+	 */
+	private void genOperator(TokenKind opr, String left, String right) {
+		switch (opr) {
+		case addToken:
+			f.genInstr("", "addl", right + "," + left, " +");  break;
+		case subtractToken:
+			f.genInstr("", "subl", right + "," + left, " -");  break;
+		case orToken:
+			f.genInstr("", "orl", right + "," + left, " or");  break;
+		case multiplyToken:
+			f.genInstr("", "imull", right + "," + left, " *");  break;
+		case andToken:
+			f.genInstr("", "andl", right + "," + left, " and");  break;
+		case divToken:
+		case modToken:
+			if (! left.equals("%eax"))
+				f.genInstr("", "movl", left + ",%eax", "");
+			f.genInstr("", "cdq", "", "");
+			f.genInstr("", "idivl", right, opr == TokenKind.divToken ? " / (div)" : "");
+			String res = opr == TokenKind.divToken ? "%eax" : "%edx";
+			if (! left.equals(res))
+				f.genInstr("", "movl", res + "," + left,
+						opr == TokenKind.modToken ? " mod" : "");
+			break;
+		default:
+			f.genInstr("", "cmpl", right + "," + left, "");
+			String cc = condition(opr);
+			if (cc == null) {
+				f.genInstr("", "movl", "$0," + left, "");
+			} else {
+				f.genInstr("", "set" + cc, "%al", "Test " + opr);
+				f.genInstr("", "movzbl", "%al," + left, "");
+			}
+			break;
+		}
+	}
+
+	private static String condition(TokenKind opr) {
+		switch (opr) {
+		case equalToken:        return "e";
+		case notEqualToken:     return "ne";
+		case lessToken:         return "l";
+		case lessEqualToken:    return "le";
+		case greaterToken:      return "g";
+		case greaterEqualToken: return "ge";
+		default:                return null;
+		}
+	}
+
+
+	private int alloc() {
+		for (int i = 0;  i < regs.length;  i++) {
+			if (! busy[i]) {
+				busy[i] = true;  return i;
+			}
+		}
+		Main.error("PANIC! Programming error in RegisterAllocator: no free register");
+		return -1;
+	}
+
+	private void free(int r) {
+		busy[r] = false;
+	}
+
+	private int numFree() {
+		int n = 0;
+		for (boolean b : busy) {
+			if (! b) ++n;
+		}
+		return n;
+	}
+}
@@ -3,6 +3,7 @@ package no.uio.ifi.pascal2100.parser;
 import java.util.ArrayList;
 
 import no.uio.ifi.pascal2100.main.CodeFile;
+import no.uio.ifi.pascal2100.main.LogFile;
 import no.uio.ifi.pascal2100.main.Main;
 import no.uio.ifi.pascal2100.scanner.Scanner;
 import no.uio.ifi.pascal2100.scanner.TokenKind;
@@ -23,7 +24,7 @@ public abstract class Type extends PascalSyntax{
 
 	static Type parse(Scanner s){
 
-		enterParser("type");
+		enterParser(s, "type");
 		Type t = null;
 		switch (s.curToken.kind) {
 		case nameToken:
@@ -41,7 +42,7 @@ public abstract class Type extends PascalSyntax{
 			t = RangeType.parse(s); t.isRange = true;
 			break;
 		}
-		leaveParser("type");
+		leaveParser(s, "type");
 
 		return t;
 	}
@@ -61,20 +62,20 @@ class ArrayType extends Type{
 	}
 
 	@Override
-	public void prettyPrint() {
-		Main.log.prettyPrint("array ");
-		Main.log.prettyPrint("[");
+	public void prettyPrint(LogFile log) {
+		log.prettyPrint("array ");
+		log.prettyPrint("[");
 		for(Type t : arrayTypeList){
-			t.prettyPrint();
+			t.prettyPrint(log);
 		}
-		Main.log.prettyPrint("]");
-		Main.log.prettyPrint("  of  ");
-		type.prettyPrint();
+		log.prettyPrint("]");
+		log.prettyPrint("  of  ");
+		type.prettyPrint(log);
 
 	}
 	static ArrayType parse(Scanner s){
 
-		enterParser("array-type");
+		enterParser(s, "array-type");
 		ArrayType at = new ArrayType(s.curLineNum());
 		s.skip(TokenKind.arrayToken);
 		s.skip(TokenKind.leftBracketToken);
@@ -85,7 +86,7 @@ class ArrayType extends Type{
 		s.skip(TokenKind.rightBracketToken);
 		s.skip(TokenKind.ofToken);
 		at.type = Type.parse(s);
-		leaveParser("array-type");
+		leaveParser(s, "array-type");
 
 		return (ArrayType) at;
 	}
@@ -140,19 +141,19 @@ class EnumType extends Type{
 	}
 
 	@Override
-	public void prettyPrint() {
-		Main.log.prettyPrint(" (");
+	public void prettyPrint(LogFile log) {
+		log.prettyPrint(" (");
 		for(EnumLiteral e : enumLitList){
-			e.prettyPrint();
-			Main.log.prettyPrint(" , ");
+			e.prettyPrint(log);
+			log.prettyPrint(" , ");
 		}
-		Main.log.prettyPrintLn(")");
+		log.prettyPrintLn(")");
 
 	}
 
 	static EnumType parse(Scanner s){
 
-		enterParser("enum-type");
+		enterParser(s, "enum-type");
 		EnumType ent = new EnumType(s.curLineNum());
 		s.skip(TokenKind.leftParToken);
 		while(s.curToken.kind != TokenKind.rightParToken){
@@ -162,7 +163,7 @@ class EnumType extends Type{
 				s.skip(TokenKind.commaToken);
 		}
 		s.skip(TokenKind.rightParToken);
-		leaveParser("eunm-type");
+		leaveParser(s, "eunm-type");
 		return ent;
 
 	}
@@ -221,21 +222,21 @@ class RangeType extends Type{
 	}
 
 	@Override
-	public void prettyPrint() {
+	public void prettyPrint(LogFile log) {
 
-		constant.get(0).prettyPrint();
-		Main.log.prettyPrint(" .. ");
-		constant.get(1).prettyPrint();
+		constant.get(0).prettyPrint(log);
+		log.prettyPrint(" .. ");
+		constant.get(1).prettyPrint(log);
 	}
 
 	static RangeType parse(Scanner s){
 
-		enterParser("range-type");
+		enterParser(s, "range-type");
 		RangeType rt = new RangeType(s.curLineNum());
 		rt.constant.add(Constant.parse(s));
 		s.skip(TokenKind.rangeToken);
 		rt.constant.add(Constant.parse(s));
-		leaveParser("range-type");
+		leaveParser(s, "range-type");
 		return rt;
 	}
 
@@ -266,6 +267,7 @@ class RangeType extends Type{
 
 class TypeName extends Type{
 	String value;
+	int nameId;
 
 	TypeName(int n) {
 		super(n);
@@ -273,11 +275,12 @@ class TypeName extends Type{
 
 	static TypeName parse(Scanner s) {
 
-		enterParser("type name");
+		enterParser(s, "type name");
 		TypeName n = new TypeName(s.curLineNum());
 		n.value = s.curToken.id;
+		n.nameId = s.curToken.nameId;
 		s.skip(TokenKind.nameToken);
-		leaveParser("type name");
+		leaveParser(s, "type name");
 		return n;
 	}
 
@@ -287,13 +290,13 @@ class TypeName extends Type{
 	}
 
 	@Override
-	public void prettyPrint() {
-		Main.log.prettyPrint(" " + value + "");
+	public void prettyPrint(LogFile log) {
+		log.prettyPrint(" " + value + "");
 	}
 
 	@Override
 	void check(Block curScope, Library lib) {
-		PascalDecl pd = curScope.findDecl(value, this);
+		PascalDecl pd = curScope.findDecl(nameId, this);
 		typeRef = (TypeDecl) pd;
 
 	}
@@ -0,0 +1,428 @@
+package no.uio.ifi.pascal2100.parser;
+
+import java.util.HashMap;
+
+import no.uio.ifi.pascal2100.main.CodeFile;
+import no.uio.ifi.pascal2100.scanner.TokenKind;
+
+/**
+ * Generates System V AMD64 code for a checked program (-target x86_64).
+ * The scanner, parser and check are the same as for the i386 code; only
+ * the tree walk which produces the instructions is different.
+ *
+ * The frames are laid out as for i386, but every slot takes 8 bytes:
+ * the display entries for the levels 1-7 lie at -8(%rbp) to -56(%rbp),
+ * the function value at -64(%rbp), and then the local variables and the
+ * saved parameters. The first six parameters are passed in registers,
+ * the rest on the stack as the ABI says. The stack is kept 16-byte
+ * aligned at every call, so the runtime may be ordinary C.
+ */
+class X86_64Generator {
+	private static final String[] argRegs =
+		{ "%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9" };
+	private static final String[] argRegs32 =
+		{ "%edi", "%esi", "%edx", "%ecx", "%r8d", "%r9d" };
+	private static final int displayBytes = 64;
+
+	private final CodeFile f;
+	// Where the variables and parameters lie in their frame:
+	private final HashMap<PascalDecl, Integer> offsets = new HashMap<>();
+	private int depth = 0;  // The number of words pushed in this statement
+
+	private X86_64Generator(CodeFile f) {
+		this.f = f;
+	}
+
+	private X86_64Generator(CodeFile f, HashMap<PascalDecl, Integer> offsets) {
+		this.f = f;  this.offsets.putAll(offsets);
+	}
+
+	static void genCode(Program p, CodeFile f) {
+		new X86_64Generator(f).genProgram(p);
+	}
+
+
+	private void genProgram(Program p) {
+		p.ctx.programLabel = f.getLabel(p.ctx.programName);
+		f.genInstr("", ".extern", "write_char", "");
+		f.genInstr("", ".extern", "write_int", "");
+		f.genInstr("", ".extern", "write_string", "");
+		f.genInstr("", ".globl", "main", "");
+		f.genInstr("main", "subq", "$8,%rsp", "Align the stack");
+		f.genInstr("", "call", "prog$" + p.ctx.programLabel, "Start program");
+		f.genInstr("", "addq", "$8,%rsp", "");
+		f.genInstr("", "movl", "$0,%eax", "Set status 0 and");
+		f.genInstr("", "ret", "", "terminate the program");
+		if(p.body != null){
+			int frame = layout(p.body, null);
+			genRoutines(p.body);
+			f.genInstr("prog$" + p.ctx.programLabel, "", "", "");
+			genPrologue(p.body, 1, frame, true, "Start of " + p.ctx.programName);
+			genStatmList(p.body.statList);
+			f.genInstr("", "leave", "", "End of " + p.ctx.programName);
+			f.genInstr("", "ret", "", "");
+		}
+		f.genInstr("", ".section", ".note.GNU-stack,\"\",@progbits", "");
+	}
+
+	/*
+	 * The routines declared in a block are generated before it, each
+	 * one after its own inner routines. The frame of the block is laid
+	 * out first, since the inner routines use its variables.
+	 */
+	private void genRoutines(Block b) {
+		for(PascalSyntax ps : b.declListPrint){
+			if(ps instanceof ProcDecl)
+				genRoutine((ProcDecl) ps);
+		}
+	}
+
+	private void genRoutine(ProcDecl pd) {
+		int frame = layout(pd.block, pd.pdl);
+		pd.progProcFuncName = f.getLabel(pd.name);
+		if(! f.isParallel()){
+			genBody(pd, frame);  return;
+		}
+		// With -pargen the routine gets a generator of its own, which
+		// knows the frames laid out so far.
+		HashMap<PascalDecl, Integer> known = new HashMap<>(offsets);
+		f.genPart(part -> new X86_64Generator(part, known).genBody(pd, frame));
+	}
+
+	private void genBody(ProcDecl pd, int frame) {
+		boolean isFunc = pd instanceof FuncDecl;
+		String what = isFunc ? "function " : "procedure ";
+		genRoutines(pd.block);
+		f.genInstr((isFunc ? "func$" : "proc$") + pd.progProcFuncName, "", "", "");
+		genPrologue(pd.block, pd.declLevel, frame,
+				! (f.isOptimizing() && pd.isLeaf()), "Start of " + what + pd.name);
+		genParams(pd.pdl);
+		genStatmList(pd.block.statList);
+		if(isFunc)
+			f.genInstr("", "movl", "-" + displayBytes + "(%rbp),%eax", "Fetch return value");
+		f.genInstr("", "leave", "", "End of " + what + pd.name);
+		f.genInstr("", "ret", "", "");
+	}
+
+	/*
+	 * Gives the variables and parameters their place in the frame.
+	 * @return the size of the frame
+	 */
+	private int layout(Block b, ParamDeclList pdl) {
+		int slot = -displayBytes;
+		if(b.vdp != null){
+			for(VarDecl v : b.vdp.varList){
+				slot -= 8;  offsets.put(v, slot);
+			}
+		}
+		int nParams = pdl == null ? 0 : pdl.paramList.size();
+		for(int i = 0;  i < nParams;  i++){
+			if(i < argRegs.length){
+				slot -= 8;  offsets.put(pdl.paramList.get(i), slot);
+			}else{
+				offsets.put(pdl.paramList.get(i), 16 + 8*(i-argRegs.length));
+			}
+		}
+		return (-slot + 15) & ~15;
+	}
+
+	/*
+	 * Builds the frame and the display. A leaf routine only needs its
+	 * own display entry, so the rest is not copied. The parameter
+	 * registers must be left alone until they are saved.
+	 */
+	private void genPrologue(Block b, int level, int frame,
+			boolean copyDisplay, String comment) {
+		f.genInstr("", "pushq", "%rbp", comment);
+		f.genInstr("", "movq", "%rsp,%rbp", "");
+		f.genInstr("", "subq", "$" + frame + ",%rsp", "");
+		if(copyDisplay && level > 1){
+			f.genInstr("", "movq", "(%rbp),%rax", "Copy the display");
+			for(int i = 1;  i < level;  i++){
+				f.genInstr("", "movq", (-8*i) + "(%rax),%r11", "");
+				f.genInstr("", "movq", "%r11," + (-8*i) + "(%rbp)", "");
+			}
+		}
+		if(copyDisplay || b.maxDisplayLevel == level)
+			f.genInstr("", "movq", "%rbp," + (-8*level) + "(%rbp)", "Display");
+	}
+
+	// The parameters passed in registers are saved in the frame.
+	private void genParams(ParamDeclList pdl) {
+		if(pdl == null) return;
+		for(int i = 0;  i < pdl.paramList.size() && i < argRegs.length;  i++){
+			ParamDecl p = pdl.paramList.get(i);
+			f.genInstr("", "movl", argRegs32[i] + "," + offsets.get(p) + "(%rbp)", p.name);
+		}
+	}
+
+
+	private void genStatmList(StatmList sl) {
+		if(sl == null) return;
+		for(Statement s : sl.statList)
+			genStatement(s);
+	}
+
+	private void genStatement(Statement s) {
+		if(s instanceof AssignStatm){
+			AssignStatm a = (AssignStatm) s;
+			genExpression(a.expr);
+			PascalDecl d = a.var.declRef;
+			if(d instanceof VarDecl || d instanceof ParamDecl){
+				f.genInstr("", "movq", (-8*d.declLevel) + "(%rbp),%rdx", "");
+				f.genInstr("", "movl", "%eax," + offsets.get(d) + "(%rdx)", a.var.nam + " :=");
+			}else if(d instanceof FuncDecl){
+				f.genInstr("", "movl", "%eax,-" + displayBytes + "(%rbp)", a.var.nam + " :=");
+			}
+		}else if(s instanceof CompoundStatm){
+			genStatmList(((CompoundStatm) s).list);
+		}else if(s instanceof IfStatm){
+			IfStatm is = (IfStatm) s;
+			String elseLabel = f.getLocalLabel();
+			f.genInstr("", "", "", "Start if-statement");
+			genExpression(is.expr);
+			f.genInstr("", "cmpl", "$0,%eax", "");
+			f.genInstr("", "je", elseLabel, "");
+			genStatement(is.stat);
+			if(is.elsePart != null){
+				String endLabel = f.getLocalLabel();
+				f.genInstr("", "jmp", endLabel, "");
+				f.genInstr(elseLabel, "", "", "Start of else");
+				genStatement(is.elsePart.stm);
+				f.genInstr(endLabel, "", "", "End if-statement");
+			}else{
+				f.genInstr(elseLabel, "", "", "End if-statement");
+			}
+		}else if(s instanceof WhileStatm){
+			WhileStatm ws = (WhileStatm) s;
+			String testLabel = f.getLocalLabel(), endLabel = f.getLocalLabel();
+			f.genInstr(testLabel, "", "", "Start while-statement");
+			genExpression(ws.expr);
+			f.genInstr("", "cmpl", "$0,%eax", "");
+			f.genInstr("", "je", endLabel, "");
+			genStatement(ws.statm);
+			f.genInstr("", "jmp", testLabel, "");
+			f.genInstr(endLabel, "", "", "End while-statement");
+		}else if(s instanceof ProcCallStatm){
+			ProcCallStatm pc = (ProcCallStatm) s;
+			if(pc.nam.equals("write"))
+				genWrite(pc.exprList);
+			else
+				genCall("proc$" + pc.procRef.progProcFuncName, pc.exprList,
+						"procedure " + pc.nam + " call");
+		}
+	}
+
+	/*
+	 * Each parameter to write is printed by the routine which fits its
+	 * first factor, just as in the i386 code.
+	 */
+	private void genWrite(ExpressionList el) {
+		for(Expression ex : el.exprList){
+			Factor ff = ex.simexpLeft.term.factor;
+			String routine = "write_int";
+			if(ff instanceof StringLiteral){
+				String s = f.getLocalLabel();
+				String val = ((StringLiteral) ff).valString;
+				f.genInstr("", ".data", "", "");
+				f.genInstr(s, ".asciz", "\"" + val + "\"", "");
+				f.genInstr("", ".text", "", "");
+				f.genInstr("", "leaq", s + "(%rip),%rdi", "Addr(\" " + val + "\")");
+				genRuntimeCall("write_string");
+				continue;
+			}
+			genExpression(ex);
+			if(ff instanceof Variable && ((Variable) ff).nam.equals("eol")){
+				f.genInstr("", "movl", "$10,%eax", "eol with ascii 10");
+				routine = "write_char";
+			}else if(ff instanceof CharLiteral){
+				routine = "write_char";
+			}
+			f.genInstr("", "movl", "%eax,%edi", "");
+			genRuntimeCall(routine);
+		}
+	}
+
+	private void genRuntimeCall(String routine) {
+		boolean pad = depth % 2 != 0;
+		if(pad) f.genInstr("", "subq", "$8,%rsp", "Align the stack");
+		f.genInstr("", "call", routine, "");
+		if(pad) f.genInstr("", "addq", "$8,%rsp", "");
+	}
+
+	/*
+	 * The parameters are computed from the last to the first, as in
+	 * the i386 code, so the first six can be popped into registers and
+	 * the rest are left on the stack in the right order.
+	 */
+	private void genCall(String label, ExpressionList el, String comment) {
+		int n = el == null ? 0 : el.exprList.size();
+		int onStack = Math.max(0, n - argRegs.length);
+		int pad = (depth + onStack) % 2;
+		if(pad != 0){
+			f.genInstr("", "subq", "$8,%rsp", "Align the stack");
+			++depth;
+		}
+		for(int i = n-1;  i >= 0;  i--){
+			genExpression(el.exprList.get(i));
+			push("Push param #" + (i+1));
+		}
+		for(int i = 0;  i < n - onStack;  i++){
+			f.genInstr("", "popq", argRegs[i], "");
+			--depth;
+		}
+		f.genInstr("", "call", label, comment);
+		if(onStack + pad > 0){
+			f.genInstr("", "addq", "$" + 8*(onStack+pad) + ",%rsp", "Pop parameters");
+			depth -= onStack + pad;
+		}
+	}
+
+
+	private void genExpression(Expression e) {
+		if(e.isConst){
+			genConst(e.constVal);  return;
+		}
+		genSimpleExpr(e.simexpLeft);
+		if(e.relopr != null){
+			push("");
+			genSimpleExpr(e.simexpRight);
+			pop("%rcx");
+			f.genInstr("", "cmpl", "%eax,%ecx", "");
+			f.genInstr("", "movl", "$0,%eax", "");
+			f.genInstr("", "set" + condition(e.relopr), "%al", "Test " + e.relopr.oprToken);
+		}
+	}
+
+	private void genSimpleExpr(SimpleExpr se) {
+		if(se.isConst){
+			genConst(se.constVal);  return;
+		}
+		genTerm(se.termList.get(0));
+		if(se.prefixOpr != null && se.prefixOpr.oprToken == TokenKind.subtractToken)
+			f.genInstr("", "negl", "%eax", "Prefix -");
+		for(int i = 0;  i < se.termOprList.size();  i++){
+			push("");
+			genTerm(se.termList.get(i+1));
+			f.genInstr("", "movl", "%eax,%ecx", "");
+			pop("%rax");
+			TokenKind opr = se.termOprList.get(i).oprToken;
+			if(opr == TokenKind.addToken)
+				f.genInstr("", "addl", "%ecx,%eax", " +");
+			else if(opr == TokenKind.subtractToken)
+				f.genInstr("", "subl", "%ecx,%eax", " -");
+			else
+				f.genInstr("", "orl", "%ecx,%eax", " or");
+		}
+	}
+
+	private void genTerm(Term t) {
+		if(t.isConst){
+			genConst(t.constVal);  return;
+		}
+		genFactor(t.factorList.get(0));
+		for(int i = 0;  i < t.facOprList.size();  i++){
+			push("");
+			genFactor(t.factorList.get(i+1));
+			f.genInstr("", "movl", "%eax,%ecx", "");
+			pop("%rax");
+			TokenKind opr = t.facOprList.get(i).oprToken;
+			if(opr == TokenKind.multiplyToken){
+				f.genInstr("", "imull", "%ecx,%eax", " *");
+			}else if(opr == TokenKind.divToken){
+				f.genInstr("", "cdq", "", "");
+				f.genInstr("", "idivl", "%ecx", " / (div)");
+			}else if(opr == TokenKind.modToken){
+				f.genInstr("", "cdq", "", "");
+				f.genInstr("", "idivl", "%ecx", "");
+				f.genInstr("", "movl", "%edx,%eax", " mod");
+			}else{
+				f.genInstr("", "andl", "%ecx,%eax", " and");
+			}
+		}
+	}
+
+	private void genFactor(Factor fa) {
+		if(fa.isConst){
+			genConst(fa.constVal);
+		}else if(fa instanceof NumberLiteral){
+			genConst(((NumberLiteral) fa).valInt);
+		}else if(fa instanceof CharLiteral){
+			genConst(((CharLiteral) fa).valChar.charAt(0));
+		}else if(fa instanceof StringLiteral){
+			genConst(stringValue(((StringLiteral) fa).valString));
+		}else if(fa instanceof InnerExpr){
+			genExpression(((InnerExpr) fa).expr);
+		}else if(fa instanceof Negation){
+			genFactor(((Negation) fa).factor);
+			f.genInstr("", "xorl", "$1,%eax", " not");
+		}else if(fa instanceof FuncCall){
+			FuncCall fc = (FuncCall) fa;
+			genCall("func$" + fc.funcDeclRef.progProcFuncName, fc.innerExprList,
+					"function " + fc.nam + " call");
+		}else if(fa instanceof Variable){
+			genVariable((Variable) fa);
+		}
+	}
+
+	private void genVariable(Variable v) {
+		PascalDecl d = v.declRef;
+		if(d instanceof ConstDecl){
+			Constant c = ((ConstDecl) d).constant;
+			if(c instanceof NumberLiteral)
+				genConst(((NumberLiteral) c).valInt);
+			else if(c instanceof CharLiteral)
+				genConst(((CharLiteral) c).valChar.charAt(0));
+			else if(c instanceof StringLiteral)
+				genConst(stringValue(((StringLiteral) c).valString));
+		}else if(d instanceof FuncDecl){
+			f.genInstr("", "movl", "-" + displayBytes + "(%rbp),%eax", v.nam);
+		}else if(d instanceof EnumLiteral){
+			EnumLiteral el = (EnumLiteral) d;
+			if(el.value.equals("false"))
+				genConst(0);
+			else if(el.value.equals("true"))
+				genConst(1);
+			else if(el.type instanceof EnumType)
+				genConst(((EnumType) el.type).enumLitList.indexOf(el));
+		}else if(d instanceof VarDecl || d instanceof ParamDecl){
+			f.genInstr("", "movq", (-8*d.declLevel) + "(%rbp),%rdx", "");
+			f.genInstr("", "movl", offsets.get(d) + "(%rdx),%eax", v.nam);
+			if(v.expr != null)
+				genExpression(v.expr);
+		}
+	}
+
+	// A string is used as the sum of its characters, as in the i386 code.
+	private static int stringValue(String s) {
+		int v = 0;
+		for(int i = 0;  i < s.length();  i++)
+			v += s.charAt(i);
+		return v;
+	}
+
+	private static String condition(RelOperator opr) {
+		switch (opr.oprToken) {
+		case equalToken:        return "e";
+		case notEqualToken:     return "ne";
+		case lessToken:         return "l";
+		case lessEqualToken:    return "le";
+		case greaterToken:      return "g";
+		default:                return "ge";
+		}
+	}
+
+	private void genConst(int value) {
+		f.genInstr("", "movl", "$" + value + ",%eax", "" + value);
+	}
+
+	private void push(String comment) {
+		f.genInstr("", "pushq", "%rax", comment);
+		++depth;
+	}
+
+	private void pop(String reg) {
+		f.genInstr("", "popq", reg, "");
+		--depth;
+	}
+}
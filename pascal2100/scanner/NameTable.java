@@ -0,0 +1,140 @@
+package no.uio.ifi.pascal2100.scanner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The NameTable gives every distinct name in the program a small
+ * integer id and one canonical String. The Scanner interns names
+ * straight from its character buffer, so a name which has been seen
+ * before costs no new String, and the symbol tables in the parser
+ * can use the id as their key. Every compilation has its own NameTable
+ * (see CompilationContext).
+ */
+public class NameTable {
+	private String[] names = new String[256];
+	private int[] hashes = new int[256];
+	private int[] slots = new int[512];  // id+1, or 0 if free
+	private int numNames = 0;
+
+	/**
+	 * Finds the id of a name, adding it to the table if it is new.
+	 * @param s     the text containing the name
+	 * @param start where the name starts
+	 * @param len   the length of the name
+	 * @return the id of the name
+	 */
+	public int intern(CharSequence s, int start, int len) {
+		int h = hash(s, start, len);
+		int mask = slots.length - 1;
+		for (int i = h & mask;  ;  i = (i+1) & mask) {
+			int id = slots[i] - 1;
+			if (id < 0) {
+				id = add(s.subSequence(start, start+len).toString(), h);
+				slots[i] = id + 1;
+				if (2*numNames > slots.length) rehash();
+				return id;
+			}
+			if (hashes[id] == h && sameName(names[id], s, start, len))
+				return id;
+		}
+	}
+
+	/**
+	 * Finds the id of a name which the Scanner has found in the
+	 * bytes of an ASCII source file. The name is taken in lower case,
+	 * so it gets the same id as from intern(CharSequence, int, int).
+	 * @param b     the bytes containing the name
+	 * @param start where the name starts
+	 * @param len   the length of the name
+	 * @return the id of the name
+	 */
+	public int intern(ByteBuffer b, int start, int len) {
+		int h = 0;
+		for (int i = 0;  i < len;  i++)
+			h = 31*h + lowerCase(b.get(start+i));
+		h ^= h >>> 16;
+		int mask = slots.length - 1;
+		for (int i = h & mask;  ;  i = (i+1) & mask) {
+			int id = slots[i] - 1;
+			if (id < 0) {
+				char[] name = new char[len];
+				for (int j = 0;  j < len;  j++)
+					name[j] = lowerCase(b.get(start+j));
+				id = add(new String(name), h);
+				slots[i] = id + 1;
+				if (2*numNames > slots.length) rehash();
+				return id;
+			}
+			if (hashes[id] == h && sameName(names[id], b, start, len))
+				return id;
+		}
+	}
+
+	public int intern(String s) {
+		return intern(s, 0, s.length());
+	}
+
+	/**
+	 * @param id the id of a name
+	 * @return the canonical String for that name
+	 */
+	public String name(int id) {
+		return names[id];
+	}
+
+	/**
+	 * @return the number of distinct names seen so far
+	 */
+	public int size() {
+		return numNames;
+	}
+
+	private int add(String name, int h) {
+		if (numNames == names.length) {
+			names = Arrays.copyOf(names, 2*numNames);
+			hashes = Arrays.copyOf(hashes, 2*numNames);
+		}
+		names[numNames] = name;  hashes[numNames] = h;
+		return numNames++;
+	}
+
+	private void rehash() {
+		slots = new int[2*slots.length];
+		int mask = slots.length - 1;
+		for (int id = 0;  id < numNames;  id++) {
+			int i = hashes[id] & mask;
+			while (slots[i] != 0) i = (i+1) & mask;
+			slots[i] = id + 1;
+		}
+	}
+
+	private static int hash(CharSequence s, int start, int len) {
+		int h = 0;
+		for (int i = 0;  i < len;  i++)
+			h = 31*h + s.charAt(start+i);
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean sameName(String name, CharSequence s,
+			int start, int len) {
+		if (name.length() != len) return false;
+		for (int i = 0;  i < len;  i++) {
+			if (name.charAt(i) != s.charAt(start+i)) return false;
+		}
+		return true;
+	}
+
+	private static boolean sameName(String name, ByteBuffer b,
+			int start, int len) {
+		if (name.length() != len) return false;
+		for (int i = 0;  i < len;  i++) {
+			if (name.charAt(i) != lowerCase(b.get(start+i))) return false;
+		}
+		return true;
+	}
+
+	static char lowerCase(byte b) {
+		return (char) ('A' <= b && b <= 'Z' ? b + ('a'-'A') : b);
+	}
+}
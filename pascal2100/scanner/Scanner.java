@@ -3,6 +3,9 @@ package no.uio.ifi.pascal2100.scanner;
 import no.uio.ifi.pascal2100.main.*;
 import static no.uio.ifi.pascal2100.scanner.TokenKind.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 
 /**
@@ -14,22 +17,72 @@ import java.io.*;
  */
 public class Scanner {
 	public Token curToken = null, nextToken = null; 
+	public final CompilationContext ctx;
+	private final NameTable names;
 
-	private LineNumberReader sourceFile = null;
-	private String sourceFileName, sourceLine = "";
-	private int sourcePos = 0;
+	private SourceReader sourceFile = null;
+	// With -mmap, the lines are read straight from the mapped file;
+	// the current line is srcBytes[lineBase..lineEnd) plus a space.
+	private MappedSourceReader mappedFile = null;
+	private ByteBuffer srcBytes = null;
+	private int lineBase = 0, lineEnd = 0;
+	private String sourceFileName;
+	private int sourcePos = 0, sourceLen = 0;
+	private int linesRead = 0;  // When the file has been closed
+	private int tokensRead = 0;
+	// Tell ctx about the time spent finding tokens (-stats):
+	private final boolean timing;
 	private char curC, nextC;
 	private boolean check = false;
+	// Which notes to make in the log file:
+	private final boolean logTokens, logSourceLines;
+	// Names, numbers and text strings are collected here:
+	private StringBuilder tokenText = new StringBuilder();
 
-	public Scanner(String fileName){
+	// The token most recently found by lexToken:
+	private TokenKind foundKind;
+	private int foundLine, foundInt, foundName;
+	private String foundStr;
+
+	// When the whole file is scanned in advance, the tokens are kept
+	// in these parallel arrays, and curToken and nextToken are two
+	// Token objects which are refilled as tokPos moves on.
+	private static final TokenKind[] kinds = TokenKind.values();
+	private byte[] tokKind = null;
+	private int[] tokLine, tokVal, tokName;
+	private ArrayList<String> tokStrings;
+	private int numTokens = 0, tokPos = 0;
+
+	public Scanner(CompilationContext ctx, String fileName){
+		this(ctx, fileName, false, false);
+	}
+
+	/**
+	 * Creates a Scanner for the given file.
+	 * @param ctx      the compilation it belongs to
+	 * @param fileName the source file
+	 * @param mapped   map the file into memory and scan its bytes directly
+	 *                 rather than reading it through a LineNumberReader
+	 * @param preLex   scan the whole file before parsing starts and keep
+	 *                 the tokens in packed arrays rather than as objects
+	 */
+	public Scanner(CompilationContext ctx, String fileName, boolean mapped, boolean preLex){
+		this.ctx = ctx;  names = ctx.names;
+		logTokens = ctx.log.isLoggingScanner();
+		logSourceLines = ctx.log.isLoggingSourceLines();
+		timing = ctx.isTimingScanner();
 		sourceFileName = fileName;
 		try {
-			FileReader fr = new FileReader(fileName);
-			sourceFile = new LineNumberReader(fr);
-		} catch (FileNotFoundException e) {
+			sourceFile = SourceReader.open(fileName, mapped);
+			if (sourceFile instanceof MappedSourceReader) {
+				mappedFile = (MappedSourceReader) sourceFile;
+				srcBytes = mappedFile.bytes();
+			}
+		} catch (IOException e) {
 			Main.error("Cannot read " + fileName + "!");
 		}
 
+		if (preLex) preLexFile();
 		readNextToken();  readNextToken();
 	}
 
@@ -51,7 +104,20 @@ public class Scanner {
 	 * @param message
 	 */
 	private void error(String message) {
-		Main.error("Scanner error on line " + curLineNum() + ": " + message);
+		Main.error("Scanner error on line " + lexLineNum() + ": " + message);
+	}
+
+	/**
+	 * The line given in errors found while lexing: that of the token
+	 * the parser would have as curToken. When the whole file is
+	 * scanned in advance, curToken is not set yet, so it is the line
+	 * of the last token stored, which gives the same message.
+	 * @return the line number
+	 */
+	private int lexLineNum() {
+		if (tokKind != null)
+			return numTokens > 0 ? tokLine[numTokens-1] : getLinesRead();
+		return curToken != null ? curToken.lineNum : getLinesRead();
 	}
 
 	/**
@@ -59,24 +125,49 @@ public class Scanner {
 	 * them and set the token to their appropriate token kind.
 	 */
 	public void readNextToken() {
+		if (timing) {
+			ctx.startScanning();
+			findNextToken();
+			ctx.endScanning();
+		} else {
+			findNextToken();
+		}
+		if (curToken != null && curToken.kind != eofToken) ++tokensRead;
+	}
+
+	private void findNextToken() {
+		if (tokKind != null) {
+			readNextPreLexedToken();  return;
+		}
+
+		curToken = nextToken;
+		if (nextToken == null || nextToken.kind != eofToken) {
+			lexToken();
+			nextToken = makeToken();
+		}
+		if (logTokens) ctx.log.noteToken(nextToken);
+	}
+
+	/**
+	 * Finds the next token in the source file. The token is left in
+	 * the found... fields, ready for makeToken or addPreLexedToken.
+	 */
+	private void lexToken() {
 		// Del 1 her
 
-		if(sourceLine.equals("") && sourceFile != null){
-			Main.log.noteSourceLine(getFileLineNum(), sourceLine);
+		foundKind = null;
+		if(sourceLen == 0 && sourceFile != null){
+			if (logSourceLines) ctx.log.noteSourceLine(getFileLineNum(), "");
 			readNextLine();
 			readNextChar();
 		}
-		curToken = nextToken;
-		if(nextToken != null){
-			if(nextToken.kind != eofToken) nextToken = null;
-		}
 			
-		while(nextToken == null){
+		while(foundKind == null){
 			
 			if(Character.isWhitespace(curC)){
 				check = true;
 				while(Character.isWhitespace(nextC)){
-					if(sourcePos >= sourceLine.length()){
+					if(sourcePos >= sourceLen){
 						readNextLine();
 						if(sourceFile == null) 
 							break;
@@ -87,7 +178,7 @@ public class Scanner {
 				}
 			}
 			
-			if(sourcePos >= sourceLine.length() && Character.isWhitespace(curC) && sourceFile != null){
+			if(sourcePos >= sourceLen && Character.isWhitespace(curC) && sourceFile != null){
 				check = true;
 				readNextLine();
 				readNextChar();
@@ -99,8 +190,8 @@ public class Scanner {
 				readNextChar();
 				while(!(curC == '*' && nextC == '/')){
 					readNextChar();
-					if(sourcePos >= sourceLine.length() && Character.isWhitespace(curC)){
-						if(sourceLine == "" && sourceFile == null){
+					if(sourcePos >= sourceLen && Character.isWhitespace(curC)){
+						if(sourceFile == null){
 							this.error(" No end for comment");
 							break;
 						}
@@ -123,29 +214,36 @@ public class Scanner {
 				readNextChar();
 				if(Character.isWhitespace(curC)) check = true;
 			}
-			if(isDigit(curC)){
-				String s = "";
-				s += curC;
+			if(isDigit(curC) && srcBytes != null){
+				lexMappedInt();
+			}
+			else if(isDigit(curC)){
+				tokenText.setLength(0);
+				tokenText.append(curC);
 				while(isDigit(nextC)){
 					readNextChar();
-					s += curC;
+					tokenText.append(curC);
 				}
-				nextToken = new Token(Integer.parseInt(s), getFileLineNum());
+				foundInt(Integer.parseInt(tokenText, 0, tokenText.length(), 10));
 				if(Character.isWhitespace(curC)) check = true;
 			}
+			else if(isLetterAZ(curC) && srcBytes != null){
+				lexMappedName();
+			}
 			else if(isLetterAZ(curC)){
-				String s = "";
-				s += curC;
+				tokenText.setLength(0);
+				tokenText.append(curC);
 				while(isLetterAZ(nextC) || isDigit(nextC) || nextC == '_'){
 					readNextChar();
-					s += curC;
+					tokenText.append(curC);
 				}
-				//s = s.toLowerCase();
-				nextToken = new Token(s, getFileLineNum());
+				int len = tokenText.length();
+				foundName(nameKind(tokenText, 0, len),
+						names.intern(tokenText, 0, len));
 				if(Character.isWhitespace(curC)) check = true;
 			}
 			else if(curC == '\'' ){
-				String s ="";
+				tokenText.setLength(0);
 					while(nextC != '\''){
 						
 						if(curC == ','){
@@ -153,63 +251,63 @@ public class Scanner {
 							break;
 						}
 						readNextChar();
-						s += curC;
+						tokenText.append(curC);
 					}
 					readNextChar();
-					nextToken = new Token(s, s, getFileLineNum());
+					foundString(tokenText.toString());
 					if(Character.isWhitespace(curC)) check = true;
 				
 			}
 			else{
 				switch (curC) {
-				case '+': nextToken = new Token(addToken, getFileLineNum());
+				case '+': foundToken(addToken);
 				break;
 				case ':': if(nextC == '='){
-					nextToken = new Token(assignToken, getFileLineNum());
+					foundToken(assignToken);
 					readNextChar();
 				}
-				else nextToken = new Token(colonToken, getFileLineNum());
+				else foundToken(colonToken);
 				break;
-				case ',': nextToken = new Token(commaToken, getFileLineNum());
+				case ',': foundToken(commaToken);
 				break;
 				case '.': if(nextC == '.'){
-					nextToken = new Token(rangeToken, getFileLineNum());
+					foundToken(rangeToken);
 					readNextChar();
 				}
-				else nextToken = new Token(dotToken, getFileLineNum());
+				else foundToken(dotToken);
 				break;
-				case '=': nextToken = new Token(equalToken, getFileLineNum());
+				case '=': foundToken(equalToken);
 				break;
 				case '>': if(nextC == '='){
-					nextToken = new Token(greaterEqualToken, getFileLineNum());
+					foundToken(greaterEqualToken);
 					readNextChar();
 				}
-				else nextToken = new Token(greaterToken, getFileLineNum());
+				else foundToken(greaterToken);
 				break;
-				case '[': nextToken = new Token(leftBracketToken, getFileLineNum());
+				case '[': foundToken(leftBracketToken);
 				break;
-				case '(': nextToken = new Token(leftParToken, getFileLineNum());
+				case '(': foundToken(leftParToken);
 				break;
 				case '<': if(nextC == '='){
-					nextToken = new Token(lessEqualToken, getFileLineNum());
+					foundToken(lessEqualToken);
 					readNextChar();
 				}
 				else if(nextC == '>'){
-					nextToken = new Token(notEqualToken, getFileLineNum());
+					foundToken(notEqualToken);
 					readNextChar();
 				}
-				else nextToken = new Token(lessToken, getFileLineNum());
+				else foundToken(lessToken);
 				break;
 
-				case '*': nextToken = new Token(multiplyToken, getFileLineNum());
+				case '*': foundToken(multiplyToken);
 				break;
-				case ']': nextToken = new Token(rightBracketToken, getFileLineNum());
+				case ']': foundToken(rightBracketToken);
 				break;
-				case ')': nextToken = new Token(rightParToken, getFileLineNum());
+				case ')': foundToken(rightParToken);
 				break;
-				case ';': nextToken = new Token(semicolonToken, getFileLineNum());
+				case ';': foundToken(semicolonToken);
 				break;
-				case '-': nextToken = new Token(subtractToken, getFileLineNum());
+				case '-': foundToken(subtractToken);
 				break;
 				default: if(!Character.isWhitespace(curC)) Main.error(getFileLineNum(), "Illegal character: '" + curC + "'!");
 				
@@ -217,7 +315,131 @@ public class Scanner {
 				}
 			}
 		}
-		Main.log.noteToken(nextToken);
+	}
+
+	/*
+	 * In a mapped file, names and numbers are taken straight from the
+	 * bytes as offset/length slices. curC is the first character, at
+	 * sourcePos-2 in the line (it cannot have come from an earlier
+	 * line, as those all end with a space). Afterwards curC, nextC and
+	 * sourcePos are left as the character by character loops leave them.
+	 */
+	private void lexMappedName() {
+		int from = lineBase + sourcePos - 2, to = from + 1;
+		while (to < lineEnd && isNameChar(srcBytes.get(to))) ++to;
+		int len = to - from;
+		foundName(nameKind(srcBytes, from, len), names.intern(srcBytes, from, len));
+		skipMappedTo(to);
+	}
+
+	private void lexMappedInt() {
+		int from = lineBase + sourcePos - 2, to = from + 1;
+		while (to < lineEnd && isDigit((char) srcBytes.get(to))) ++to;
+		int n = 0;
+		if (to - from <= 9) {
+			for (int i = from;  i < to;  i++)
+				n = 10*n + (srcBytes.get(i) - '0');
+		} else {
+			// Let parseInt complain about numbers which are too large.
+			tokenText.setLength(0);
+			for (int i = from;  i < to;  i++)
+				tokenText.append((char) srcBytes.get(i));
+			n = Integer.parseInt(tokenText, 0, tokenText.length(), 10);
+		}
+		foundInt(n);
+		skipMappedTo(to);
+	}
+
+	private void skipMappedTo(int to) {
+		sourcePos = to - lineBase;
+		curC = NameTable.lowerCase(srcBytes.get(to-1));
+		nextC = sourceChar(sourcePos++);
+	}
+
+	private void foundToken(TokenKind k) {
+		foundKind = k;  foundLine = getFileLineNum();
+		foundName = -1;
+	}
+
+	private void foundName(TokenKind k, int nameId) {
+		foundToken(k);  foundName = nameId;
+	}
+
+	private void foundInt(int n) {
+		foundToken(intValToken);  foundInt = n;
+	}
+
+	private void foundString(String s) {
+		foundToken(stringValToken);  foundStr = s;
+	}
+
+	private Token makeToken() {
+		if (foundName >= 0)
+			return new Token(foundKind, foundName, names.name(foundName), foundLine);
+		switch (foundKind) {
+		case intValToken:    return new Token(foundInt, foundLine);
+		case stringValToken: return new Token(foundStr, foundStr, foundLine);
+		default:             return new Token(foundKind, foundLine);
+		}
+	}
+
+	/**
+	 * Scans the whole source file and stores the tokens in the packed
+	 * arrays. The scanner part of the log file is written now, so it will
+	 * come before the parser's notes rather than interleaved with them,
+	 * and scanner errors are reported before any parser errors.
+	 */
+	private void preLexFile() {
+		// Typical source has a token for every three or four bytes:
+		int cap = (int) Math.min(Math.max(new File(sourceFileName).length()/3, 1024),
+				Integer.MAX_VALUE/2);
+		tokKind = new byte[cap];
+		tokLine = new int[cap];  tokVal = new int[cap];  tokName = new int[cap];
+		tokStrings = new ArrayList<>();
+		curToken = new Token(eofToken, 0);  nextToken = new Token(eofToken, 0);
+
+		do {
+			lexToken();
+			addPreLexedToken();
+			if (logTokens) {
+				fillToken(curToken, numTokens-1);
+				ctx.log.noteToken(curToken);
+			}
+		} while (foundKind != eofToken);
+	}
+
+	private void addPreLexedToken() {
+		if (numTokens == tokKind.length) {
+			int n = 2*numTokens;
+			tokKind = Arrays.copyOf(tokKind, n);  tokLine = Arrays.copyOf(tokLine, n);
+			tokVal = Arrays.copyOf(tokVal, n);  tokName = Arrays.copyOf(tokName, n);
+		}
+		tokKind[numTokens] = (byte) foundKind.ordinal();
+		tokLine[numTokens] = foundLine;
+		tokName[numTokens] = foundName;
+		if (foundKind == stringValToken) {
+			tokVal[numTokens] = tokStrings.size();
+			tokStrings.add(foundStr);
+		} else {
+			tokVal[numTokens] = foundKind == intValToken ? foundInt : 0;
+		}
+		++numTokens;
+	}
+
+	private void fillToken(Token t, int p) {
+		t.kind = kinds[tokKind[p]];
+		t.lineNum = tokLine[p];
+		t.nameId = tokName[p];
+		t.id = t.nameId >= 0 ? names.name(t.nameId) : null;
+		t.intVal = t.kind == intValToken ? tokVal[p] : 0;
+		t.strVal = t.kind == stringValToken ? tokStrings.get(tokVal[p]) : null;
+	}
+
+	private void readNextPreLexedToken() {
+		Token t = curToken;
+		curToken = nextToken;  nextToken = t;
+		fillToken(nextToken, tokPos);
+		if (tokPos < numTokens-1) ++tokPos;
 	}
 
 	/**
@@ -225,13 +447,25 @@ public class Scanner {
 	 * 
 	 */
 	private void readNextChar(){
-		if(isLetterAZ(nextC))
-			nextC = Character.toLowerCase(nextC);
 		curC = nextC;
-		if(sourcePos < sourceLine.length()){
-			nextC = sourceLine.charAt(sourcePos++);
-			
+		if(sourcePos < sourceLen){
+			nextC = sourceChar(sourcePos++);
+		}
+	}
+
+	/**
+	 * @param pos position in the current line
+	 * @return the character at that position, in lower case if it is a letter
+	 */
+	private char sourceChar(int pos) {
+		char c;
+		if (srcBytes != null) {
+			int i = lineBase + pos;
+			c = i < lineEnd ? (char) srcBytes.get(i) : ' ';
+		} else {
+			c = sourceFile.charAt(pos);
 		}
+		return 'A'<=c && c<='Z' ? (char) (c + ('a'-'A')) : c;
 	}
 
 	/**
@@ -240,21 +474,44 @@ public class Scanner {
 	private void readNextLine() {
 		if (sourceFile != null) {
 			try {
-				sourceLine = sourceFile.readLine();
-				if (sourceLine == null) {
-					nextToken = new Token(eofToken, getFileLineNum());
+				if (! sourceFile.readLine()) {
+					foundToken(eofToken);
+					linesRead = sourceFile.getLineNumber();
 					sourceFile.close();  sourceFile = null;
-					sourceLine = "";  
+					sourceLen = 0;  
 				} else {
-					sourceLine += " ";
+					sourceLen = sourceFile.length();
+					if (mappedFile != null) {
+						lineBase = mappedFile.lineStart();
+						lineEnd = mappedFile.lineEnd();
+					}
 				}
 				sourcePos = 0;
 			} catch (IOException e) {
 				Main.error("Scanner error: unspecified I/O error!");
 			}
 		}
-		if (sourceFile != null) 
-			Main.log.noteSourceLine(getFileLineNum(), sourceLine);
+		if (sourceFile != null && logSourceLines) {
+			if (mappedFile != null)
+				ctx.log.noteSourceLine(getFileLineNum(), srcBytes, lineBase, lineEnd);
+			else
+				ctx.log.noteSourceLine(getFileLineNum(), sourceFile.line());
+		}
+	}
+
+	/**
+	 * @return the number of source lines read so far
+	 */
+	public int getLinesRead() {
+		return sourceFile != null ? sourceFile.getLineNumber() : linesRead;
+	}
+
+	/**
+	 * @return the number of tokens the parser has been given, not
+	 *         counting the e-o-f token
+	 */
+	public int getTokensRead() {
+		return tokensRead;
 	}
 
 	/**
@@ -275,6 +532,10 @@ public class Scanner {
 		return 'A'<=c && c<='Z' || 'a'<=c && c<='z';
 	}
 
+	private boolean isNameChar(byte b) {
+		return isLetterAZ((char) b) || isDigit((char) b) || b == '_';
+	}
+
 	/**
 	 * Checks if the character is a digit or not
 	 * @param c is the input character
@@ -302,4 +563,4 @@ public class Scanner {
 		readNextToken();
 		
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
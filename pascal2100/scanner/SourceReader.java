@@ -0,0 +1,243 @@
+package no.uio.ifi.pascal2100.scanner;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * A SourceReader delivers the source file to the Scanner one line at a
+ * time. Every line is presented with a trailing space, just as the
+ * Scanner has always seen it, so both implementations give exactly
+ * the same token stream.
+ */
+abstract class SourceReader {
+
+	/**
+	 * Opens the source file.
+	 * @param fileName the name of the source file
+	 * @param mapped   use the memory-mapped reader if possible
+	 * @return a reader positioned before the first line
+	 */
+	static SourceReader open(String fileName, boolean mapped) throws IOException {
+		if (mapped) {
+			MappedSourceReader m = new MappedSourceReader(fileName);
+			// Non-ASCII files are decoded by the Reader as before.
+			if (m.isAscii())
+				return m;
+		}
+		return new LineSourceReader(fileName);
+	}
+
+	/**
+	 * Moves on to the next line.
+	 * @return false if there are no more lines
+	 */
+	abstract boolean readLine() throws IOException;
+
+	/**
+	 * @return the number of lines read so far
+	 */
+	abstract int getLineNumber();
+
+	/**
+	 * @return the length of the current line, including the trailing space
+	 */
+	abstract int length();
+
+	/**
+	 * @param pos position in the current line
+	 * @return the character at that position
+	 */
+	abstract char charAt(int pos);
+
+	/**
+	 * The current line, as noted in the log file.
+	 * @return the current line
+	 */
+	abstract CharSequence line();
+
+	abstract void close() throws IOException;
+}
+
+
+/**
+ * The original reader, based on a LineNumberReader.
+ */
+class LineSourceReader extends SourceReader {
+	private LineNumberReader sourceFile;
+	private String sourceLine = "";
+
+	LineSourceReader(String fileName) throws FileNotFoundException {
+		sourceFile = new LineNumberReader(new FileReader(fileName));
+	}
+
+	@Override
+	boolean readLine() throws IOException {
+		sourceLine = sourceFile.readLine();
+		if (sourceLine == null) {
+			sourceLine = "";
+			return false;
+		}
+		sourceLine += " ";
+		return true;
+	}
+
+	@Override
+	int getLineNumber() {
+		return sourceFile.getLineNumber();
+	}
+
+	@Override
+	int length() {
+		return sourceLine.length();
+	}
+
+	@Override
+	char charAt(int pos) {
+		return sourceLine.charAt(pos);
+	}
+
+	@Override
+	CharSequence line() {
+		return sourceLine;
+	}
+
+	@Override
+	void close() throws IOException {
+		sourceFile.close();
+	}
+}
+
+
+/**
+ * A reader which maps the whole file into memory. The line starts are
+ * found once when the file is opened, and the Scanner then reads the
+ * bytes of each line straight from the mapped buffer (see bytes(),
+ * lineStart() and lineEnd()); nothing is copied, and no String is
+ * built for a line unless the log file asks for it.
+ */
+class MappedSourceReader extends SourceReader implements CharSequence {
+	private MappedByteBuffer buf;
+	private int[] lineStart = new int[1024], lineEnd = new int[1024];
+	private int numLines = 0, curLine = -1;
+	private int start = 0, end = 0;
+	private boolean ascii = true;
+
+	MappedSourceReader(String fileName) throws IOException {
+		try (FileChannel ch = FileChannel.open(Paths.get(fileName),
+				StandardOpenOption.READ)) {
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} catch (NoSuchFileException e) {
+			throw new FileNotFoundException(fileName);
+		}
+		indexLines();
+	}
+
+	/**
+	 * Finds where every line starts and ends. A line is terminated
+	 * by \n, \r or \r\n, just as for BufferedReader.readLine.
+	 */
+	private void indexLines() {
+		int size = buf.limit();
+		int pos = 0, from = 0;
+		while (pos < size) {
+			byte b = buf.get(pos);
+			if (b < 0) ascii = false;
+			if (b == '\n' || b == '\r') {
+				addLine(from, pos);
+				if (b == '\r' && pos+1 < size && buf.get(pos+1) == '\n')
+					++pos;
+				from = pos+1;
+			}
+			++pos;
+		}
+		if (from < size) addLine(from, size);
+	}
+
+	private void addLine(int from, int to) {
+		if (numLines == lineStart.length) {
+			lineStart = Arrays.copyOf(lineStart, 2*numLines);
+			lineEnd = Arrays.copyOf(lineEnd, 2*numLines);
+		}
+		lineStart[numLines] = from;  lineEnd[numLines] = to;
+		++numLines;
+	}
+
+	boolean isAscii() {
+		return ascii;
+	}
+
+	/**
+	 * @return the mapped file
+	 */
+	ByteBuffer bytes() {
+		return buf;
+	}
+
+	/**
+	 * @return where the current line starts in bytes()
+	 */
+	int lineStart() {
+		return start;
+	}
+
+	/**
+	 * @return where the current line ends in bytes(), not counting
+	 *         the trailing space
+	 */
+	int lineEnd() {
+		return end;
+	}
+
+	@Override
+	boolean readLine() {
+		if (curLine+1 >= numLines) {
+			curLine = numLines;  start = end = 0;
+			return false;
+		}
+		++curLine;
+		start = lineStart[curLine];  end = lineEnd[curLine];
+		return true;
+	}
+
+	@Override
+	int getLineNumber() {
+		return Math.min(curLine+1, numLines);
+	}
+
+	@Override
+	public int length() {
+		return curLine < numLines ? end-start+1 : 0;
+	}
+
+	@Override
+	public char charAt(int pos) {
+		int i = start + pos;
+		return i < end ? (char) buf.get(i) : ' ';
+	}
+
+	@Override
+	public CharSequence subSequence(int from, int to) {
+		return toString().subSequence(from, to);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(length());
+		for (int i = 0;  i < length();  i++) sb.append(charAt(i));
+		return sb.toString();
+	}
+
+	@Override
+	CharSequence line() {
+		return this;
+	}
+
+	@Override
+	void close() {
+		buf = null;
+	}
+}
@@ -5,57 +5,14 @@ import static no.uio.ifi.pascal2100.scanner.TokenKind.*;
 public class Token {
     public TokenKind kind;
     public String id, strVal;
-    public int intVal, lineNum;
+    public int intVal, lineNum, nameId = -1;
 
     Token(TokenKind k, int lNum) {
 	kind = k;  lineNum = lNum;
     }
 
-    Token(String s, int lNum) {
-	if (s.equals("and"))
-	    kind = andToken;
-	else if (s.equals("array"))
-	    kind = arrayToken;
-	else if (s.equals("begin"))
-	    kind = beginToken;
-	else if (s.equals("const"))
-	    kind = constToken;
-	else if (s.equals("div"))
-	    kind = divToken;
-	else if (s.equals("do"))
-	    kind = doToken;
-	else if (s.equals("else"))
-	    kind = elseToken;
-	else if (s.equals("end"))
-	    kind = endToken;
-	else if (s.equals("function"))
-	    kind = functionToken;
-	else if (s.equals("if"))
-	    kind = ifToken;
-	else if (s.equals("mod"))
-	    kind = modToken;
-	else if (s.equals("not"))
-	    kind = notToken;
-	else if (s.equals("of"))
-	    kind = ofToken;
-	else if (s.equals("or"))
-	    kind = orToken;
-	else if (s.equals("procedure"))
-	    kind = procedureToken;
-	else if (s.equals("program"))
-	    kind = programToken;
-	else if (s.equals("then"))
-	    kind = thenToken;
-	else if (s.equals("type"))
-	    kind = typeToken;
-	else if (s.equals("var"))
-	    kind = varToken;
-	else if (s.equals("while"))
-	    kind = whileToken;
-	else
-	    kind = nameToken;
-
-	id = s;  lineNum = lNum;
+    Token(TokenKind k, int nId, String name, int lNum) {
+	kind = k;  nameId = nId;  id = name;  lineNum = lNum;
     }
 
     Token(String any, String s, int lNum) {
@@ -67,15 +24,43 @@ public class Token {
     }
 
 
+    /**
+     * Makes a copy of this token, which may be kept after the Scanner
+     * has moved on. (In pre-lexing mode the Scanner reuses its tokens.)
+     *
+     * @return The copy
+     */
+    public Token copy() {
+	Token t = new Token(kind, lineNum);
+	t.id = id;  t.strVal = strVal;  t.intVal = intVal;  t.nameId = nameId;
+	return t;
+    }
+
+
     public String identify() {
-	String t = kind.identify();
-	if (lineNum > 0) 
-	    t += " on line " + lineNum;
+	return identify(kind, lineNum, kind == stringValToken ? strVal : id, intVal);
+    }
+
+
+    /**
+     * Describes a token from its fields, just as identify does, so a
+     * token may be noted without keeping the Token itself.
+     *
+     * @param k      The kind
+     * @param lNum   The line number
+     * @param text   The name, or the text of a string
+     * @param n      The value of a number
+     * @return The description
+     */
+    public static String identify(TokenKind k, int lNum, String text, int n) {
+	String t = k.identify();
+	if (lNum > 0) 
+	    t += " on line " + lNum;
 
-	switch (kind) {
-	case nameToken:      t += ": " + id;  break;
-	case intValToken:    t += ": " + intVal;  break;
-	case stringValToken: t += ": '" + strVal + "'";  break;
+	switch (k) {
+	case nameToken:      t += ": " + text;  break;
+	case intValToken:    t += ": " + n;  break;
+	case stringValToken: t += ": '" + text + "'";  break;
 	}
 	return t;
     }
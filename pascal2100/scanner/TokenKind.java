@@ -1,5 +1,7 @@
 package no.uio.ifi.pascal2100.scanner;
 
+import java.nio.ByteBuffer;
+
 // Note that tokens found in standard Pascal but not in Pascal2100
 // have been commented out.
 
@@ -75,6 +77,82 @@ public enum TokenKind {
     }
 
 
+    // The reserved words are found through a perfect hash table which
+    // is built from the token images when the class is loaded. The
+    // hash only looks at the length and the first and last character,
+    // so a name is classified with a single probe and one comparison.
+    private static TokenKind[] reservedWords;
+    private static int hashMul1, hashMul2;
+
+    static {
+	for (int size = 32;  reservedWords == null;  size *= 2) {
+	    for (int a = 1;  a < size && reservedWords == null;  a++) {
+		for (int b = 1;  b < size && reservedWords == null;  b++) {
+		    reservedWords = buildTable(size, a, b);
+		    hashMul1 = a;  hashMul2 = b;
+		}
+	    }
+	}
+    }
+
+    private static TokenKind[] buildTable(int size, int a, int b) {
+	TokenKind[] table = new TokenKind[size];
+	for (TokenKind k: values()) {
+	    if (! k.isReservedWord()) continue;
+
+	    String im = k.image;
+	    int h = hash(im, 0, im.length(), a, b, size);
+	    if (table[h] != null) return null;
+	    table[h] = k;
+	}
+	return table;
+    }
+
+    private static int hash(CharSequence s, int start, int len, 
+			    int a, int b, int size) {
+	return (len*a + s.charAt(start)*b + s.charAt(start+len-1)) & (size-1);
+    }
+
+
+    /**
+     * Classifies a name found by the Scanner.
+     *
+     * @param s      The text containing the name (in lower case)
+     * @param start  Where the name starts
+     * @param len    The length of the name
+     * @return The reserved word token kind, or nameToken
+     */
+    public static TokenKind nameKind(CharSequence s, int start, int len) {
+	TokenKind k = reservedWords[hash(s, start, len, hashMul1, hashMul2,
+					 reservedWords.length)];
+	if (k == null || k.image.length() != len) return nameToken;
+	for (int i = 0;  i < len;  i++) {
+	    if (k.image.charAt(i) != s.charAt(start+i)) return nameToken;
+	}
+	return k;
+    }
+
+    /**
+     * Classifies a name which the Scanner has found in the bytes of an
+     * ASCII source file; upper case letters are taken as lower case.
+     *
+     * @param b      The bytes containing the name
+     * @param start  Where the name starts
+     * @param len    The length of the name
+     * @return The reserved word token kind, or nameToken
+     */
+    public static TokenKind nameKind(ByteBuffer b, int start, int len) {
+	int h = (len*hashMul1 + NameTable.lowerCase(b.get(start))*hashMul2 +
+		 NameTable.lowerCase(b.get(start+len-1))) & (reservedWords.length-1);
+	TokenKind k = reservedWords[h];
+	if (k == null || k.image.length() != len) return nameToken;
+	for (int i = 0;  i < len;  i++) {
+	    if (k.image.charAt(i) != NameTable.lowerCase(b.get(start+i))) return nameToken;
+	}
+	return k;
+    }
+
+
     public String identify() {
 	return image + " token";
     }
@@ -102,4 +180,8 @@ public enum TokenKind {
     public boolean isTermOpr() {
 	return isPrefixOpr() || this==orToken;
     }
+
+    public boolean isReservedWord() {
+	return compareTo(andToken) >= 0 && compareTo(whileToken) <= 0;
+    }
 }
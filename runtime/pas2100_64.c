@@ -0,0 +1,25 @@
+/*
+ * The runtime library for programs compiled with -target x86_64.
+ * Build it as
+ *
+ *	gcc -O2 -c pas2100_64.c && ar rcs libpas2100_64.a pas2100_64.o
+ *
+ * and put libpas2100_64.a where the compiler runs gcc.
+ */
+
+#include <stdio.h>
+
+void write_char(int c)
+{
+  putchar(c);
+}
+
+void write_int(int n)
+{
+  printf("%d", n);
+}
+
+void write_string(char *s)
+{
+  fputs(s, stdout);
+}
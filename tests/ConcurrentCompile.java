@@ -0,0 +1,192 @@
+import no.uio.ifi.pascal2100.bench.ProgramGenerator;
+import no.uio.ifi.pascal2100.main.Main;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * Checks that compilations running at the same time in one JVM do not
+ * disturb each other (see CompilationContext). Every source file is
+ * compiled with each of the option sets below, first one at a time and
+ * then all at once on a thread pool, several rounds over and in a
+ * different order each round. Every compilation has a directory of its
+ * own.
+ *
+ * What a compilation writes to out and err, its exit status, and the
+ * .s and .log files it leaves must be exactly the same as in the serial
+ * run. Only the first line of the .s file, which holds the time, and
+ * the name of the directory are left out of the comparison.
+ *
+ * The sources are the .pas files in the tests directory and a few
+ * programs written by the ProgramGenerator, unless files are given.
+ *
+ * Usage: javac -d classes $(find pascal2100 -name '*.java')
+ *        java -cp classes tests/ConcurrentCompile.java
+ *            [-threads n] [-rounds n] {file|directory}...
+ */
+public class ConcurrentCompile {
+    private static final String[][] optionSets = {
+	{}, { "-O", "-regalloc" }, { "-pargen" }, { "-target", "x86_64" },
+	{ "-testparser" }, { "-run" }, { "-vm" }, { "-jvm" } };
+    private static final int numGenerated = 6, generatedLines = 400;
+
+    // One source file compiled with one option set:
+    private static class Job {
+	final Path source;
+	final String[] options;
+
+	Job(Path source, String[] options) {
+	    this.source = source;  this.options = options;
+	}
+
+	@Override public String toString() {
+	    String s = source.getFileName().toString();
+	    for (String o: options) s += " " + o;
+	    return s;
+	}
+    }
+
+    public static void main(String arg[]) throws Exception {
+	int threads = 8, rounds = 3;
+	ArrayList<Path> sources = new ArrayList<>();
+
+	for (int i = 0;  i < arg.length;  i++) {
+	    if (arg[i].equals("-threads") && i+1 < arg.length)
+		threads = Math.max(1, Integer.parseInt(arg[++i]));
+	    else if (arg[i].equals("-rounds") && i+1 < arg.length)
+		rounds = Math.max(1, Integer.parseInt(arg[++i]));
+	    else
+		addFiles(Paths.get(arg[i]), sources);
+	}
+	Path work = Files.createTempDirectory("pascal2100-concurrent");
+	boolean ok;
+	try {
+	    if (sources.isEmpty()) {
+		addFiles(Paths.get("tests"), sources);
+		for (int seed = 1;  seed <= numGenerated;  seed++) {
+		    Path p = work.resolve("gen" + seed + ".pas");
+		    new ProgramGenerator(seed, generatedLines, "wide", "balanced")
+			.generate(p.toString());
+		    sources.add(p);
+		}
+	    }
+	    ok = check(sources, threads, rounds, work);
+	} finally {
+	    delete(work);
+	}
+	System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean check(ArrayList<Path> sources, int threads,
+	    int rounds, Path work) throws Exception {
+	ArrayList<Job> jobs = new ArrayList<>();
+	for (Path s: sources) {
+	    for (String[] o: optionSets) jobs.add(new Job(s, o));
+	}
+
+	long start = System.nanoTime();
+	HashMap<Job,String> expected = new HashMap<>();
+	for (int j = 0;  j < jobs.size();  j++)
+	    expected.put(jobs.get(j), compile(jobs.get(j), work.resolve("serial-" + j)));
+	double serialSecs = (System.nanoTime() - start) / 1e9;
+
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	ArrayList<Job> order = new ArrayList<>();
+	ArrayList<Future<String>> results = new ArrayList<>();
+	Random rnd = new Random(1);
+	start = System.nanoTime();
+	for (int r = 0;  r < rounds;  r++) {
+	    ArrayList<Job> round = new ArrayList<>(jobs);
+	    Collections.shuffle(round, rnd);
+	    for (Job job: round) {
+		Path dir = work.resolve("parallel-" + order.size());
+		order.add(job);
+		results.add(pool.submit(() -> compile(job, dir)));
+	    }
+	}
+	int numFailed = 0;
+	for (int i = 0;  i < order.size();  i++) {
+	    String got = results.get(i).get(), want = expected.get(order.get(i));
+	    if (! got.equals(want)) {
+		++numFailed;
+		System.out.println("Differs from the serial run: " + order.get(i));
+		System.out.println(firstDifference(want, got));
+	    }
+	}
+	pool.shutdown();
+	double parallelSecs = (System.nanoTime() - start) / 1e9;
+
+	System.out.println(String.format(Locale.ROOT,
+	    "%d compilations on %d threads (%.2f s), %d serial (%.2f s): %s",
+	    order.size(), threads, parallelSecs, jobs.size(), serialSecs,
+	    numFailed == 0 ? "all the same" : numFailed + " differ"));
+	return numFailed == 0;
+    }
+
+    /*
+     * Compiles a copy of the source in a directory of its own.
+     * @return everything the compilation wrote, with the directory
+     *         name replaced by <dir>
+     */
+    private static String compile(Job job, Path dir) throws IOException {
+	Files.createDirectories(dir);
+	String name = job.source.getFileName().toString();
+	Files.copy(job.source, dir.resolve(name));
+	String[] a = Arrays.copyOf(job.options, job.options.length+1);
+	a[a.length-1] = name;
+
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	PrintStream ps = new PrintStream(buf, true, "UTF-8");
+	int status;
+	try {
+	    status = Main.compile(a, dir.toFile(), ps, ps);
+	} catch (RuntimeException | StackOverflowError e) {
+	    ps.println("The compiler failed: " + e);
+	    status = -1;
+	}
+	ps.flush();
+
+	String base = name.substring(0, name.length() - ".pas".length());
+	StringBuilder sb = new StringBuilder();
+	sb.append("Status ").append(status).append('\n');
+	sb.append(buf.toString("UTF-8"));
+	sb.append("--- .s\n").append(readFile(dir.resolve(base + ".s"), 1));
+	sb.append("--- .log\n").append(readFile(dir.resolve(base + ".log"), 0));
+	return sb.toString().replace(dir.toString(), "<dir>");
+    }
+
+    private static String readFile(Path p, int skipLines) throws IOException {
+	if (! Files.exists(p)) return "";
+	List<String> lines = Files.readAllLines(p, StandardCharsets.ISO_8859_1);
+	return String.join("\n", lines.subList(Math.min(skipLines, lines.size()),
+						lines.size())) + "\n";
+    }
+
+    private static String firstDifference(String want, String got) {
+	String[] w = want.split("\n", -1), g = got.split("\n", -1);
+	int i = 0;
+	while (i < w.length && i < g.length && w[i].equals(g[i])) ++i;
+	return "  line " + (i+1) + ":\n" +
+	    "    serial:   " + (i < w.length ? w[i] : "<end>") + "\n" +
+	    "    parallel: " + (i < g.length ? g[i] : "<end>");
+    }
+
+    private static void addFiles(Path p, ArrayList<Path> files) throws IOException {
+	if (! Files.isDirectory(p)) {
+	    files.add(p);  return;
+	}
+	try (Stream<Path> s = Files.walk(p)) {
+	    s.filter(f -> f.toString().endsWith(".pas") && Files.isRegularFile(f))
+		.sorted().forEach(files::add);
+	}
+    }
+
+    private static void delete(Path p) throws IOException {
+	try (Stream<Path> s = Files.walk(p)) {
+	    s.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+	}
+    }
+}
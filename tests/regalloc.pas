@@ -0,0 +1,26 @@
+/* Register allocation with -regalloc and -O: the expressions need
+   more registers than there are, so values are spilled, and the
+   indexed variables and calls are saved around. Every line of output
+   must be the same with and without -regalloc and -O; the expected
+   output is in regalloc.out. */
+program RegAlloc;
+var a : array [1..8] of integer; i : integer; x : integer; y : integer;
+
+function Twice (n : integer) : integer;
+begin
+   Twice := 2 * n
+end;
+
+begin
+   i := 1;
+   while i <= 8 do begin a[i] := i; i := i + 1 end;
+   x := 3;  y := 7;
+   write(a[2] * (a[3] + a[4] * a[5]), eol);
+   write((x * y + a[1] * a[2]) * (a[3] * a[4] - x * (y + a[5] * a[6])), eol);
+   write(((x + 1) * (y + 2) * (x + 3)) * ((y + 4) * (x + 5) * (y + 6)), eol);
+   write(a[8] - (a[7] * (a[6] - a[5] * (a[4] + a[3] * (a[2] - a[1])))), eol);
+   write((x * (y * (x * (y * (x + y) + x) + y) + x)) mod 1000, eol);
+   write(Twice(a[3] * a[4]) * (Twice(x) + a[2] * Twice(y)) - a[1] * Twice(a[8]), eol);
+   write((a[1] + a[2]) * (a[3] + a[4]) * (a[5] + a[6]) * (a[7] + a[8]) div (x * y), eol);
+   write(-(x * a[5] - y * a[6]) * (a[7] * x - a[8] * y), eol)
+end.